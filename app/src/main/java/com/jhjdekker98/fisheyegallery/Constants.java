@@ -11,6 +11,7 @@ public class Constants {
     public static final int CONFIG_REQUEST_ID = 2;
     public static final int STORAGE_AREA_REQUEST_ID = 3;
     public static final int DELETE_MEDIASTORE_FILE_REQUEST_ID = 4;
+    public static final int NOTIFICATION_PERMISSION_REQUEST_ID = 5;
 
     // --- Shared Preferences ---
     public static final String SHARED_PREFS_NAME = "app_config";
@@ -26,6 +27,17 @@ public class Constants {
     // --- Other ---
     public static final int BUFFER_SIZE = 8192; //8kb
     public static final String SMB_CONTENT_AUTHORITY = "com.jhjdekker98.fisheyegallery.smb";
+    public static final long SMB_BLOCK_CACHE_MAX_BYTES = 256L * 1024 * 1024; //256mb
+    public static final int SMB_CRAWL_PARALLELISM = 4;
+    public static final int SMB_FETCH_THREADS = 4;
+    public static final int SMB_INITIAL_IN_FLIGHT_PER_HOST = 4; // Starting point of the adaptive per-host limit
+    public static final int SMB_MAX_IN_FLIGHT_PER_HOST = 16;
+    public static final int SMB_READ_SIZE = 1024 * 1024; //1mb, per SMB read request; multiple of the block size
+    public static final int SMB_READ_PIPELINE_DEPTH = 4; // Read requests kept in flight ahead of a sequential reader
+    public static final long SMB_VIDEO_CACHE_MAX_BYTES = 512L * 1024 * 1024; //512mb
+    public static final int SMB_TRANSFER_CHUNK_SIZE = 1024 * 1024; //1mb, per read/write during uploads and downloads
+    public static final long SMB_TRANSFER_CHECKPOINT_BYTES = 16L * 1024 * 1024; //16mb between resumable checkpoints
+    public static final int SMB_TRANSFER_PARALLELISM = 3; // Files moved at the same time by the transfer queue
 
 
     public static final Map<Integer, String> THEME_LOOKUP = CollectionUtil.mapOf(
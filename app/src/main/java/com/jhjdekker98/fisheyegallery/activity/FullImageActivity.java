@@ -17,21 +17,29 @@ import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 import androidx.media3.common.MediaItem;
+import androidx.media3.common.util.UnstableApi;
 import androidx.media3.exoplayer.ExoPlayer;
+import androidx.media3.exoplayer.source.DefaultMediaSourceFactory;
 import androidx.media3.ui.PlayerView;
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.signature.ObjectKey;
+import com.jhjdekker98.fisheyegallery.Constants;
 import com.jhjdekker98.fisheyegallery.R;
 import com.jhjdekker98.fisheyegallery.config.smb.SmbTransferHelper;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbVideoCache;
 import com.jhjdekker98.fisheyegallery.config.smb.TransferCallback;
 import com.jhjdekker98.fisheyegallery.util.FileHelper;
 
+@OptIn(markerClass = UnstableApi.class)
 public class FullImageActivity extends AppCompatActivity {
     public static final String EXTRA_IMAGE_URI = "extra_image_uri";
     public static final String EXTRA_IMAGE_LOCAL = "extra_image_local";
     public static final String EXTRA_THUMBNAIL = "thumbnail_drawable";
+    public static final String EXTRA_CONTENT_VERSION = "extra_content_version";
     private ImageView fullImageView;
     private PlayerView fullVideoView;
     private ExoPlayer player;
@@ -78,6 +86,8 @@ public class FullImageActivity extends AppCompatActivity {
             isLocal = getIntent().getBooleanExtra(EXTRA_IMAGE_LOCAL, true);
         }
 
+        final long contentVersion = getIntent().getLongExtra(EXTRA_CONTENT_VERSION, 0);
+
         // Load image
         final Context context = this;
         if (imageUri != null) {
@@ -104,6 +114,7 @@ public class FullImageActivity extends AppCompatActivity {
                 public void onTransitionEnd(@NonNull Transition transition) {
                     Glide.with(FullImageActivity.this)
                             .load(imageUri)
+                            .signature(new ObjectKey(contentVersion))
                             .placeholder(thumbnail)
                             .error(R.drawable.md_close_24px)
                             .into(fullImageView);
@@ -113,9 +124,17 @@ public class FullImageActivity extends AppCompatActivity {
                     if (mimeType != null && mimeType.startsWith("video/")) {
                         fullImageView.setVisibility(View.GONE);
                         fullVideoView.setVisibility(View.VISIBLE);
-                        player = new ExoPlayer.Builder(context).build();
+                        final ExoPlayer.Builder builder = new ExoPlayer.Builder(context);
+                        final MediaItem.Builder itemBuilder = new MediaItem.Builder().setUri(imageUri);
+                        if (Constants.SMB_CONTENT_AUTHORITY.equals(imageUri.getAuthority())) {
+                            // Stream ranges straight from the share instead of copying the file through the provider
+                            builder.setMediaSourceFactory(new DefaultMediaSourceFactory(
+                                    SmbVideoCache.createDataSourceFactory(context)));
+                            itemBuilder.setCustomCacheKey(SmbVideoCache.cacheKeyFor(imageUri, contentVersion));
+                        }
+                        player = builder.build();
                         fullVideoView.setPlayer(player);
-                        final MediaItem mediaItem = MediaItem.fromUri(imageUri);
+                        final MediaItem mediaItem = itemBuilder.build();
                         player.setMediaItem(mediaItem);
                         player.prepare();
                         player.play();
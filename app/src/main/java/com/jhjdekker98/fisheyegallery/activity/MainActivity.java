@@ -5,40 +5,46 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.text.format.Formatter;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.app.AppCompatDelegate;
+import androidx.appcompat.view.ActionMode;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.appbar.MaterialToolbar;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import com.jhjdekker98.fisheyegallery.Constants;
 import com.jhjdekker98.fisheyegallery.R;
 import com.jhjdekker98.fisheyegallery.config.smb.SmbCredentials;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbTransferHelper;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbTransferQueue;
+import com.jhjdekker98.fisheyegallery.config.smb.TransferCallback;
 import com.jhjdekker98.fisheyegallery.model.FileListViewModel;
 import com.jhjdekker98.fisheyegallery.model.mediaindexer.IMediaIndexer;
 import com.jhjdekker98.fisheyegallery.model.mediaindexer.MediaStoreIndexer;
 import com.jhjdekker98.fisheyegallery.model.mediaindexer.SmbIndexer;
 import com.jhjdekker98.fisheyegallery.security.SecureStorageHelper;
 import com.jhjdekker98.fisheyegallery.ui.MediaAdapter;
-import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 public class MainActivity extends AppCompatActivity {
     private MediaAdapter adapter;
     private RecyclerView recyclerView;
     private FileListViewModel viewModel;
+    private SmbTransferHelper smbTransferHelper;
+    private MaterialToolbar toolbar;
+    private ActionMode actionMode;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -56,11 +62,38 @@ public class MainActivity extends AppCompatActivity {
         recyclerView = findViewById(R.id.recyclerView);
 
         // Toolbar
-        final MaterialToolbar toolbar = findViewById(R.id.toolbar);
+        toolbar = findViewById(R.id.toolbar);
         setSupportActionBar(toolbar);
 
+        // Transfers
+        smbTransferHelper = new SmbTransferHelper(this, new TransferCallback() {
+            @Override
+            public void onSuccess(String message) {
+                toolbar.setSubtitle(null);
+                Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onFailure(String message, Exception e) {
+                toolbar.setSubtitle(null);
+                Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onProgress(long bytesDone, long totalBytes, long bytesPerSecond) {
+                final String speed = Formatter.formatShortFileSize(MainActivity.this, bytesPerSecond) + "/s";
+                toolbar.setSubtitle(totalBytes > 0
+                        ? String.format("Moving files… %d%% · %s", bytesDone * 100 / totalBytes, speed)
+                        : "Moving files… " + speed);
+            }
+        });
+        // Pick up transfers that were still queued when the app was last closed
+        SmbTransferQueue.getInstance(this).resumePending();
+        if (savedInstanceState == null) SmbTransferQueue.getInstance(this).offerRetryOfFailed(this);
+
         // ViewModel
         adapter = new MediaAdapter(getContentResolver());
+        adapter.setSelectionListener(this::onSelectionChanged);
         final int columns = prefs.getInt(Constants.SHARED_PREFS_KEY_COLUMNS, 3);
         final GridLayoutManager layoutManager = new GridLayoutManager(this, columns);
         layoutManager.setSpanSizeLookup(new SpanSizeLookup(adapter, columns));
@@ -75,6 +108,13 @@ public class MainActivity extends AppCompatActivity {
         checkPermissions();
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // Only keep SMB change notifications running while the gallery is visible
+        if (viewModel != null) viewModel.stopWatching();
+    }
+
     private void checkPermissions() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
             final String[] permissions = new String[]{
@@ -122,6 +162,80 @@ public class MainActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    private void onSelectionChanged(int count) {
+        if (count == 0) {
+            if (actionMode != null) actionMode.finish();
+            return;
+        }
+        if (actionMode == null) actionMode = startSupportActionMode(selectionCallback);
+        if (actionMode != null) actionMode.setTitle(count + " selected");
+    }
+
+    private final ActionMode.Callback selectionCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.selection_menu, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            final List<Uri> local = new ArrayList<>();
+            final List<Uri> remote = new ArrayList<>();
+            for (Uri uri : adapter.getSelectedUris()) {
+                if (Constants.SMB_CONTENT_AUTHORITY.equals(uri.getAuthority())) {
+                    remote.add(uri);
+                } else {
+                    local.add(uri);
+                }
+            }
+
+            if (item.getItemId() == R.id.menu_move_to_cloud) {
+                if (local.isEmpty()) {
+                    Toast.makeText(MainActivity.this, "No local items selected", Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+                requestNotificationPermission();
+                smbTransferHelper.uploadToSmb(MainActivity.this, local);
+                mode.finish();
+                return true;
+            } else if (item.getItemId() == R.id.menu_move_to_local) {
+                if (remote.isEmpty()) {
+                    Toast.makeText(MainActivity.this, "No remote items selected", Toast.LENGTH_SHORT).show();
+                    return true;
+                }
+                requestNotificationPermission();
+                smbTransferHelper.downloadToLocal(MainActivity.this, remote);
+                mode.finish();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            actionMode = null;
+            adapter.clearSelection();
+        }
+    };
+
+    /**
+     * The transfer queue shows its progress as a notification; transfers run without it too.
+     */
+    private void requestNotificationPermission() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                && ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS)
+                != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.POST_NOTIFICATIONS},
+                    Constants.NOTIFICATION_PERMISSION_REQUEST_ID);
+        }
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
@@ -169,9 +283,8 @@ public class MainActivity extends AppCompatActivity {
             viewModel = new ViewModelProvider(this).get(FileListViewModel.class);
 
             // Observe updates
-            viewModel.getGroupedMediaItems().observe(this, grouped -> {
-                adapter.submitList(new ArrayList<>(grouped));
-            });
+            // Every posted timeline is an immutable snapshot, so it can be handed to the adapter as is
+            viewModel.getGroupedMediaItems().observe(this, adapter::submitList);
         }
 
         // Build indexers
@@ -184,26 +297,10 @@ public class MainActivity extends AppCompatActivity {
         }
 
         // -- Add SMB indexers
-        // TODO: See if we can refactor this somewhat and use SmbCredentials.getSmbCredentials
         final SecureStorageHelper ssh = SecureStorageHelper.getInstance(getApplicationContext());
-        final String json = ssh.retrieveDecrypted(Constants.SECURE_SHARED_PREFS_KEY_SMB_CONNS);
-        if (json != null && !json.isEmpty()) {
-            final Type type = new TypeToken<Map<String, SmbCredentials>>() {
-            }.getType();
-            Map<String, SmbCredentials> credsMap = new Gson().fromJson(json, type);
-
-            final int smbDepth = prefs.getInt(Constants.SHARED_PREFS_KEY_DEPTH, 0);
-
-            for (SmbCredentials creds : credsMap.values()) {
-                indexers.add(new SmbIndexer(
-                        creds.host,
-                        creds.share,
-                        creds.username,
-                        creds.password,
-                        creds.rootPath,
-                        smbDepth
-                ));
-            }
+        final int smbDepth = prefs.getInt(Constants.SHARED_PREFS_KEY_DEPTH, 0);
+        for (SmbCredentials creds : SmbCredentials.getSmbCredentials(ssh).values()) {
+            indexers.add(new SmbIndexer(this, creds, smbDepth));
         }
 
         // Start indexing
@@ -6,36 +6,41 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.ParcelFileDescriptor;
+import android.os.storage.StorageManager;
 import android.provider.MediaStore;
+import android.util.Log;
 import android.webkit.MimeTypeMap;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import com.hierynomus.msdtyp.AccessMask;
-import com.hierynomus.msfscc.FileAttributes;
 import com.hierynomus.msfscc.fileinformation.FileAllInformation;
-import com.hierynomus.mssmb2.SMB2CreateDisposition;
-import com.hierynomus.mssmb2.SMB2CreateOptions;
-import com.hierynomus.mssmb2.SMB2ShareAccess;
-import com.hierynomus.smbj.SMBClient;
-import com.hierynomus.smbj.auth.AuthenticationContext;
-import com.hierynomus.smbj.connection.Connection;
-import com.hierynomus.smbj.session.Session;
-import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.mssmb2.SMBApiException;
 import com.jhjdekker98.fisheyegallery.Constants;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbBlockCache;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbBlockReader;
 import com.jhjdekker98.fisheyegallery.config.smb.SmbCredentials;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbHostLimiter;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbSessionPool;
+import com.jhjdekker98.fisheyegallery.model.mediacache.MediaCacheDatabase;
+import com.jhjdekker98.fisheyegallery.model.mediacache.MediaCacheItem;
 import com.jhjdekker98.fisheyegallery.security.SecureStorageHelper;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.UUID;
+import java.util.regex.Pattern;
 
 public class SmbContentProvider extends ContentProvider {
+    private static final String TAG = "SmbContentProvider";
+    private static final String TEMP_DIR = "smb_tmp";
+    private static final Pattern UUID_PATTERN =
+            Pattern.compile("[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
     private static final int SMB_FILE = 1;
+    // Slack for file systems that store modification times in whole seconds
+    private static final long TEMP_FILE_MTIME_SLACK_MS = 2_000;
     private static final UriMatcher matcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
@@ -44,6 +49,9 @@ public class SmbContentProvider extends ContentProvider {
 
     @Override
     public boolean onCreate() {
+        // Requests can come in while the purge runs; only files from before this process started are leftovers
+        final long purgeBefore = System.currentTimeMillis() - TEMP_FILE_MTIME_SLACK_MS;
+        new Thread(() -> purgeTempFiles(purgeBefore), TAG + "-purge").start();
         return true;
     }
 
@@ -59,20 +67,26 @@ public class SmbContentProvider extends ContentProvider {
             String shareName = segments.get(1);
             String smbPath = String.join("/", segments.subList(2, segments.size()));
 
-            // auth & connect
+            // query metadata over a pooled session
             final SecureStorageHelper ssh = SecureStorageHelper.getInstance(getContext().getApplicationContext());
-            Map<String, SmbCredentials> credsMap = SmbCredentials.getSmbCredentials(ssh);
-            SmbCredentials creds = credsMap.get(host + "/" + shareName);
-            SMBClient client = new SMBClient();
-            Connection connection = client.connect(host);
-            Session session = connection.authenticate(
-                    new AuthenticationContext(creds.username, creds.password.toCharArray(), null)
-            );
-            DiskShare share = (DiskShare) session.connectShare(shareName);
-
-            // query metadata
-            FileAllInformation info = share.getFileInformation(smbPath);
-            long lastModified = info.getBasicInformation().getLastWriteTime().toEpochMillis();
+            SmbCredentials creds = SmbCredentials.getForUri(ssh, uri);
+            if (creds == null)
+                throw new FileNotFoundException("No credentials for SMB share " + host + "/" + shareName);
+            long lastModified;
+            try {
+                FileAllInformation info = SmbSessionPool.getInstance().execute(creds,
+                        SmbHostLimiter.Op.METADATA, share -> share.getFileInformation(smbPath));
+                lastModified = info.getBasicInformation().getLastWriteTime().toEpochMillis();
+            } catch (SMBApiException e) {
+                throw e;
+            } catch (IOException e) {
+                // Host unreachable: answer from the media cache rather than reporting the file as gone
+                final MediaCacheItem cached = MediaCacheDatabase.getInstance(getContext()).mediaCacheDao()
+                        .get(uri.toString());
+                if (cached == null) throw e;
+                Log.d(TAG, "Serving cached metadata for " + uri + ": " + e.getMessage());
+                lastModified = cached.lastModified;
+            }
 
             // build cursor
             MatrixCursor cursor = new MatrixCursor(new String[]{
@@ -80,12 +94,6 @@ public class SmbContentProvider extends ContentProvider {
             });
             cursor.addRow(new Object[]{lastModified});
 
-            // cleanup
-            share.close();
-            session.close();
-            connection.close();
-            client.close();
-
             return cursor;
         } catch (Exception e) {
             e.printStackTrace();
@@ -137,55 +145,78 @@ public class SmbContentProvider extends ContentProvider {
 
             // Retrieve credentials from SecureStorageHelper
             final SecureStorageHelper ssh = SecureStorageHelper.getInstance(getContext().getApplicationContext());
-            Map<String, SmbCredentials> credsMap = SmbCredentials.getSmbCredentials(ssh);
-            if (credsMap == null) credsMap = new HashMap<>();
-
-            SmbCredentials creds = credsMap.get(host + "/" + shareName);
+            SmbCredentials creds = SmbCredentials.getForUri(ssh, uri);
             if (creds == null)
                 throw new FileNotFoundException("No credentials for SMB share " + host + "/" + shareName);
 
-            // Connect to SMB
-            SMBClient client = new SMBClient();
-            Connection connection = client.connect(host);
-            Session session = connection.authenticate(
-                    new com.hierynomus.smbj.auth.AuthenticationContext(
-                            creds.username, creds.password.toCharArray(), null)
-            );
-            DiskShare share = (DiskShare) session.connectShare(shareName);
-
-            // Open remote file
-            com.hierynomus.smbj.share.File smbFile = share.openFile(
-                    smbPath,
-                    EnumSet.of(AccessMask.GENERIC_READ),
-                    EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
-                    EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ),
-                    SMB2CreateDisposition.FILE_OPEN,
-                    EnumSet.of(SMB2CreateOptions.FILE_NON_DIRECTORY_FILE)
-            );
-
-            // Copy to a temporary cache file
-            java.io.File cacheFile = new java.io.File(getContext().getCacheDir(), UUID.randomUUID().toString());
-            try (InputStream in = smbFile.getInputStream();
-                 FileOutputStream out = new FileOutputStream(cacheFile)) {
-                byte[] buffer = new byte[Constants.BUFFER_SIZE];
-                int read;
-                while ((read = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, read);
+            // Stream the remote file on demand where the platform supports proxy descriptors
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                final SmbProxyFileCallback callback = SmbProxyFileCallback.open(getContext(), creds, smbPath);
+                final StorageManager storageManager = getContext().getSystemService(StorageManager.class);
+                try {
+                    return storageManager.openProxyFileDescriptor(
+                            ParcelFileDescriptor.MODE_READ_ONLY, callback, callback.getHandler());
+                } catch (IOException e) {
+                    callback.onRelease();
+                    throw e;
                 }
             }
-
-            // Close SMB resources
-            smbFile.close();
-            share.close();
-            session.close();
-            connection.close();
-            client.close();
-
-            return ParcelFileDescriptor.open(cacheFile, ParcelFileDescriptor.MODE_READ_ONLY);
+            return openTempCopy(creds, smbPath);
 
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("SMB open failed: " + e.getMessage(), e);
         }
     }
+
+    /**
+     * Fallback for platforms without proxy file descriptors: copy the file (through the block cache) to a
+     * temporary file that is unlinked as soon as the descriptor is open, so it is reclaimed when the caller
+     * closes it.
+     */
+    private ParcelFileDescriptor openTempCopy(SmbCredentials creds, String smbPath) throws IOException {
+        final java.io.File tempDir = getTempDir();
+        final java.io.File cacheFile = new java.io.File(tempDir, UUID.randomUUID().toString());
+        try (InputStream in = SmbBlockReader.open(getContext(), creds, smbPath).openStream();
+             FileOutputStream out = new FileOutputStream(cacheFile)) {
+            byte[] buffer = new byte[SmbBlockCache.BLOCK_SIZE]; // Whole blocks, as the stream hands them out
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+
+        try {
+            return ParcelFileDescriptor.open(cacheFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        } finally {
+            if (!cacheFile.delete()) Log.w(TAG, "Failed to unlink temp file " + cacheFile);
+        }
+    }
+
+    private java.io.File getTempDir() {
+        final java.io.File tempDir = new java.io.File(getContext().getCacheDir(), TEMP_DIR);
+        if (!tempDir.exists() && !tempDir.mkdirs()) Log.w(TAG, "Failed to create " + tempDir);
+        return tempDir;
+    }
+
+    /**
+     * Remove temp copies left behind by earlier versions (UUID-named files in the cache root) or by a
+     * process that died before unlinking them. Files modified after {@code purgeBefore} may be copies
+     * being written right now, and are left alone.
+     */
+    private void purgeTempFiles(long purgeBefore) {
+        final java.io.File cacheDir = getContext().getCacheDir();
+        final java.io.File[] leftovers = cacheDir.listFiles((dir, name) -> UUID_PATTERN.matcher(name).matches());
+        if (leftovers != null) {
+            for (java.io.File f : leftovers) {
+                if (f.lastModified() < purgeBefore) f.delete();
+            }
+        }
+        final java.io.File[] temps = new java.io.File(cacheDir, TEMP_DIR).listFiles();
+        if (temps != null) {
+            for (java.io.File f : temps) {
+                if (f.lastModified() < purgeBefore) f.delete();
+            }
+        }
+    }
 }
@@ -0,0 +1,100 @@
+package com.jhjdekker98.fisheyegallery.config.provider;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ProxyFileDescriptorCallback;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+import androidx.annotation.RequiresApi;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbBlockCache;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbBlockReader;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbCredentials;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Backs a proxy file descriptor with ranged SMB reads, so readers of an SMB file only transfer the
+ * pages they actually touch. Pages come from the persistent {@link SmbBlockCache} when possible, and the
+ * most recently used ones are also kept in memory to make seeks and re-reads (e.g. EXIF parsers jumping
+ * around the header) cheap. Sequential reads, like a player streaming a video, trigger read-ahead.
+ */
+@RequiresApi(api = Build.VERSION_CODES.O)
+public class SmbProxyFileCallback extends ProxyFileDescriptorCallback {
+    private static final String TAG = "SmbProxyFileCallback";
+    private static final int MAX_CACHED_PAGES = 16;
+
+    private final SmbBlockReader reader;
+    private final HandlerThread handlerThread;
+    private final Handler handler;
+    private final Map<Long, byte[]> pages = new LinkedHashMap<Long, byte[]>(MAX_CACHED_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > MAX_CACHED_PAGES;
+        }
+    };
+
+    private SmbProxyFileCallback(SmbBlockReader reader, String path) {
+        this.reader = reader;
+        this.handlerThread = new HandlerThread(TAG + ":" + path);
+        handlerThread.start();
+        this.handler = new Handler(handlerThread.getLooper());
+    }
+
+    /**
+     * Look up the remote file version and create a callback for it. Fails if the file does not exist.
+     */
+    public static SmbProxyFileCallback open(Context context, SmbCredentials creds, String path) throws IOException {
+        return new SmbProxyFileCallback(SmbBlockReader.open(context, creds, path), path);
+    }
+
+    public Handler getHandler() {
+        return handler;
+    }
+
+    @Override
+    public long onGetSize() {
+        return reader.getSize();
+    }
+
+    @Override
+    public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+        int copied = 0;
+        try {
+            while (copied < size && offset + copied < reader.getSize()) {
+                final long position = offset + copied;
+                final long pageIndex = position / SmbBlockCache.BLOCK_SIZE;
+                final byte[] page = getPage(pageIndex);
+                final int pageOffset = (int) (position - pageIndex * SmbBlockCache.BLOCK_SIZE);
+                if (pageOffset >= page.length) break; // File shrank remotely
+
+                final int count = Math.min(size - copied, page.length - pageOffset);
+                System.arraycopy(page, pageOffset, data, copied, count);
+                copied += count;
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Read failed at " + offset, e);
+            throw new ErrnoException("onRead", OsConstants.EIO);
+        }
+        return copied;
+    }
+
+    @Override
+    public void onRelease() {
+        pages.clear();
+        reader.close();
+        handlerThread.quitSafely();
+    }
+
+    private byte[] getPage(long pageIndex) throws IOException {
+        byte[] page = pages.get(pageIndex);
+        if (page == null) {
+            page = reader.readBlockAhead(pageIndex); // Players read sequentially; decoders mostly don't
+            pages.put(pageIndex, page);
+        }
+        return page;
+    }
+}
@@ -0,0 +1,282 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.content.Context;
+import android.util.Log;
+import com.jhjdekker98.fisheyegallery.Constants;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent, size-bounded block cache for SMB file contents.
+ * <p>
+ * Blocks are keyed by host/share/path together with the remote size and last-write time, so a file that
+ * changes on the server gets a fresh key and its stale blocks simply age out. Blocks are evicted least
+ * recently used first once the cache exceeds {@link Constants#SMB_BLOCK_CACHE_MAX_BYTES}.
+ * <p>
+ * Crash safety: each block is written to a temporary file and renamed into place before it is recorded
+ * in an append-only journal. On start-up the journal is replayed and any file it does not account for
+ * (half-written blocks, blocks written after the last journal flush) is deleted. Blocks aren't synced to
+ * disk one by one; a block that is shorter than its journal entry is dropped when read and fetched again.
+ */
+public class SmbBlockCache {
+    public static final int BLOCK_SIZE = 128 * 1024;
+    private static final String TAG = "SmbBlockCache";
+    private static final String DIR_NAME = "smb_blocks";
+    private static final String JOURNAL = "journal";
+    private static final String JOURNAL_TMP = "journal.tmp";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String OP_PUT = "PUT";
+    private static final String OP_READ = "READ";
+    private static final String OP_DEL = "DEL";
+    private static SmbBlockCache instance;
+
+    private final File dir;
+    private final long maxBytes;
+    // Block file name -> length, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+    private int journalLines = 0;
+    private Writer journal;
+
+    private SmbBlockCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.exists() && !dir.mkdirs()) Log.w(TAG, "Failed to create " + dir);
+        readJournal();
+        deleteUntracked();
+        rewriteJournal();
+    }
+
+    public static synchronized SmbBlockCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new SmbBlockCache(
+                    new File(context.getApplicationContext().getCacheDir(), DIR_NAME),
+                    Constants.SMB_BLOCK_CACHE_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * Build the cache key identifying one version of a remote file.
+     */
+    public static String keyFor(SmbCredentials creds, String path, long size, long lastWriteTime) {
+        final String identity = creds.host + "/" + creds.share + "/" + path + "|" + size + "|" + lastWriteTime;
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(identity.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return a cached block, or {@code null} if it is not cached.
+     */
+    public byte[] get(String key, long blockIndex) {
+        final String name = blockName(key, blockIndex);
+        final Long length;
+        synchronized (this) {
+            length = entries.get(name);
+            if (length == null) return null;
+            appendJournal(OP_READ, name, false);
+        }
+
+        final byte[] data = new byte[length.intValue()];
+        try (FileInputStream in = new FileInputStream(new File(dir, name))) {
+            int read = 0;
+            while (read < data.length) {
+                final int n = in.read(data, read, data.length - read);
+                if (n < 0) throw new IOException("Truncated block " + name);
+                read += n;
+            }
+            return data;
+        } catch (IOException e) {
+            // Evicted concurrently or damaged on disk; forget it and let the caller re-fetch
+            Log.w(TAG, "Failed to read block " + name, e);
+            remove(name);
+            return null;
+        }
+    }
+
+    public synchronized boolean contains(String key, long blockIndex) {
+        return entries.containsKey(blockName(key, blockIndex));
+    }
+
+    public void put(String key, long blockIndex, byte[] data, int length) {
+        final String name = blockName(key, blockIndex);
+        final File tmp = new File(dir, name + TMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            // Not synced: it's a cache, and a block cut short by a power loss fails the length check on read
+            out.write(data, 0, length);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write block " + name, e);
+            tmp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (!tmp.renameTo(new File(dir, name))) {
+                tmp.delete();
+                return;
+            }
+            final Long previous = entries.put(name, (long) length);
+            if (previous != null) totalBytes -= previous;
+            totalBytes += length;
+            appendJournal(OP_PUT, name + " " + length, true);
+            trimToSize();
+        }
+    }
+
+    public synchronized long getSize() {
+        return totalBytes;
+    }
+
+    private synchronized void remove(String name) {
+        final Long length = entries.remove(name);
+        if (length == null) return;
+        totalBytes -= length;
+        new File(dir, name).delete();
+        appendJournal(OP_DEL, name, true);
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            final Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.getValue();
+            new File(dir, eldest.getKey()).delete();
+            appendJournal(OP_DEL, eldest.getKey(), false);
+        }
+        flushJournal();
+        if (journalLines > 2 * entries.size() + 1000) rewriteJournal();
+    }
+
+    // --- Journal ---
+
+    private void readJournal() {
+        final File file = new File(dir, JOURNAL);
+        if (!file.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split(" ");
+                if (parts.length < 2) continue; // Torn final line after a crash
+                switch (parts[0]) {
+                    case OP_PUT:
+                        if (parts.length < 3) continue;
+                        final Long previous = entries.put(parts[1], Long.parseLong(parts[2]));
+                        if (previous != null) totalBytes -= previous;
+                        totalBytes += Long.parseLong(parts[2]);
+                        break;
+                    case OP_READ:
+                        entries.get(parts[1]); // Touch for access order
+                        break;
+                    case OP_DEL:
+                        final Long removed = entries.remove(parts[1]);
+                        if (removed != null) totalBytes -= removed;
+                        break;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Corrupt block cache journal, starting over", e);
+            entries.clear();
+            totalBytes = 0;
+        }
+    }
+
+    private void deleteUntracked() {
+        final File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            final String name = f.getName();
+            if (name.equals(JOURNAL)) continue;
+            final Long length = entries.get(name);
+            if (length == null || f.length() != length) {
+                f.delete();
+                if (length != null) {
+                    entries.remove(name);
+                    totalBytes -= length;
+                }
+            }
+        }
+        // Entries whose files have gone missing
+        final Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            if (!new File(dir, entry.getKey()).exists()) {
+                totalBytes -= entry.getValue();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Compact the journal to one PUT line per entry, in access order.
+     */
+    private synchronized void rewriteJournal() {
+        closeJournal();
+        final File tmp = new File(dir, JOURNAL_TMP);
+        try (Writer writer = new BufferedWriter(new FileWriter(tmp))) {
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                writer.write(OP_PUT + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to compact block cache journal", e);
+            return;
+        }
+        if (!tmp.renameTo(new File(dir, JOURNAL))) {
+            Log.w(TAG, "Failed to replace block cache journal");
+        }
+        journalLines = entries.size();
+    }
+
+    private void appendJournal(String op, String args, boolean flush) {
+        try {
+            if (journal == null) {
+                journal = new BufferedWriter(new FileWriter(new File(dir, JOURNAL), true));
+            }
+            journal.write(op + " " + args + "\n");
+            journalLines++;
+            if (flush) journal.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to append to block cache journal", e);
+        }
+    }
+
+    private void flushJournal() {
+        try {
+            if (journal != null) journal.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to flush block cache journal", e);
+        }
+    }
+
+    private void closeJournal() {
+        try {
+            if (journal != null) journal.close();
+        } catch (IOException ignored) {
+        }
+        journal = null;
+    }
+
+    private static String blockName(String key, long blockIndex) {
+        return key + "." + blockIndex;
+    }
+}
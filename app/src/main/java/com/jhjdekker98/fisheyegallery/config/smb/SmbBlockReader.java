@@ -0,0 +1,393 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.content.Context;
+import com.jhjdekker98.fisheyegallery.Constants;
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+import com.jhjdekker98.fisheyegallery.util.RandomAccessSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Random-access reader for one version of a remote SMB file, reading in {@link SmbBlockCache#BLOCK_SIZE}
+ * blocks through the shared {@link SmbBlockCache}. Blocks that are not cached are fetched with ranged reads
+ * over a pooled session and stored for next time.
+ * <p>
+ * Sequential readers ({@link #openStream()}, {@link #readBlockAhead(long)}) get read-ahead: the blocks are
+ * fetched in runs of {@link Constants#SMB_READ_SIZE} bytes, with up to {@link Constants#SMB_READ_PIPELINE_DEPTH}
+ * runs in flight at once, so the link stays busy while the consumer processes earlier data.
+ * <p>
+ * Not thread-safe; each reader is meant to be used by one consumer at a time. The exception is
+ * {@link #close()}, which may be called from another thread to abort a read in progress.
+ */
+public class SmbBlockReader implements Closeable {
+    private static final int BLOCKS_PER_RUN = Math.max(1, Constants.SMB_READ_SIZE / SmbBlockCache.BLOCK_SIZE);
+    private static final ExecutorService READ_AHEAD = Executors.newCachedThreadPool(new ThreadFactory());
+    private final SmbCredentials creds;
+    private final String path;
+    private final long size;
+    private final long lastWriteTime;
+    private final String cacheKey;
+    // Null when the reader bypasses the block cache
+    private final SmbBlockCache cache;
+
+    // The open handle and the pooled share it belongs to; re-opened when the pool reconnects
+    private File file;
+    private DiskShare fileShare;
+    private boolean closed = false;
+
+    // Runs being read ahead, by index of their first block
+    private final Map<Long, Future<byte[][]>> runs = new ConcurrentHashMap<>();
+    private long lastBlockIndex = -1;
+
+    private SmbBlockReader(Context context, SmbCredentials creds, String path, long size, long lastWriteTime,
+                           boolean useCache) {
+        this.creds = creds;
+        this.path = path;
+        this.size = size;
+        this.lastWriteTime = lastWriteTime;
+        this.cacheKey = SmbBlockCache.keyFor(creds, path, size, lastWriteTime);
+        this.cache = useCache ? SmbBlockCache.getInstance(context) : null;
+    }
+
+    /**
+     * Look up the current size and last-write time of a remote file and open a reader for that version.
+     */
+    public static SmbBlockReader open(Context context, SmbCredentials creds, String path) throws IOException {
+        return open(context, creds, path, true);
+    }
+
+    /**
+     * Like {@link #open(Context, SmbCredentials, String)}, but without the block cache, for callers that do
+     * their own caching and would otherwise store everything twice.
+     */
+    public static SmbBlockReader openUncached(Context context, SmbCredentials creds, String path) throws IOException {
+        return open(context, creds, path, false);
+    }
+
+    private static SmbBlockReader open(Context context, SmbCredentials creds, String path, boolean useCache)
+            throws IOException {
+        final FileAllInformation info = SmbSessionPool.getInstance().execute(creds,
+                SmbHostLimiter.Op.METADATA, share -> share.getFileInformation(path));
+        return new SmbBlockReader(context, creds, path,
+                info.getStandardInformation().getEndOfFile(),
+                info.getBasicInformation().getLastWriteTime().toEpochMillis(),
+                useCache);
+    }
+
+    /**
+     * Open a reader for a file version that is already known, e.g. from a directory listing.
+     */
+    public static SmbBlockReader open(Context context, SmbCredentials creds, String path,
+                                      long size, long lastWriteTime) {
+        return new SmbBlockReader(context, creds, path, size, lastWriteTime, true);
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastWriteTime() {
+        return lastWriteTime;
+    }
+
+    public int getBlockCount() {
+        return (int) ((size + SmbBlockCache.BLOCK_SIZE - 1) / SmbBlockCache.BLOCK_SIZE);
+    }
+
+    /**
+     * Read one block; the last block of the file may be shorter than {@link SmbBlockCache#BLOCK_SIZE}.
+     */
+    public byte[] readBlock(long blockIndex) throws IOException {
+        final byte[] cached = cache == null ? null : cache.get(cacheKey, blockIndex);
+        if (cached != null) return cached;
+
+        final long start = blockIndex * SmbBlockCache.BLOCK_SIZE;
+        final int length = (int) Math.max(0, Math.min(SmbBlockCache.BLOCK_SIZE, size - start));
+        final byte[] block = new byte[length];
+        final int read = readRemote(block, 0, length, start);
+        if (read < length) {
+            // The file changed underneath us; don't cache a short block under this version's key
+            final byte[] truncated = new byte[read];
+            System.arraycopy(block, 0, truncated, 0, read);
+            return truncated;
+        }
+        if (cache != null) cache.put(cacheKey, blockIndex, block, length);
+        return block;
+    }
+
+    /**
+     * Like {@link #readBlock(long)}, but if the block follows the previously requested one, the next runs of
+     * blocks are requested in the background so they are ready by the time they are needed. Random access
+     * doesn't trigger read-ahead.
+     */
+    public byte[] readBlockAhead(long blockIndex) throws IOException {
+        final boolean sequential = blockIndex == lastBlockIndex + 1 || blockIndex == lastBlockIndex;
+        lastBlockIndex = blockIndex;
+
+        final long runStart = blockIndex - blockIndex % BLOCKS_PER_RUN;
+        if (sequential) {
+            // Drop runs we've moved past, then keep the pipeline full
+            final Iterator<Map.Entry<Long, Future<byte[][]>>> it = runs.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<Long, Future<byte[][]>> entry = it.next();
+                if (entry.getKey() < runStart) {
+                    entry.getValue().cancel(false);
+                    it.remove();
+                }
+            }
+            for (int i = 0; i < Constants.SMB_READ_PIPELINE_DEPTH; i++) {
+                final long start = runStart + (long) i * BLOCKS_PER_RUN;
+                if (start >= getBlockCount()) break;
+                if (!runs.containsKey(start) && !isRunCached(start)) {
+                    runs.put(start, READ_AHEAD.submit(() -> readRun(start)));
+                }
+            }
+        }
+
+        final Future<byte[][]> run = runs.get(runStart);
+        if (run == null) return readBlock(blockIndex);
+        try {
+            final byte[][] blocks = run.get();
+            final int offset = (int) (blockIndex - runStart);
+            if (offset < blocks.length && blocks[offset] != null) return blocks[offset];
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + path);
+        }
+        return readBlock(blockIndex);
+    }
+
+    /**
+     * Read {@code length} bytes starting at {@code position} into {@code buffer}. Returns the number of bytes
+     * read, which is only less than {@code length} at the end of the file.
+     */
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        int copied = 0;
+        while (copied < length && position + copied < size) {
+            final long current = position + copied;
+            final long blockIndex = current / SmbBlockCache.BLOCK_SIZE;
+            final byte[] block = readBlock(blockIndex);
+            final int blockOffset = (int) (current - blockIndex * SmbBlockCache.BLOCK_SIZE);
+            if (blockOffset >= block.length) break;
+
+            final int count = Math.min(length - copied, block.length - blockOffset);
+            System.arraycopy(block, blockOffset, buffer, offset + copied, count);
+            copied += count;
+        }
+        return copied;
+    }
+
+    /**
+     * Positional view meant for small metadata probes: blocks that are already cached are used, but misses
+     * are served by ranged reads of just the requested bytes and are not added to the cache, so probing
+     * thousands of file headers doesn't flush the cache or write the headers to flash.
+     */
+    public RandomAccessSource asProbeSource() {
+        return new RandomAccessSource() {
+            @Override
+            public long length() {
+                return size;
+            }
+
+            @Override
+            public int readAt(long position, byte[] buffer, int offset, int length) throws IOException {
+                final int count = (int) Math.max(0, Math.min(length, size - position));
+                final long blockIndex = position / SmbBlockCache.BLOCK_SIZE;
+                final int blockOffset = (int) (position - blockIndex * SmbBlockCache.BLOCK_SIZE);
+                if (blockOffset + count <= SmbBlockCache.BLOCK_SIZE) {
+                    final byte[] cached = cache == null ? null : cache.get(cacheKey, blockIndex);
+                    if (cached != null && blockOffset + count <= cached.length) {
+                        System.arraycopy(cached, blockOffset, buffer, offset, count);
+                        return count;
+                    }
+                }
+                return readRemote(buffer, offset, count, position);
+            }
+        };
+    }
+
+    /**
+     * Sequential stream over the whole file, starting at the first byte.
+     */
+    public InputStream openStream() {
+        return new BlockInputStream();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        // Reads already on the wire finish (and get cached); queued ones fail fast on the closed handle
+        for (Future<byte[][]> run : runs.values()) run.cancel(false);
+        runs.clear();
+        if (file != null) file.closeSilently();
+        file = null;
+        fileShare = null;
+    }
+
+    private boolean isRunCached(long runStart) {
+        if (cache == null) return false;
+        final long end = Math.min(runStart + BLOCKS_PER_RUN, getBlockCount());
+        for (long i = runStart; i < end; i++) {
+            if (!cache.contains(cacheKey, i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read a run of blocks with a single large request, and cache them. Blocks past the end of a file that
+     * shrank remotely are {@code null}.
+     */
+    private byte[][] readRun(long runStart) throws IOException {
+        final long start = runStart * SmbBlockCache.BLOCK_SIZE;
+        final int length = (int) Math.max(0, Math.min((long) BLOCKS_PER_RUN * SmbBlockCache.BLOCK_SIZE, size - start));
+        final byte[] data = new byte[length];
+        final int read = readRemote(data, 0, length, start);
+
+        final byte[][] blocks = new byte[BLOCKS_PER_RUN][];
+        for (int i = 0; i < BLOCKS_PER_RUN; i++) {
+            final int blockStart = i * SmbBlockCache.BLOCK_SIZE;
+            final int expected = Math.min(SmbBlockCache.BLOCK_SIZE, length - blockStart);
+            if (expected <= 0 || blockStart + expected > read) break;
+            final byte[] block = new byte[expected];
+            System.arraycopy(data, blockStart, block, 0, expected);
+            if (cache != null) cache.put(cacheKey, runStart + i, block, expected);
+            blocks[i] = block;
+        }
+        return blocks;
+    }
+
+    private int readRemote(byte[] buffer, int offset, int length, long start) throws IOException {
+        try (SmbSessionPool.Lease lease = SmbSessionPool.getInstance().lease(creds)) {
+            try {
+                final File smbFile = getFile(lease.getShare());
+                final long started = System.nanoTime();
+                int read = 0;
+                while (read < length) {
+                    final int n = smbFile.read(buffer, start + read, offset + read, length - read);
+                    if (n <= 0) break;
+                    read += n;
+                }
+                lease.recordLatency(SmbHostLimiter.Op.forRead(length), System.nanoTime() - started);
+                return read;
+            } catch (SMBApiException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                lease.invalidate();
+                throw e;
+            }
+        }
+    }
+
+    private synchronized File getFile(DiskShare share) throws IOException {
+        if (closed) throw new InterruptedIOException("Reader for " + path + " was closed");
+        if (file == null || fileShare != share) {
+            if (file != null) file.closeSilently();
+            file = share.openFile(
+                    path,
+                    EnumSet.of(AccessMask.GENERIC_READ),
+                    EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                    EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ),
+                    SMB2CreateDisposition.FILE_OPEN,
+                    EnumSet.of(SMB2CreateOptions.FILE_NON_DIRECTORY_FILE));
+            fileShare = share;
+        }
+        return file;
+    }
+
+    private static class ThreadFactory implements java.util.concurrent.ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "SmbReadAhead-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private class BlockInputStream extends InputStream {
+        private long position = 0;
+        private long markPosition = 0;
+        private boolean closed = false;
+        private long blockIndex = -1;
+        private byte[] block;
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            return read(single, 0, 1) <= 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            if (len == 0) return 0;
+            if (position >= size) return -1;
+
+            // Keep the current block around, so small reads don't go back to the cache for every call
+            final long index = position / SmbBlockCache.BLOCK_SIZE;
+            if (index != blockIndex) {
+                block = readBlockAhead(index);
+                blockIndex = index;
+            }
+            final int blockOffset = (int) (position - index * SmbBlockCache.BLOCK_SIZE);
+            if (blockOffset >= block.length) return -1;
+
+            final int n = Math.min(len, block.length - blockOffset);
+            System.arraycopy(block, blockOffset, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            final long skipped = Math.max(0, Math.min(n, size - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            markPosition = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = markPosition;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            SmbBlockReader.this.close();
+        }
+    }
+}
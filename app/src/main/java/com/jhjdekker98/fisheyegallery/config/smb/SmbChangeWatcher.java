@@ -0,0 +1,252 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.FileNotifyAction;
+import com.hierynomus.msfscc.directory.FileNotifyInformation;
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.mssmb2.SMB2CompletionFilter;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.mssmb2.messages.SMB2ChangeNotifyResponse;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.share.Directory;
+import com.hierynomus.smbj.share.DiskShare;
+import com.jhjdekker98.fisheyegallery.model.mediaindexer.MediaRecord;
+import com.jhjdekker98.fisheyegallery.model.mediaindexer.SmbIndexer;
+import com.jhjdekker98.fisheyegallery.util.FileHelper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Watches the root path of an SMB connection with SMB2 CHANGE_NOTIFY and reports media files that were
+ * created, changed, deleted or renamed anywhere below it.
+ * <p>
+ * One change request is kept outstanding on a pooled session at all times, so an idle share costs no
+ * traffic at all. When the server reports more changes than fit in a response, or the watch had to be
+ * re-established after a dropped connection, the listener is asked to re-index instead.
+ */
+public class SmbChangeWatcher {
+    private static final String TAG = "SmbChangeWatcher";
+    private static final long MIN_RETRY_DELAY_MS = 5_000;
+    private static final long MAX_RETRY_DELAY_MS = 120_000;
+    private static final Set<SMB2CompletionFilter> FILTER = EnumSet.of(
+            SMB2CompletionFilter.FILE_NOTIFY_CHANGE_FILE_NAME,
+            SMB2CompletionFilter.FILE_NOTIFY_CHANGE_DIR_NAME,
+            SMB2CompletionFilter.FILE_NOTIFY_CHANGE_LAST_WRITE);
+
+    private final Context context;
+    private final SmbCredentials creds;
+    private final String rootPath;
+    private final Listener listener;
+    private volatile boolean stopped = false;
+    private volatile Directory directory;
+    private volatile Future<SMB2ChangeNotifyResponse> pending;
+    private Thread thread;
+    private final Object wake = new Object();
+    // Retry as soon as the host answers again, instead of at the end of the current back-off
+    private final SmbHostHealth.Listener healthListener = (host, available) -> {
+        if (!available || !host.equals(creds.host)) return;
+        synchronized (wake) {
+            wake.notifyAll();
+        }
+    };
+
+    public SmbChangeWatcher(Context context, SmbCredentials creds, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.creds = creds;
+        this.rootPath = creds.getRootPath();
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(this::run, TAG + ":" + creds.host + "/" + creds.share);
+        thread.setDaemon(true);
+        SmbHostHealth.getInstance().addListener(healthListener);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        SmbHostHealth.getInstance().removeListener(healthListener);
+        final Future<SMB2ChangeNotifyResponse> future = pending;
+        if (future != null) future.cancel(true);
+        final Directory dir = directory;
+        if (dir != null) dir.closeSilently();
+        if (thread != null) thread.interrupt();
+    }
+
+    private void run() {
+        long retryDelay = MIN_RETRY_DELAY_MS;
+        boolean resumed = false;
+        while (!stopped) {
+            // The watch is parked on the server, so it mustn't hold one of the host's slots
+            try (SmbSessionPool.Lease lease = SmbSessionPool.getInstance().leaseUnmetered(creds)) {
+                try {
+                    watch(lease.getShare(), resumed);
+                    retryDelay = MIN_RETRY_DELAY_MS;
+                } catch (SMBApiException e) {
+                    // E.g. the root was removed, or the server doesn't support change notifications
+                    Log.w(TAG, "Watching " + creds.host + "/" + creds.share + " failed: " + e.getStatus());
+                } catch (RuntimeException e) {
+                    if (!stopped) {
+                        Log.w(TAG, "Lost watch on " + creds.host + "/" + creds.share, e);
+                        lease.invalidate();
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to connect to " + creds.host + "/" + creds.share, e);
+            }
+            if (stopped) break;
+
+            // Changes may have been missed until the watch is back
+            resumed = true;
+            try {
+                synchronized (wake) {
+                    wake.wait(retryDelay);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MS);
+        }
+    }
+
+    private void watch(DiskShare share, boolean resumed) {
+        try (Directory dir = share.openDirectory(
+                rootPath,
+                EnumSet.of(AccessMask.FILE_LIST_DIRECTORY, AccessMask.FILE_READ_ATTRIBUTES),
+                EnumSet.of(FileAttributes.FILE_ATTRIBUTE_DIRECTORY),
+                SMB2ShareAccess.ALL, // Don't stand in the way of others renaming or deleting things
+                SMB2CreateDisposition.FILE_OPEN,
+                EnumSet.of(SMB2CreateOptions.FILE_DIRECTORY_FILE))) {
+            directory = dir;
+            if (stopped) return;
+            if (resumed) listener.onRescanNeeded(creds);
+
+            while (!stopped) {
+                final Future<SMB2ChangeNotifyResponse> future = dir.watchAsync(FILTER, true);
+                pending = future;
+                final SMB2ChangeNotifyResponse response;
+                try {
+                    response = future.get();
+                } catch (InterruptedException | CancellationException e) {
+                    return;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                    throw new SMBRuntimeException(e.getCause());
+                }
+
+                final long status = response.getHeader().getStatusCode();
+                if (status == NtStatus.STATUS_NOTIFY_CLEANUP.getValue()) return; // Handle closed
+                if (status == NtStatus.STATUS_NOTIFY_ENUM_DIR.getValue()) {
+                    // Too many changes to report individually
+                    listener.onRescanNeeded(creds);
+                    continue;
+                }
+                if (!response.isSuccess()) {
+                    throw new SMBApiException(response.getHeader(), "Change notification failed");
+                }
+                handleChanges(share, response.getFileNotifyInfoList());
+            }
+        } finally {
+            directory = null;
+            pending = null;
+        }
+    }
+
+    private void handleChanges(DiskShare share, List<FileNotifyInformation> changes) {
+        // Last action per path; a file that was added and then removed within one response is just removed
+        final Map<String, FileNotifyAction> actions = new LinkedHashMap<>();
+        for (FileNotifyInformation info : changes) {
+            final String name = info.getFileName().replace('\\', '/');
+            final String path = rootPath.isEmpty() ? name : rootPath + "/" + name;
+            actions.remove(path);
+            actions.put(path, info.getAction());
+        }
+
+        final List<MediaRecord> changed = new ArrayList<>();
+        final List<Uri> removed = new ArrayList<>();
+        boolean rescan = false;
+
+        for (Map.Entry<String, FileNotifyAction> entry : actions.entrySet()) {
+            final String path = entry.getKey();
+            final Uri uri = SmbIndexer.getContentUri(creds.host, creds.share, path);
+            switch (entry.getValue()) {
+                case FILE_ACTION_REMOVED:
+                case FILE_ACTION_REMOVED_BY_DELETE:
+                case FILE_ACTION_RENAMED_OLD_NAME:
+                    // Could be a directory as well; the listener drops everything below the URI too
+                    removed.add(uri);
+                    break;
+                case FILE_ACTION_ADDED:
+                case FILE_ACTION_RENAMED_NEW_NAME:
+                case FILE_ACTION_MODIFIED:
+                    final String mimeType = FileHelper.getFileMimeType(path);
+                    final boolean isMedia = mimeType != null
+                            && (mimeType.startsWith("image/") || mimeType.startsWith("video/"));
+                    // A directory only needs a look when it appears, not whenever its contents change
+                    if (!isMedia && entry.getValue() == FileNotifyAction.FILE_ACTION_MODIFIED) break;
+
+                    final FileAllInformation info;
+                    try {
+                        info = share.getFileInformation(path);
+                    } catch (SMBApiException e) {
+                        break; // Already gone again
+                    }
+                    if (info.getStandardInformation().isDirectory()) {
+                        // A directory moved in from elsewhere brings its contents without separate events
+                        if (entry.getValue() == FileNotifyAction.FILE_ACTION_RENAMED_NEW_NAME) rescan = true;
+                    } else if (isMedia) {
+                        // Dated by the capture date in the header where the format has one, so a photo copied
+                        // onto the share isn't filed under the day it was copied
+                        final long lastWriteTime = info.getBasicInformation().getLastWriteTime().toEpochMillis();
+                        final long size = info.getStandardInformation().getEndOfFile();
+                        changed.add(new MediaRecord(
+                                uri.toString(),
+                                uri,
+                                FileHelper.getSmbFileDate(context, creds, path, mimeType, size, lastWriteTime),
+                                lastWriteTime,
+                                mimeType,
+                                size));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (!removed.isEmpty()) listener.onMediaRemoved(creds, removed);
+        if (!changed.isEmpty()) listener.onMediaChanged(creds, changed);
+        if (rescan) listener.onRescanNeeded(creds);
+    }
+
+    /**
+     * Receives changes on the watcher thread.
+     */
+    public interface Listener {
+        void onMediaChanged(SmbCredentials creds, List<MediaRecord> records);
+
+        /**
+         * @param uris content URIs of removed files or directories; for a directory, everything below it is gone
+         */
+        void onMediaRemoved(SmbCredentials creds, List<Uri> uris);
+
+        void onRescanNeeded(SmbCredentials creds);
+    }
+}
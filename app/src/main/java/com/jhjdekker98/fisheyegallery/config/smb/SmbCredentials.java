@@ -1,11 +1,12 @@
 package com.jhjdekker98.fisheyegallery.config.smb;
 
+import android.net.Uri;
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import com.jhjdekker98.fisheyegallery.Constants;
 import com.jhjdekker98.fisheyegallery.security.SecureStorageHelper;
-import java.lang.reflect.Type;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class SmbCredentials {
@@ -15,32 +16,99 @@ public class SmbCredentials {
     public final String username;
     public final String password;
     public final String rootPath;
+    // Number of directory listings the indexer keeps in flight; null for the default
+    public final Integer crawlParallelism;
 
     public SmbCredentials(String host, String share, String username, String password, String rootPath) {
+        this(host, share, username, password, rootPath, null);
+    }
+
+    public SmbCredentials(String host, String share, String username, String password, String rootPath,
+                          Integer crawlParallelism) {
         this.host = host;
         this.share = share;
         this.username = username;
         this.password = password;
         this.rootPath = rootPath;
+        this.crawlParallelism = crawlParallelism;
+    }
+
+    public int getCrawlParallelism() {
+        return crawlParallelism == null || crawlParallelism < 1
+                ? Constants.SMB_CRAWL_PARALLELISM
+                : crawlParallelism;
+    }
+
+    /**
+     * @return the root path as used in share paths and content URIs: forward slashes, none at either end,
+     * and an empty string for the share's root
+     */
+    public String getRootPath() {
+        return normalizePath(rootPath);
+    }
+
+    /**
+     * @return a path relative to a share with forward slashes only, none repeated or at either end
+     */
+    public static String normalizePath(String path) {
+        if (path == null) return "";
+        final StringBuilder sb = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i) == '\\' ? '/' : path.charAt(i);
+            if (c == '/' && (sb.length() == 0 || sb.charAt(sb.length() - 1) == '/')) continue;
+            sb.append(c);
+        }
+        if (sb.length() > 0 && sb.charAt(sb.length() - 1) == '/') sb.setLength(sb.length() - 1);
+        return sb.toString();
     }
 
+    /**
+     * @return all SMB connections by host/share, from {@link SmbCredentialsRegistry}; the map can't be modified
+     */
     public static Map<String, SmbCredentials> getSmbCredentials(SecureStorageHelper ssh) {
-        String json = ssh.retrieveDecrypted(Constants.SECURE_SHARED_PREFS_KEY_SMB_CONNS);
-        if (json == null || json.isEmpty()) return new HashMap<>();
-        Type type = new TypeToken<Map<String, SmbCredentials>>() {
-        }.getType();
-        return new Gson().fromJson(json, type);
+        return SmbCredentialsRegistry.getInstance(ssh).getAll();
+    }
+
+    /**
+     * Find the credentials for an SMB content URI ({@code content://authority/host/share/path}).
+     *
+     * @return the credentials, or {@code null} if the URI is malformed or its share is not configured
+     */
+    public static SmbCredentials getForUri(SecureStorageHelper ssh, Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2) return null;
+        return SmbCredentialsRegistry.getInstance(ssh).get(segments.get(0) + "/" + segments.get(1));
+    }
+
+    /**
+     * @return the path of an SMB content URI relative to its share
+     */
+    public static String getPathForUri(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2) return "";
+        return String.join("/", segments.subList(2, segments.size()));
     }
 
     public static void saveSmbCredentials(SecureStorageHelper ssh, SmbCredentials creds) {
-        Map<String, SmbCredentials> credentialsMap = SmbCredentials.getSmbCredentials(ssh);
-        if (credentialsMap == null) credentialsMap = new HashMap<>();
+        final Map<String, SmbCredentials> credentialsMap = new HashMap<>(getSmbCredentials(ssh));
         credentialsMap.put(creds.host + "/" + creds.share, creds);
-        String serialized = new Gson().toJson(credentialsMap);
-        ssh.storeEncrypted(Constants.SECURE_SHARED_PREFS_KEY_SMB_CONNS, serialized);
+        store(ssh, credentialsMap);
+    }
+
+    /**
+     * Replace all SMB connections with the given ones, in a single write.
+     */
+    public static void setSmbCredentials(SecureStorageHelper ssh, Collection<SmbCredentials> credentials) {
+        final Map<String, SmbCredentials> credentialsMap = new HashMap<>();
+        for (SmbCredentials creds : credentials) credentialsMap.put(creds.host + "/" + creds.share, creds);
+        store(ssh, credentialsMap);
     }
 
     public static void clearSmbCredentials(SecureStorageHelper ssh) {
         ssh.storeEncrypted(Constants.SECURE_SHARED_PREFS_KEY_SMB_CONNS, EMPTY_MAP_JSON);
     }
+
+    private static void store(SecureStorageHelper ssh, Map<String, SmbCredentials> credentialsMap) {
+        ssh.storeEncrypted(Constants.SECURE_SHARED_PREFS_KEY_SMB_CONNS, new Gson().toJson(credentialsMap));
+    }
 }
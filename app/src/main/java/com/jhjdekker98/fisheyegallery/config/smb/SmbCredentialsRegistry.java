@@ -0,0 +1,70 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.jhjdekker98.fisheyegallery.Constants;
+import com.jhjdekker98.fisheyegallery.security.SecureStorageHelper;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decrypted SMB connections, keyed by host/share.
+ * <p>
+ * The connections are decrypted and parsed once and then served from memory, so looking them up per
+ * thumbnail or provider call is cheap. The cached copy is dropped whenever the encrypted value is written.
+ */
+public class SmbCredentialsRegistry {
+    private static SmbCredentialsRegistry instance;
+
+    private final SecureStorageHelper ssh;
+    private volatile Map<String, SmbCredentials> credentials;
+
+    private SmbCredentialsRegistry(SecureStorageHelper ssh) {
+        this.ssh = ssh;
+        ssh.addChangeListener(key -> {
+            if (Constants.SECURE_SHARED_PREFS_KEY_SMB_CONNS.equals(key)) invalidate();
+        });
+    }
+
+    public static synchronized SmbCredentialsRegistry getInstance(SecureStorageHelper ssh) {
+        if (instance == null) {
+            instance = new SmbCredentialsRegistry(ssh);
+        }
+        return instance;
+    }
+
+    /**
+     * @return all connections by host/share; the map can't be modified
+     */
+    public Map<String, SmbCredentials> getAll() {
+        Map<String, SmbCredentials> current = credentials;
+        if (current != null) return current;
+        synchronized (this) {
+            if (credentials == null) credentials = load();
+            return credentials;
+        }
+    }
+
+    /**
+     * @return the connection for a host/share key, or {@code null} if there is none
+     */
+    public SmbCredentials get(String key) {
+        return getAll().get(key);
+    }
+
+    // Synchronized so a load that read the old value can't overwrite the invalidation
+    private synchronized void invalidate() {
+        credentials = null;
+    }
+
+    private Map<String, SmbCredentials> load() {
+        final String json = ssh.retrieveDecrypted(Constants.SECURE_SHARED_PREFS_KEY_SMB_CONNS);
+        if (json == null || json.isEmpty()) return Collections.emptyMap();
+        final Type type = new TypeToken<Map<String, SmbCredentials>>() {
+        }.getType();
+        final Map<String, SmbCredentials> parsed = new Gson().fromJson(json, type);
+        return parsed == null ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(parsed));
+    }
+}
@@ -0,0 +1,121 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.content.Context;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.OptIn;
+import androidx.media3.common.C;
+import androidx.media3.common.PlaybackException;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.datasource.BaseDataSource;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.DataSourceException;
+import androidx.media3.datasource.DataSpec;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.jhjdekker98.fisheyegallery.security.SecureStorageHelper;
+import java.io.IOException;
+
+/**
+ * media3 {@link DataSource} for SMB content URIs. ExoPlayer's ranged reads go straight to the SMB file over
+ * a pooled session, with read-ahead while playback moves forward, so playback starts as soon as the first
+ * blocks have arrived and a seek only fetches from the new position.
+ * <p>
+ * Data is not put in the block cache; {@link SmbVideoCache} wraps this source in a media3 cache instead.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class SmbDataSource extends BaseDataSource {
+    private final Context context;
+    @Nullable
+    private Uri uri;
+    @Nullable
+    private SmbBlockReader reader;
+    private long position;
+    private long bytesRemaining;
+    private boolean opened = false;
+
+    public SmbDataSource(Context context) {
+        super(/* isNetwork= */ true);
+        this.context = context.getApplicationContext();
+    }
+
+    @Override
+    public long open(@NonNull DataSpec dataSpec) throws IOException {
+        uri = dataSpec.uri;
+        transferInitializing(dataSpec);
+
+        final SmbCredentials creds = SmbCredentials.getForUri(SecureStorageHelper.getInstance(context), uri);
+        if (creds == null) {
+            throw new DataSourceException(new IOException("No SMB credentials found for " + uri),
+                    PlaybackException.ERROR_CODE_IO_FILE_NOT_FOUND);
+        }
+        try {
+            reader = SmbBlockReader.openUncached(context, creds, SmbCredentials.getPathForUri(uri));
+        } catch (SMBApiException e) {
+            throw new DataSourceException(e, PlaybackException.ERROR_CODE_IO_FILE_NOT_FOUND);
+        }
+
+        if (dataSpec.position > reader.getSize()) {
+            throw new DataSourceException(PlaybackException.ERROR_CODE_IO_READ_POSITION_OUT_OF_RANGE);
+        }
+        position = dataSpec.position;
+        bytesRemaining = dataSpec.length != C.LENGTH_UNSET
+                ? Math.min(dataSpec.length, reader.getSize() - position)
+                : reader.getSize() - position;
+
+        opened = true;
+        transferStarted(dataSpec);
+        return bytesRemaining;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        if (bytesRemaining == 0 || reader == null) return C.RESULT_END_OF_INPUT;
+
+        final long blockIndex = position / SmbBlockCache.BLOCK_SIZE;
+        final byte[] block = reader.readBlockAhead(blockIndex);
+        final int blockOffset = (int) (position - blockIndex * SmbBlockCache.BLOCK_SIZE);
+        if (blockOffset >= block.length) return C.RESULT_END_OF_INPUT; // File shrank remotely
+
+        final int count = (int) Math.min(Math.min(length, block.length - blockOffset), bytesRemaining);
+        System.arraycopy(block, blockOffset, buffer, offset, count);
+        position += count;
+        bytesRemaining -= count;
+        bytesTransferred(count);
+        return count;
+    }
+
+    @Nullable
+    @Override
+    public Uri getUri() {
+        return uri;
+    }
+
+    @Override
+    public void close() {
+        uri = null;
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+        if (opened) {
+            opened = false;
+            transferEnded();
+        }
+    }
+
+    public static class Factory implements DataSource.Factory {
+        private final Context context;
+
+        public Factory(Context context) {
+            this.context = context.getApplicationContext();
+        }
+
+        @NonNull
+        @Override
+        public DataSource createDataSource() {
+            return new SmbDataSource(context);
+        }
+    }
+}
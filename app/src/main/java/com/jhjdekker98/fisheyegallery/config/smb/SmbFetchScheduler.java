@@ -0,0 +1,138 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.util.Log;
+import com.bumptech.glide.Priority;
+import com.jhjdekker98.fisheyegallery.Constants;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared, bounded scheduler for SMB fetches started by Glide.
+ * <p>
+ * Waiting fetches are ordered by Glide {@link Priority} first and recency second: during a fling, the
+ * cells that were bound last are the ones still on screen, so they go first. Fetches that are cancelled
+ * while waiting are dropped from the queue without ever touching the network.
+ */
+public class SmbFetchScheduler {
+    private static final String TAG = "SmbFetchScheduler";
+    private static final int STATS_LOG_INTERVAL = 200;
+    private static SmbFetchScheduler instance;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger cancelled = new AtomicInteger();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+
+    private SmbFetchScheduler(int threads) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<>(),
+                r -> new Thread(r, TAG + "-" + threadCount.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized SmbFetchScheduler getInstance() {
+        if (instance == null) {
+            instance = new SmbFetchScheduler(Constants.SMB_FETCH_THREADS);
+        }
+        return instance;
+    }
+
+    /**
+     * Queue a fetch. The returned task can be cancelled; a task that hasn't started yet is then never run.
+     */
+    public Task submit(Priority priority, Runnable work) {
+        final Task task = new Task(priority, sequence.incrementAndGet(), work);
+        executor.execute(task);
+        return task;
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getCompletedCount() {
+        return completed.get();
+    }
+
+    public int getCancelledCount() {
+        return cancelled.get();
+    }
+
+    public long getAverageWaitMillis() {
+        final int count = completed.get();
+        return count == 0 ? 0 : totalWaitMillis.get() / count;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SmbFetchScheduler{queued=" + getQueueDepth()
+                + ", active=" + getActiveCount()
+                + ", completed=" + getCompletedCount()
+                + ", cancelled=" + getCancelledCount()
+                + ", avgWaitMs=" + getAverageWaitMillis()
+                + ", maxWaitMs=" + getMaxWaitMillis() + "}";
+    }
+
+    private void recordStart(long waitMillis) {
+        totalWaitMillis.addAndGet(waitMillis);
+        maxWaitMillis.accumulateAndGet(waitMillis, Math::max);
+        if (completed.incrementAndGet() % STATS_LOG_INTERVAL == 0) Log.d(TAG, toString());
+    }
+
+    public class Task implements Runnable, Comparable<Task> {
+        private final Priority priority;
+        private final long sequence;
+        private final long queuedAt = System.currentTimeMillis();
+        private final Runnable work;
+        private volatile boolean cancelled = false;
+
+        private Task(Priority priority, long sequence, Runnable work) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.work = work;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Drop the task if it is still queued. A task that is already running is only flagged; the work
+         * itself is expected to check {@link #isCancelled()} or be aborted by its owner.
+         */
+        public void cancel() {
+            if (cancelled) return;
+            cancelled = true;
+            if (executor.remove(this)) SmbFetchScheduler.this.cancelled.incrementAndGet();
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+            recordStart(System.currentTimeMillis() - queuedAt);
+            work.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            // Lower ordinal is more urgent (IMMEDIATE, HIGH, NORMAL, LOW)
+            final int byPriority = Integer.compare(priority.ordinal(), other.priority.ordinal());
+            if (byPriority != 0) return byPriority;
+            return Long.compare(other.sequence, sequence); // Newest first
+        }
+    }
+}
@@ -0,0 +1,464 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+import androidx.exifinterface.media.ExifInterface;
+import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.msdtyp.FileTime;
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.msfscc.fileinformation.FileBasicInformation;
+import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.share.DiskShare;
+import com.jhjdekker98.fisheyegallery.Constants;
+import com.jhjdekker98.fisheyegallery.model.mediacache.MediaCacheDatabase;
+import com.jhjdekker98.fisheyegallery.model.mediacache.SmbDirState;
+import com.jhjdekker98.fisheyegallery.model.mediacache.SmbFileHash;
+import com.jhjdekker98.fisheyegallery.model.mediacache.SmbFileHashDao;
+import com.jhjdekker98.fisheyegallery.util.FileHelper;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.Locale;
+
+/**
+ * Moves a single file between local storage and an SMB share, resuming from the last checkpoint if an
+ * earlier attempt at the same transfer was interrupted. Every copy is verified by size and SHA-256 before
+ * the source is given up. Runs on the calling thread.
+ * <p>
+ * The share is expected on an unmetered lease: every chunk read or written takes a slot within the host's
+ * limit for the length of that request only, and reports its latency.
+ */
+public class SmbFileTransfer {
+    private static final String TAG = "SmbFileTransfer";
+    // Names tried for an upload before giving up: the path itself, then "name (1).ext" and so on
+    private static final int MAX_NAME_ATTEMPTS = 1000;
+    private final Context context;
+    private final TransferCheckpointStore checkpoints;
+    private final SmbFileHashDao hashes;
+
+    public SmbFileTransfer(Context context) {
+        this.context = context.getApplicationContext();
+        this.checkpoints = new TransferCheckpointStore(context);
+        this.hashes = MediaCacheDatabase.getInstance(context).smbFileHashDao();
+    }
+
+    /**
+     * Copy a local file to the share and give it the local file's timestamps. The copy is read back and compared
+     * against the hash taken while sending before this returns. If the share already holds an identical file,
+     * nothing is sent. The local file is left in place.
+     * <p>
+     * A different file that is already at {@code remotePath} is never replaced: the copy is created under the
+     * first free name of the form {@code name (1).ext} instead.
+     *
+     * @return {@code false} if the upload was skipped because the file was already there
+     */
+    public boolean upload(SmbSessionPool.Lease lease, SmbCredentials creds, Uri localFileUri, String remotePath,
+                          ProgressListener listener) throws IOException {
+        final DiskShare share = lease.getShare();
+        final long lastModified;
+        final long size;
+        final String destination;
+        final String sha256;
+        try (ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(localFileUri, "r")) {
+            if (pfd == null) throw new IOException("Failed to open " + localFileUri);
+            final FileChannel in = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+            final SmbTransferEngine.Source local =
+                    (buffer, offset, length, position) -> in.read(ByteBuffer.wrap(buffer, offset, length), position);
+            size = pfd.getStatSize();
+            lastModified = FileHelper.getFileDate(context, localFileUri);
+
+            // Continue an earlier, interrupted upload into the file it created
+            final String transferId = "up|" + localFileUri + "|" + remotePath;
+            final TransferCheckpointStore.Checkpoint checkpoint = checkpoints.get(transferId);
+            long start = 0;
+            String target = null;
+            com.hierynomus.smbj.share.File opened = null;
+            if (checkpoint != null && checkpoint.matches(size, lastModified)) {
+                final FileAllInformation partial = getInformation(share, checkpoint.destination);
+                if (partial != null && partial.getStandardInformation().getEndOfFile() >= checkpoint.offset) {
+                    start = checkpoint.offset;
+                    target = checkpoint.destination;
+                    opened = openForWrite(share, target, SMB2CreateDisposition.FILE_OPEN);
+                }
+            }
+
+            if (opened == null) {
+                String localHash = null;
+                for (int attempt = 0; opened == null; attempt++) {
+                    if (attempt > MAX_NAME_ATTEMPTS) throw new IOException("No free name for " + remotePath);
+                    final String candidate = withNameSuffix(remotePath, attempt);
+                    final FileAllInformation existing = getInformation(share, candidate);
+                    if (existing != null) {
+                        // Same size: compare hashes (the local one costs a local read only) before moving on
+                        if (size < 0 || existing.getStandardInformation().getEndOfFile() != size) continue;
+                        if (localHash == null) {
+                            final MessageDigest localDigest = newDigest();
+                            SmbTransferEngine.hash(local, size, localDigest);
+                            localHash = toHex(localDigest.digest());
+                        }
+                        final String hashKey = SmbDirState.keyFor(creds.host, creds.share, candidate);
+                        if (localHash.equals(getRemoteHash(lease, hashKey, candidate, existing))) {
+                            Log.i(TAG, "Skipping upload of " + candidate + ", identical file already on the share");
+                            listener.onProgress(size, size, 0);
+                            setTimes(share, candidate, lastModified);
+                            hashes.insert(new SmbFileHash(hashKey, size, lastModified, localHash));
+                            return false;
+                        }
+                        continue;
+                    }
+                    try {
+                        // Fails rather than overwrites if another upload took the name in the meantime
+                        opened = openForWrite(share, candidate, SMB2CreateDisposition.FILE_CREATE);
+                        target = candidate;
+                    } catch (SMBApiException e) {
+                        if (e.getStatus() != NtStatus.STATUS_OBJECT_NAME_COLLISION) throw e;
+                    }
+                }
+            }
+            destination = target;
+
+            final MessageDigest digest = newDigest();
+            final long written;
+            try (com.hierynomus.smbj.share.File smbFile = opened) {
+                if (start > 0) SmbTransferEngine.hash(local, start, digest);
+                written = SmbTransferEngine.transfer(
+                        local,
+                        new SmbTransferEngine.Sink() {
+                            @Override
+                            public void write(byte[] buffer, int length, long position) throws IOException {
+                                lease.runMetered(SmbHostLimiter.Op.LARGE_WRITE,
+                                        s -> smbFile.write(buffer, position, 0, length));
+                            }
+
+                            @Override
+                            public void flush() {
+                                smbFile.flush();
+                            }
+                        },
+                        start, size, digest, engineListener(transferId, listener,
+                                offset -> new TransferCheckpointStore.Checkpoint(
+                                        destination, size, lastModified, offset)));
+            }
+            sha256 = toHex(digest.digest());
+
+            // Verify what actually landed on the share before anyone deletes the original
+            final long remoteSize = share.getFileInformation(destination).getStandardInformation().getEndOfFile();
+            if (remoteSize != written || !sha256.equals(hashRemote(lease, destination))) {
+                checkpoints.remove(transferId); // Start over next time
+                throw new IOException("Verification of " + destination + " failed");
+            }
+            checkpoints.remove(transferId);
+        }
+
+        setTimes(share, destination, lastModified);
+        hashes.insert(new SmbFileHash(SmbDirState.keyFor(creds.host, creds.share, destination),
+                size, lastModified, sha256));
+        return true;
+    }
+
+    /**
+     * @return the file's information, or {@code null} if there is no file at the path
+     */
+    private static FileAllInformation getInformation(DiskShare share, String path) {
+        return share.fileExists(path) ? share.getFileInformation(path) : null;
+    }
+
+    private static com.hierynomus.smbj.share.File openForWrite(DiskShare share, String path,
+                                                               SMB2CreateDisposition disposition) {
+        // No FILE_WRITE_THROUGH: the data is flushed explicitly at every checkpoint instead of on every write
+        return share.openFile(
+                path,
+                EnumSet.of(AccessMask.GENERIC_WRITE),
+                EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
+                SMB2ShareAccess.ALL,
+                disposition,
+                null);
+    }
+
+    /**
+     * @return the path with {@code " (n)"} before the extension, or the path itself for 0
+     */
+    static String withNameSuffix(String path, int n) {
+        if (n == 0) return path;
+        final int slash = path.lastIndexOf('/');
+        final int dot = path.lastIndexOf('.');
+        final int end = dot > slash + 1 ? dot : path.length();
+        return path.substring(0, end) + " (" + n + ")" + path.substring(end);
+    }
+
+    /**
+     * Copy an SMB file into a local document tree and delete it from the share.
+     *
+     * @return the URI of the new local document
+     */
+    @SuppressLint("RestrictedApi")
+    public Uri download(SmbSessionPool.Lease lease, SmbCredentials creds, Uri smbFileUri, Uri folderUri,
+                        ProgressListener listener) throws IOException {
+        final DiskShare share = lease.getShare();
+        final String smbFilePath = getSmbFilePathFor(smbFileUri, creds);
+
+        final FileAllInformation info = share.getFileInformation(smbFilePath);
+        final long smbLastModified = info.getBasicInformation().getChangeTime().toEpochMillis();
+        final long remoteLastWrite = info.getBasicInformation().getLastWriteTime().toEpochMillis();
+        final long size = info.getStandardInformation().getEndOfFile();
+        final String hashKey = SmbDirState.keyFor(creds.host, creds.share, smbFilePath);
+        final String fileName = getFileNameFromUri(smbFileUri);
+        final String mimeType = getMimeTypeFromFileName(fileName);
+
+        // Continue an earlier, interrupted download of the same file into the same folder
+        final String transferId = "down|" + smbFileUri + "|" + folderUri;
+        final TransferCheckpointStore.Checkpoint checkpoint = checkpoints.get(transferId);
+        Uri newFileUri = null;
+        long start = 0;
+        if (checkpoint != null && checkpoint.matches(size, smbLastModified)
+                && documentExists(Uri.parse(checkpoint.destination))) {
+            newFileUri = Uri.parse(checkpoint.destination);
+            start = checkpoint.offset;
+        }
+
+        // Create file
+        if (newFileUri == null) {
+            final Uri folderDocumentUri = DocumentsContract.buildDocumentUriUsingTree(
+                    folderUri, DocumentsContract.getTreeDocumentId(folderUri));
+            newFileUri = DocumentsContract.createDocument(
+                    context.getContentResolver(),
+                    folderDocumentUri,
+                    mimeType,
+                    fileName);
+            if (newFileUri == null) {
+                throw new IOException("Failed to create destination file");
+            }
+        }
+
+        // Write to file, hashing what comes off the share on the way
+        final MessageDigest digest = newDigest();
+        if (start > 0) hashLocal(newFileUri, start, digest);
+        final long written;
+        try (com.hierynomus.smbj.share.File smbFile = share.openFile(
+                smbFilePath,
+                EnumSet.of(AccessMask.GENERIC_READ),
+                null,
+                SMB2ShareAccess.ALL,
+                SMB2CreateDisposition.FILE_OPEN,
+                null);
+             ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(newFileUri, "rw")) {
+            if (pfd == null) throw new IOException("Failed to open destination file");
+            final FileChannel out = new FileOutputStream(pfd.getFileDescriptor()).getChannel();
+
+            final String destination = newFileUri.toString();
+            written = SmbTransferEngine.transfer(
+                    (buffer, offset, length, position) -> readMetered(lease, smbFile, buffer, offset, length, position),
+                    new SmbTransferEngine.Sink() {
+                        @Override
+                        public void write(byte[] buffer, int length, long position) throws IOException {
+                            writeFully(out, buffer, length, position);
+                        }
+
+                        @Override
+                        public void flush() throws IOException {
+                            pfd.getFileDescriptor().sync();
+                        }
+                    },
+                    start, size, digest, engineListener(transferId, listener,
+                            offset -> new TransferCheckpointStore.Checkpoint(
+                                    destination, size, smbLastModified, offset)));
+        }
+        final String sha256 = toHex(digest.digest());
+
+        // Verify the local copy (a local read only) before the remote file is deleted. If the share's copy was
+        // hashed before, e.g. when it was uploaded, the data must also match that.
+        final SmbFileHash known = hashes.get(hashKey);
+        final boolean knownMismatch = known != null && known.matches(size, remoteLastWrite)
+                && !known.sha256.equals(sha256);
+        final MessageDigest localDigest = newDigest();
+        final long localSize = hashLocal(newFileUri, -1, localDigest);
+        if (written != size || localSize != size || knownMismatch || !sha256.equals(toHex(localDigest.digest()))) {
+            checkpoints.remove(transferId); // Start over next time
+            try {
+                DocumentsContract.deleteDocument(context.getContentResolver(), newFileUri);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to delete unverified copy " + newFileUri, e);
+            }
+            throw new IOException("Verification of " + fileName + " failed");
+        }
+
+        // Attempt to set Exif DateTime immediately
+        try (ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(newFileUri, "rw")) {
+            if (pfd != null) {
+                final ExifInterface exif = new ExifInterface(pfd.getFileDescriptor());
+                exif.setDateTime(smbLastModified);
+                exif.saveAttributes();
+            }
+        }
+
+        // Clean up remote SMB file
+        share.rm(smbFilePath);
+        hashes.delete(hashKey);
+        checkpoints.remove(transferId);
+        return newFileUri;
+    }
+
+    public String getFileNameFromUri(Uri uri) {
+        if ("file".equals(uri.getScheme())) return new File(uri.getPath()).getName();
+        if ("content".equals(uri.getScheme()) && Constants.SMB_CONTENT_AUTHORITY.equals(uri.getAuthority())) {
+            return uri.getLastPathSegment();
+        }
+
+        final Cursor cursor = context.getContentResolver().query(uri,
+                new String[]{OpenableColumns.DISPLAY_NAME},
+                null, null, null);
+        if (cursor != null) {
+            try {
+                if (cursor.moveToFirst()) {
+                    return cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return "unknown_file";
+    }
+
+    /**
+     * @return the SHA-256 of a remote file, from the hash cache if it is still current, otherwise by reading it
+     */
+    private String getRemoteHash(SmbSessionPool.Lease lease, String hashKey, String path, FileAllInformation info)
+            throws IOException {
+        final long size = info.getStandardInformation().getEndOfFile();
+        final long lastWrite = info.getBasicInformation().getLastWriteTime().toEpochMillis();
+        final SmbFileHash known = hashes.get(hashKey);
+        if (known != null && known.matches(size, lastWrite)) return known.sha256;
+
+        final String sha256 = hashRemote(lease, path);
+        hashes.insert(new SmbFileHash(hashKey, size, lastWrite, sha256));
+        return sha256;
+    }
+
+    private String hashRemote(SmbSessionPool.Lease lease, String path) throws IOException {
+        final MessageDigest digest = newDigest();
+        try (com.hierynomus.smbj.share.File smbFile = lease.getShare().openFile(
+                path,
+                EnumSet.of(AccessMask.GENERIC_READ),
+                null,
+                SMB2ShareAccess.ALL,
+                SMB2CreateDisposition.FILE_OPEN,
+                null)) {
+            SmbTransferEngine.hash((buffer, offset, length, position) ->
+                    readMetered(lease, smbFile, buffer, offset, length, position), -1, digest);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static int readMetered(SmbSessionPool.Lease lease, com.hierynomus.smbj.share.File smbFile,
+                                   byte[] buffer, int offset, int length, long position) throws IOException {
+        return lease.runMetered(SmbHostLimiter.Op.forRead(length),
+                s -> smbFile.read(buffer, position, offset, length));
+    }
+
+    /**
+     * @return the number of bytes hashed
+     */
+    private long hashLocal(Uri uri, long length, MessageDigest digest) throws IOException {
+        try (ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r")) {
+            if (pfd == null) throw new IOException("Failed to open " + uri);
+            final FileChannel in = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+            return SmbTransferEngine.hash((buffer, offset, count, position) ->
+                    in.read(ByteBuffer.wrap(buffer, offset, count), position), length, digest);
+        }
+    }
+
+    private static void setTimes(DiskShare share, String path, long lastModified) {
+        share.setFileInformation(path, new FileBasicInformation(
+                FileTime.ofEpochMillis(lastModified), // CreationTime
+                FileTime.ofEpochMillis(lastModified), // LastAccessTime
+                FileTime.ofEpochMillis(lastModified), // LastWriteTime
+                FileTime.ofEpochMillis(lastModified), // ChangeTime
+                0 // FileAttributes
+        ));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e); // Guaranteed on Android
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    private SmbTransferEngine.Listener engineListener(String transferId, ProgressListener listener,
+                                                      CheckpointFactory checkpointFactory) {
+        return new SmbTransferEngine.Listener() {
+            @Override
+            public void onProgress(long position, long total, long bytesPerSecond) {
+                listener.onProgress(position, total, bytesPerSecond);
+            }
+
+            @Override
+            public void onCheckpoint(long position) {
+                checkpoints.put(transferId, checkpointFactory.create(position));
+            }
+        };
+    }
+
+    private String getSmbFilePathFor(Uri uri, SmbCredentials creds) {
+        String path = uri.getPath();
+        if (path == null) return "";
+        String prefix = String.format("/%s/%s", creds.host, creds.share);
+        if (path.startsWith(prefix)) {
+            return path.substring(prefix.length());
+        }
+        return path;
+    }
+
+    private boolean documentExists(Uri uri) {
+        try (Cursor cursor = context.getContentResolver().query(uri,
+                new String[]{DocumentsContract.Document.COLUMN_DOCUMENT_ID}, null, null, null)) {
+            return cursor != null && cursor.moveToFirst();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] buffer, int length, long position) throws IOException {
+        final ByteBuffer bb = ByteBuffer.wrap(buffer, 0, length);
+        while (bb.hasRemaining()) {
+            position += channel.write(bb, position);
+        }
+    }
+
+    private static String getMimeTypeFromFileName(String fileName) {
+        String extension = MimeTypeMap.getFileExtensionFromUrl(fileName);
+        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension.toLowerCase(Locale.ROOT));
+    }
+
+    public interface ProgressListener {
+        void onProgress(long bytesDone, long totalBytes, long bytesPerSecond);
+    }
+
+    private interface CheckpointFactory {
+        TransferCheckpointStore.Checkpoint create(long offset);
+    }
+}
@@ -0,0 +1,200 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.util.Log;
+import com.hierynomus.smbj.SMBClient;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.NoRouteToHostException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-host circuit breaker for SMB connections.
+ * <p>
+ * A host that is switched off or out of reach (e.g. when away from home) only fails after the TCP connect
+ * timeout, and every thumbnail, metadata query and cache validation would otherwise wait for its own. Once
+ * connecting to a host has failed, callers fail immediately with {@link SmbHostUnavailableException} and
+ * can fall back to what is cached. Meanwhile the host is probed in the background with a plain TCP connect
+ * at increasing intervals; when it answers, connections are let through again and listeners are told, so
+ * they can catch up on what they missed.
+ */
+public class SmbHostHealth {
+    private static final String TAG = "SmbHostHealth";
+    // Failures that don't clearly say the host is unreachable, before the circuit opens anyway
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final int PROBE_TIMEOUT_MS = 3_000;
+    private static final long MIN_PROBE_DELAY_MS = 5_000;
+    private static final long MAX_PROBE_DELAY_MS = 60_000;
+    private static SmbHostHealth instance;
+
+    private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService prober;
+
+    private SmbHostHealth() {
+        this.prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, TAG + "-prober");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static synchronized SmbHostHealth getInstance() {
+        if (instance == null) {
+            instance = new SmbHostHealth();
+        }
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean isAvailable(String host) {
+        final Circuit circuit = circuits.get(host);
+        if (circuit == null) return true;
+        synchronized (circuit) {
+            return circuit.state != State.OPEN;
+        }
+    }
+
+    /**
+     * Fail fast if the host is known to be unreachable, instead of waiting for a connect to time out.
+     */
+    public void checkAvailable(String host) throws SmbHostUnavailableException {
+        if (!isAvailable(host)) throw new SmbHostUnavailableException(host);
+    }
+
+    public void onConnectSuccess(String host) {
+        final Circuit circuit = circuits.get(host);
+        if (circuit == null) return;
+        synchronized (circuit) {
+            if (circuit.state == State.HALF_OPEN) Log.i(TAG, host + " is back");
+            circuit.state = State.CLOSED;
+            circuit.failures = 0;
+            circuit.probeDelay = MIN_PROBE_DELAY_MS;
+        }
+    }
+
+    public void onConnectFailure(String host, Throwable error) {
+        final Circuit circuit = circuits.computeIfAbsent(host, h -> new Circuit());
+        synchronized (circuit) {
+            switch (circuit.state) {
+                case OPEN:
+                    return; // A probe is already scheduled
+                case HALF_OPEN:
+                    // The probe got through but SMB didn't; wait longer before trying again
+                    circuit.probeDelay = Math.min(circuit.probeDelay * 2, MAX_PROBE_DELAY_MS);
+                    break;
+                case CLOSED:
+                    circuit.failures++;
+                    if (!isUnreachable(error) && circuit.failures < FAILURE_THRESHOLD) return;
+                    break;
+            }
+            circuit.state = State.OPEN;
+            Log.w(TAG, host + " is unreachable, failing fast for the next " + circuit.probeDelay + " ms: " + error);
+            scheduleProbe(host, circuit.probeDelay);
+        }
+        notifyListeners(host, false);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("SmbHostHealth{");
+        boolean first = true;
+        for (Map.Entry<String, Circuit> entry : circuits.entrySet()) {
+            if (!first) sb.append(", ");
+            first = false;
+            synchronized (entry.getValue()) {
+                sb.append(entry.getKey()).append('=').append(entry.getValue().state);
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    private void scheduleProbe(String host, long delayMs) {
+        prober.schedule(() -> probe(host), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe(String host) {
+        final Circuit circuit = circuits.get(host);
+        if (circuit == null) return;
+        final boolean reachable = isReachable(host);
+        synchronized (circuit) {
+            if (circuit.state != State.OPEN) return;
+            if (!reachable) {
+                circuit.probeDelay = Math.min(circuit.probeDelay * 2, MAX_PROBE_DELAY_MS);
+                scheduleProbe(host, circuit.probeDelay);
+                return;
+            }
+            // Let connections through; the next one that succeeds closes the circuit for good
+            circuit.state = State.HALF_OPEN;
+        }
+        Log.i(TAG, host + " answers again, reconnecting");
+        notifyListeners(host, true);
+    }
+
+    private static boolean isReachable(String host) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, SMBClient.DEFAULT_PORT), PROBE_TIMEOUT_MS);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return whether the error says the host can't be reached at all, as opposed to e.g. a dropped session
+     */
+    private static boolean isUnreachable(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof ConnectException || t instanceof NoRouteToHostException
+                    || t instanceof UnknownHostException || t instanceof SocketTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void notifyListeners(String host, boolean available) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onAvailabilityChanged(host, available);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Host availability listener failed", e);
+            }
+        }
+    }
+
+    private enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private static class Circuit {
+        private State state = State.CLOSED;
+        private int failures = 0;
+        private long probeDelay = MIN_PROBE_DELAY_MS;
+    }
+
+    public interface Listener {
+        /**
+         * Called on a background thread when a host becomes unreachable, or answers again.
+         */
+        void onAvailabilityChanged(String host, boolean available);
+    }
+}
@@ -0,0 +1,210 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.util.Log;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive cap on the number of operations in flight against one SMB host, adjusted AIMD-style.
+ * <p>
+ * Operations report their latency by kind. After every window of samples, the limit grows by one if it was
+ * actually reached and latency stayed near its baseline for every kind. If the recent latency of any kind
+ * has climbed to well above its baseline, the limit shrinks by a fraction. A failed connection halves it.
+ * A slow or busy NAS thus settles at a low limit, and a fast one climbs towards the maximum.
+ */
+public class SmbHostLimiter {
+    private static final String TAG = "SmbHostLimiter";
+    private static final int MIN_LIMIT = 1;
+    private static final int MIN_SAMPLES = 10;
+    // Recent latency above this multiple of the baseline counts as congestion
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double FAILURE_BACKOFF = 0.5;
+    // Failures within this long of the previous one are taken to be the same event
+    private static final long FAILURE_HOLDOFF_MS = 1_000;
+    private static final double RECENT_WEIGHT = 0.2;
+    // How fast the baseline follows latency that is above it, so a lasting change is eventually accepted
+    private static final double BASELINE_DRIFT = 0.01;
+
+    private final String host;
+    private final int maxLimit;
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Condition available = lock.newCondition();
+    private final Map<Op, LatencyStats> stats = new EnumMap<>(Op.class);
+    private double limit;
+    private int inFlight = 0;
+    private int waiting = 0;
+    private int peakInFlight = 0;
+    private int samplesInWindow = 0;
+    private long lastFailureAt = 0;
+    private int increases = 0;
+    private int decreases = 0;
+    private int failures = 0;
+
+    public SmbHostLimiter(String host, int initialLimit, int maxLimit) {
+        this.host = host;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(MIN_LIMIT, Math.min(initialLimit, maxLimit));
+    }
+
+    /**
+     * Wait until another operation may start.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            waiting++;
+            try {
+                while (inFlight >= (int) limit) available.await();
+            } finally {
+                waiting--;
+            }
+            inFlight++;
+            peakInFlight = Math.max(peakInFlight, inFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Report how long one operation took on the wire.
+     */
+    public void onSample(Op op, long nanos) {
+        lock.lock();
+        try {
+            LatencyStats opStats = stats.get(op);
+            if (opStats == null) {
+                opStats = new LatencyStats();
+                stats.put(op, opStats);
+            }
+            opStats.add(nanos);
+            if (++samplesInWindow < Math.max(MIN_SAMPLES, (int) limit)) return;
+
+            boolean congested = false;
+            for (LatencyStats s : stats.values()) congested |= s.isCongested();
+            final int before = (int) limit;
+            if (congested) {
+                limit = Math.max(MIN_LIMIT, limit * LATENCY_BACKOFF);
+            } else if (peakInFlight >= before) {
+                // Only grow when the current limit was actually used
+                limit = Math.min(maxLimit, limit + 1);
+            }
+            samplesInWindow = 0;
+            peakInFlight = inFlight;
+
+            final int after = (int) limit;
+            if (after > before) {
+                increases++;
+                available.signalAll();
+            } else if (after < before) {
+                decreases++;
+            }
+            if (after != before) Log.d(TAG, toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Report a failed connection or timed-out request.
+     */
+    public void onFailure() {
+        lock.lock();
+        try {
+            final long now = System.currentTimeMillis();
+            if (now - lastFailureAt < FAILURE_HOLDOFF_MS) return;
+            lastFailureAt = now;
+            failures++;
+            limit = Math.max(MIN_LIMIT, limit * FAILURE_BACKOFF);
+            Log.d(TAG, toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            final StringBuilder sb = new StringBuilder("SmbHostLimiter{host=").append(host)
+                    .append(", limit=").append((int) limit)
+                    .append(", inFlight=").append(inFlight)
+                    .append(", waiting=").append(waiting)
+                    .append(", increases=").append(increases)
+                    .append(", decreases=").append(decreases)
+                    .append(", failures=").append(failures);
+            for (Map.Entry<Op, LatencyStats> entry : stats.entrySet()) {
+                sb.append(", ").append(entry.getKey()).append("Ms=")
+                        .append(String.format("%.1f/%.1f",
+                                entry.getValue().recent / 1e6, entry.getValue().baseline / 1e6));
+            }
+            return sb.append("}").toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Kinds of operation with roughly uniform cost, so each can be compared against its own baseline.
+     */
+    public enum Op {
+        METADATA,
+        SMALL_READ,
+        LARGE_READ,
+        LARGE_WRITE;
+
+        public static Op forRead(int length) {
+            return length <= SmbBlockCache.BLOCK_SIZE ? SMALL_READ : LARGE_READ;
+        }
+    }
+
+    private static class LatencyStats {
+        private double baseline = 0;
+        private double recent = 0;
+        private long count = 0;
+
+        void add(long nanos) {
+            count++;
+            recent = recent == 0 ? nanos : recent + (nanos - recent) * RECENT_WEIGHT;
+            if (baseline == 0 || nanos < baseline) {
+                baseline = nanos;
+            } else {
+                baseline += (nanos - baseline) * BASELINE_DRIFT;
+            }
+        }
+
+        boolean isCongested() {
+            return count >= MIN_SAMPLES && recent > baseline * LATENCY_TOLERANCE;
+        }
+    }
+}
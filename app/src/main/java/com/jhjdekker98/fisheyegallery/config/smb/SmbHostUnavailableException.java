@@ -0,0 +1,12 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of connecting to a host that {@link SmbHostHealth} currently considers unreachable.
+ */
+public class SmbHostUnavailableException extends IOException {
+    public SmbHostUnavailableException(String host) {
+        super("SMB host " + host + " is unreachable");
+    }
+}
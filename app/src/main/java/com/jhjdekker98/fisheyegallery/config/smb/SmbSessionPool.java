@@ -0,0 +1,338 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.util.Log;
+import com.jhjdekker98.fisheyegallery.Constants;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.SmbConfig;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.DiskShare;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide pool of authenticated SMB shares, keyed by host/share/user.
+ * <p>
+ * Callers {@link #lease(SmbCredentials) lease} a {@link DiskShare} for the duration of an operation and
+ * close the lease afterwards. Connections and sessions are kept open between leases, evicted once they
+ * have been idle for a while, and re-established when the server has dropped them.
+ * <p>
+ * Leases on one host are bounded by its {@link SmbHostLimiter}, which adapts to how the host responds.
+ * Callers that time their operations report it through {@link Lease#recordLatency}. Hosts that can't be
+ * reached are failed fast by {@link SmbHostHealth} rather than connected to over and over.
+ */
+public class SmbSessionPool {
+    private static final String TAG = "SmbSessionPool";
+    private static final long IDLE_TIMEOUT_MS = 60_000;
+    private static final long EVICTION_INTERVAL_MS = 15_000;
+    private static final long TIMEOUT_SECONDS = 30;
+    private static SmbSessionPool instance;
+
+    private final SMBClient client;
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+    private final Map<String, SmbHostLimiter> limiters = new ConcurrentHashMap<>();
+    private final SmbHostHealth health = SmbHostHealth.getInstance();
+    private final ScheduledExecutorService evictor;
+
+    private SmbSessionPool() {
+        // No socket timeout: it would drop connections that are idle in the pool or waiting on a change
+        // notification. Requests are still bounded by the read/write/transact timeout.
+        final SmbConfig config = SmbConfig.builder()
+                .withTimeout(TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .withReadBufferSize(Constants.SMB_READ_SIZE)
+                .withWriteBufferSize(Constants.SMB_TRANSFER_CHUNK_SIZE)
+                .build();
+        this.client = new SMBClient(config);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread t = new Thread(r, TAG + "-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        evictor.scheduleWithFixedDelay(this::evictIdle,
+                EVICTION_INTERVAL_MS, EVICTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized SmbSessionPool getInstance() {
+        if (instance == null) {
+            instance = new SmbSessionPool();
+        }
+        return instance;
+    }
+
+    public static String keyFor(SmbCredentials creds) {
+        return creds.host + "/" + creds.share + "/" + (creds.username == null ? "" : creds.username);
+    }
+
+    public SmbHostLimiter getLimiter(String host) {
+        return limiters.computeIfAbsent(host, h -> new SmbHostLimiter(h,
+                Constants.SMB_INITIAL_IN_FLIGHT_PER_HOST, Constants.SMB_MAX_IN_FLIGHT_PER_HOST));
+    }
+
+    /**
+     * Current concurrency limit, load and latency per host, for bug reports. Built on demand only.
+     */
+    public String getDiagnostics() {
+        final StringBuilder sb = new StringBuilder("SMB hosts:");
+        if (limiters.isEmpty()) sb.append(" none");
+        for (SmbHostLimiter limiter : limiters.values()) sb.append("\n  ").append(limiter);
+        return sb.append("\n  ").append(health).toString();
+    }
+
+    /**
+     * Lease a connected share. Blocks while the host already has as many operations in flight as its
+     * limiter currently allows. The returned lease must be closed when the caller is done with the share.
+     *
+     * @throws SmbHostUnavailableException right away if the host is known to be unreachable
+     */
+    public Lease lease(SmbCredentials creds) throws IOException {
+        health.checkAvailable(creds.host);
+        final SmbHostLimiter limiter = getLimiter(creds.host);
+        try {
+            limiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for SMB lease on " + creds.host);
+        }
+
+        try {
+            return leaseSlot(creds, limiter, true);
+        } catch (SmbHostUnavailableException | SMBApiException e) {
+            // An error from the server itself (e.g. wrong password) says nothing about its load
+            limiter.release();
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            limiter.onFailure();
+            limiter.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Lease a connected share without taking part in the host's concurrency limit. Only for leases held for a
+     * long time, which would otherwise keep one of the host's few slots: requests that are parked on the
+     * server, such as change notifications, and transfers, which take a slot per request through
+     * {@link Lease#runMetered}.
+     */
+    public Lease leaseUnmetered(SmbCredentials creds) throws IOException {
+        health.checkAvailable(creds.host);
+        final SmbHostLimiter limiter = getLimiter(creds.host);
+        try {
+            return leaseSlot(creds, limiter, false);
+        } catch (SmbHostUnavailableException | SMBApiException e) {
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            limiter.onFailure();
+            throw e;
+        }
+    }
+
+    private Lease leaseSlot(SmbCredentials creds, SmbHostLimiter limiter, boolean metered) throws IOException {
+        while (true) {
+            final Slot slot = slots.computeIfAbsent(keyFor(creds), k -> new Slot(creds));
+            synchronized (slot) {
+                if (slot.evicted) continue; // Lost a race with the evictor, pick up a fresh slot
+                if (!slot.isHealthy()) connect(slot);
+                slot.leases++;
+                return new Lease(slot, slot.share, limiter, metered);
+            }
+        }
+    }
+
+    private void connect(Slot slot) throws IOException {
+        final String host = slot.creds.host;
+        // Callers queued up behind a connect that just failed shouldn't each wait for their own timeout
+        health.checkAvailable(host);
+        try {
+            slot.connect(client);
+        } catch (SMBApiException e) {
+            // E.g. wrong password: the host itself answered
+            health.onConnectSuccess(host);
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            health.onConnectFailure(host, e);
+            throw e;
+        }
+        health.onConnectSuccess(host);
+    }
+
+    /**
+     * Run a single operation on a leased share, and report its latency as the given kind. If the operation
+     * fails because the connection was dropped (as opposed to an error reported by the server), the share is
+     * reconnected and the operation retried once.
+     */
+    public <T> T execute(SmbCredentials creds, SmbHostLimiter.Op op, Operation<T> operation) throws IOException {
+        try (Lease lease = lease(creds)) {
+            try {
+                return lease.run(op, operation);
+            } catch (SMBApiException e) {
+                throw e;
+            } catch (IOException | SMBRuntimeException e) {
+                Log.w(TAG, "SMB operation on " + creds.host + " failed, reconnecting", e);
+                lease.invalidate();
+            }
+        }
+        try (Lease lease = lease(creds)) {
+            return lease.run(op, operation);
+        }
+    }
+
+    private void evictIdle() {
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+            final Slot slot = entry.getValue();
+            synchronized (slot) {
+                if (slot.leases > 0) continue;
+                if (slot.isHealthy() && now - slot.lastUsed < IDLE_TIMEOUT_MS) continue;
+                slot.evicted = true;
+                slot.disconnect();
+                slots.remove(entry.getKey(), slot);
+            }
+        }
+    }
+
+    public interface Operation<T> {
+        T run(DiskShare share) throws IOException;
+    }
+
+    public static class Lease implements AutoCloseable {
+        private final Slot slot;
+        private final DiskShare share;
+        private final SmbHostLimiter limiter;
+        private final boolean metered;
+        private boolean closed = false;
+
+        private Lease(Slot slot, DiskShare share, SmbHostLimiter limiter, boolean metered) {
+            this.slot = slot;
+            this.share = share;
+            this.limiter = limiter;
+            this.metered = metered;
+        }
+
+        public DiskShare getShare() {
+            return share;
+        }
+
+        /**
+         * Run an operation on this lease's share and report its latency. Failed operations aren't sampled.
+         */
+        <T> T run(SmbHostLimiter.Op op, Operation<T> operation) throws IOException {
+            final long start = System.nanoTime();
+            final T result = operation.run(share);
+            recordLatency(op, System.nanoTime() - start);
+            return result;
+        }
+
+        /**
+         * Run one request within the host's concurrency limit and report its latency, on a lease that doesn't
+         * hold a slot of its own.
+         */
+        public <T> T runMetered(SmbHostLimiter.Op op, Operation<T> operation) throws IOException {
+            if (metered) return run(op, operation);
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for SMB slot on " + slot.creds.host);
+            }
+            try {
+                return run(op, operation);
+            } finally {
+                limiter.release();
+            }
+        }
+
+        /**
+         * Report how long an operation on this lease's share took, so the host's limit can adapt.
+         */
+        public void recordLatency(SmbHostLimiter.Op op, long nanos) {
+            limiter.onSample(op, nanos);
+        }
+
+        /**
+         * Mark the underlying session as broken, so the next lease reconnects instead of reusing it.
+         * Also backs off the host's concurrency limit.
+         */
+        public void invalidate() {
+            synchronized (slot) {
+                if (slot.share == share) slot.broken = true;
+            }
+            limiter.onFailure();
+        }
+
+        @Override
+        public void close() {
+            synchronized (slot) {
+                if (closed) return;
+                closed = true;
+                slot.leases--;
+                slot.lastUsed = System.currentTimeMillis();
+            }
+            if (metered) limiter.release();
+        }
+    }
+
+    private static class Slot {
+        private final SmbCredentials creds;
+        private Connection connection;
+        private Session session;
+        private DiskShare share;
+        private int leases = 0;
+        private long lastUsed = System.currentTimeMillis();
+        private boolean broken = false;
+        private boolean evicted = false;
+
+        Slot(SmbCredentials creds) {
+            this.creds = creds;
+        }
+
+        boolean isHealthy() {
+            return !broken && share != null && share.isConnected() && connection.isConnected();
+        }
+
+        void connect(SMBClient client) throws IOException {
+            disconnect();
+            Log.d(TAG, "Connecting to " + creds.host + "/" + creds.share);
+            final Connection newConnection = client.connect(creds.host);
+            try {
+                final Session newSession = newConnection.authenticate(new AuthenticationContext(
+                        creds.username,
+                        creds.password == null ? new char[0] : creds.password.toCharArray(),
+                        ""));
+                share = (DiskShare) newSession.connectShare(creds.share);
+                session = newSession;
+                connection = newConnection;
+                broken = false;
+            } catch (RuntimeException e) {
+                newConnection.close();
+                throw e;
+            }
+        }
+
+        void disconnect() {
+            // Leases still holding the old share will fail and invalidate; the share itself is closed here
+            closeQuietly(share);
+            closeQuietly(session);
+            closeQuietly(connection);
+            share = null;
+            session = null;
+            connection = null;
+        }
+
+        private static void closeQuietly(AutoCloseable closeable) {
+            if (closeable == null) return;
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                Log.w(TAG, "Error closing SMB resource", e);
+            }
+        }
+    }
+}
@@ -74,10 +74,7 @@ public class SmbSettingsController implements ISettingsController {
 
         // Save SMB credentials
         final SecureStorageHelper ssh = SecureStorageHelper.getInstance(context.getApplicationContext());
-        SmbCredentials.clearSmbCredentials(ssh);
-        for (SmbCredentials creds : smbCredsList) {
-            SmbCredentials.saveSmbCredentials(ssh, creds);
-        }
+        SmbCredentials.setSmbCredentials(ssh, smbCredsList);
     }
 
     private void showAddSmbDialog() {
@@ -106,6 +103,11 @@ public class SmbSettingsController implements ISettingsController {
         rootPathInput.setHint("Root path");
         container.addView(rootPathInput);
 
+        final EditText parallelismInput = new EditText(context);
+        parallelismInput.setHint("Parallel listings (default " + Constants.SMB_CRAWL_PARALLELISM + ")");
+        parallelismInput.setInputType(InputType.TYPE_CLASS_NUMBER);
+        container.addView(parallelismInput);
+
         new AlertDialog.Builder(context)
                 .setTitle("Add SMB folder")
                 .setView(container)
@@ -115,9 +117,24 @@ public class SmbSettingsController implements ISettingsController {
                     String user = userInput.getText().toString().trim();
                     String pass = passInput.getText().toString();
                     String rootPath = rootPathInput.getText().toString();
+                    String parallelismText = parallelismInput.getText().toString().trim();
+
+                    Integer parallelism = null;
+                    if (!parallelismText.isEmpty()) {
+                        try {
+                            parallelism = Integer.parseInt(parallelismText);
+                        } catch (NumberFormatException e) {
+                            parallelism = 0;
+                        }
+                        if (parallelism < 1) {
+                            Toast.makeText(context, "Parallel listings must be >= 1", Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                    }
 
                     if (!host.isEmpty() && !share.isEmpty()) {
-                        final SmbCredentials creds = new SmbCredentials(host, share, user, pass, rootPath);
+                        final SmbCredentials creds = new SmbCredentials(host, share, user, pass, rootPath,
+                                parallelism);
                         smbCredsList.add(creds);
                         addFolderTextView(creds);
                     }
@@ -200,6 +217,8 @@ public class SmbSettingsController implements ISettingsController {
     }
 
     private String smbCredentialsToFolderString(SmbCredentials creds) {
-        return creds.username + "@" + creds.host + "/" + creds.share + "/" + creds.rootPath;
+        final String folder = creds.username + "@" + creds.host + "/" + creds.share + "/" + creds.rootPath;
+        if (creds.crawlParallelism == null) return folder;
+        return folder + " (" + creds.getCrawlParallelism() + " parallel listings)";
     }
 }
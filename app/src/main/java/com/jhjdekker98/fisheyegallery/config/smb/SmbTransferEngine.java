@@ -0,0 +1,226 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import com.jhjdekker98.fisheyegallery.Constants;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies between a {@link Source} and a {@link Sink} with reads and writes overlapped: a reader thread
+ * fills one buffer while the calling thread writes the other. Buffers are {@link Constants#SMB_TRANSFER_CHUNK_SIZE}
+ * bytes, so SMB writes and reads go out as large requests rather than 8 KB at a time.
+ * <p>
+ * Every {@link Constants#SMB_TRANSFER_CHECKPOINT_BYTES} the sink is flushed and the position reported as a
+ * checkpoint, from which an interrupted transfer can be resumed. The data can be hashed on the way through,
+ * so verifying a copy doesn't take another pass over the source.
+ */
+public class SmbTransferEngine {
+    private static final int BUFFER_COUNT = 2;
+    private static final long PROGRESS_INTERVAL_MS = 250;
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "SmbTransferReader-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static final Sink DISCARD = new Sink() {
+        @Override
+        public void write(byte[] buffer, int length, long position) {
+        }
+
+        @Override
+        public void flush() {
+        }
+    };
+    private static final Listener SILENT = new Listener() {
+        @Override
+        public void onProgress(long position, long total, long bytesPerSecond) {
+        }
+
+        @Override
+        public void onCheckpoint(long position) {
+        }
+    };
+
+    /**
+     * Copy from {@code start} until the source is exhausted.
+     *
+     * @param total  expected end position, for progress reporting only; -1 if unknown
+     * @param digest if not null, updated with every byte written, in order
+     * @return the position after the last byte written
+     */
+    public static long transfer(Source source, Sink sink, long start, long total, MessageDigest digest,
+                                Listener listener) throws IOException {
+        final BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(BUFFER_COUNT);
+        for (int i = 0; i < BUFFER_COUNT; i++) free.add(new Chunk(Constants.SMB_TRANSFER_CHUNK_SIZE));
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final Future<?> reader = READERS.submit(() -> readLoop(source, start, free, filled, stop));
+        final long startedAt = System.currentTimeMillis();
+        long position = start;
+        long lastCheckpoint = start;
+        long lastProgressAt = 0;
+        try {
+            while (true) {
+                final Chunk chunk = filled.take();
+                if (chunk.error != null) throw chunk.error;
+                if (chunk.length <= 0) break;
+
+                sink.write(chunk.data, chunk.length, chunk.position);
+                if (digest != null) digest.update(chunk.data, 0, chunk.length);
+                position = chunk.position + chunk.length;
+                free.put(chunk);
+
+                if (position - lastCheckpoint >= Constants.SMB_TRANSFER_CHECKPOINT_BYTES) {
+                    sink.flush();
+                    lastCheckpoint = position;
+                    listener.onCheckpoint(position);
+                }
+                final long now = System.currentTimeMillis();
+                if (now - lastProgressAt >= PROGRESS_INTERVAL_MS) {
+                    lastProgressAt = now;
+                    listener.onProgress(position, total, bytesPerSecond(position - start, now - startedAt));
+                }
+            }
+            sink.flush();
+            listener.onProgress(position, total,
+                    bytesPerSecond(position - start, System.currentTimeMillis() - startedAt));
+            return position;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted");
+        } finally {
+            stopReader(reader, stop, free);
+        }
+    }
+
+    /**
+     * Feed the first {@code length} bytes of the source (all of it if negative) into {@code digest}, with the
+     * same read-ahead as a transfer.
+     *
+     * @return the number of bytes hashed
+     */
+    public static long hash(Source source, long length, MessageDigest digest) throws IOException {
+        final Source bounded = length < 0 ? source : (buffer, offset, count, position) -> position >= length
+                ? -1
+                : source.read(buffer, offset, (int) Math.min(count, length - position), position);
+        return transfer(bounded, DISCARD, 0, length, digest, SILENT);
+    }
+
+    /**
+     * Let the reader finish its current read rather than interrupting it, as an interrupted SMB read takes the
+     * whole session down with it. Waiting also guarantees the source isn't used anymore once we return.
+     */
+    private static void stopReader(Future<?> reader, AtomicBoolean stop, BlockingQueue<Chunk> free) {
+        stop.set(true);
+        free.offer(new Chunk(0)); // Wake it up if it's waiting for a buffer
+        boolean interrupted = false;
+        while (true) {
+            try {
+                reader.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private static void readLoop(Source source, long start, BlockingQueue<Chunk> free, BlockingQueue<Chunk> filled,
+                                 AtomicBoolean stop) {
+        long position = start;
+        try {
+            while (true) {
+                final Chunk chunk = free.take();
+                if (stop.get()) return;
+                chunk.position = position;
+                chunk.length = readFully(source, chunk.data, position);
+                filled.offer(chunk); // Never blocks, there are only as many chunks as the queue holds
+                if (chunk.length <= 0) return;
+                position += chunk.length;
+            }
+        } catch (InterruptedException e) {
+            // Writer gave up
+        } catch (IOException e) {
+            fail(filled, e);
+        } catch (RuntimeException e) {
+            // smbj reports most failures unchecked
+            fail(filled, new IOException(e));
+        }
+    }
+
+    private static void fail(BlockingQueue<Chunk> filled, IOException e) {
+        final Chunk failed = new Chunk(0);
+        failed.error = e;
+        filled.clear();
+        filled.offer(failed);
+    }
+
+    private static int readFully(Source source, byte[] buffer, long position) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            final int n = source.read(buffer, total, buffer.length - total, position + total);
+            if (n <= 0) break;
+            total += n;
+        }
+        return total;
+    }
+
+    private static long bytesPerSecond(long bytes, long elapsedMs) {
+        return elapsedMs <= 0 ? 0 : bytes * 1000 / elapsedMs;
+    }
+
+    public interface Source {
+        /**
+         * Read up to {@code length} bytes at {@code position}. Positions only ever increase. Returns 0 or -1 at
+         * the end of the data.
+         */
+        int read(byte[] buffer, int offset, int length, long position) throws IOException;
+    }
+
+    public interface Sink {
+        void write(byte[] buffer, int length, long position) throws IOException;
+
+        /**
+         * Make everything written so far durable.
+         */
+        void flush() throws IOException;
+    }
+
+    public interface Listener {
+        void onProgress(long position, long total, long bytesPerSecond);
+
+        /**
+         * Everything before {@code position} has been flushed to the sink.
+         */
+        void onCheckpoint(long position);
+    }
+
+    private static class Chunk {
+        final byte[] data;
+        long position;
+        int length;
+        IOException error;
+
+        Chunk(int size) {
+            this.data = new byte[size];
+        }
+    }
+}
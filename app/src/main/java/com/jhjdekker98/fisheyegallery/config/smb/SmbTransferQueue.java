@@ -0,0 +1,407 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.app.Activity;
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import androidx.appcompat.app.AlertDialog;
+import com.jhjdekker98.fisheyegallery.Constants;
+import com.jhjdekker98.fisheyegallery.model.mediacache.MediaCacheDatabase;
+import com.jhjdekker98.fisheyegallery.model.mediacache.SmbDirState;
+import com.jhjdekker98.fisheyegallery.model.mediacache.TransferJob;
+import com.jhjdekker98.fisheyegallery.model.mediacache.TransferJobDao;
+import com.jhjdekker98.fisheyegallery.security.SecureStorageHelper;
+import com.jhjdekker98.fisheyegallery.util.CollectionUtil;
+import com.jhjdekker98.fisheyegallery.util.FileHelper;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent queue of uploads to and downloads from SMB shares.
+ * <p>
+ * Jobs are stored in the database as soon as they are enqueued and run by {@link SmbTransferService} with
+ * at most {@link Constants#SMB_TRANSFER_PARALLELISM} at a time, all on the pooled session of their share.
+ * A transfer doesn't hold one of the host's slots for the length of a file; each chunk it reads or writes
+ * takes its turn within the host's limit, next to browsing and indexing.
+ * Jobs that were cut short by the process dying are queued again on the next start and resume from their
+ * last checkpoint.
+ */
+public class SmbTransferQueue {
+    private static final String TAG = "SmbTransferQueue";
+    private static final long PROGRESS_INTERVAL_MS = 250;
+    private static SmbTransferQueue instance;
+
+    private final Context context;
+    private final TransferJobDao dao;
+    private final SmbFileTransfer fileTransfer;
+    private final ExecutorService dbExecutor = Executors.newSingleThreadExecutor();
+    private final ThreadPoolExecutor workers;
+    private final Set<Long> scheduled = ConcurrentHashMap.newKeySet();
+    private final Map<Long, JobProgress> running = new ConcurrentHashMap<>();
+    // Remote paths being uploaded to, lower-cased as shares usually ignore case
+    private final Set<String> busyPaths = new HashSet<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong lastProgressAt = new AtomicLong();
+    private boolean recovered = false;
+
+    // Totals since the queue last ran empty
+    private final AtomicInteger batchJobs = new AtomicInteger();
+    private final AtomicInteger batchCompleted = new AtomicInteger();
+    private final AtomicInteger batchFailed = new AtomicInteger();
+    private final AtomicLong batchBytes = new AtomicLong();
+    private final AtomicLong batchTotalBytes = new AtomicLong();
+    // Bytes actually moved in this process, excluding what resumed jobs had done before
+    private final AtomicLong batchTransferred = new AtomicLong();
+    private volatile long batchStartedAt = 0;
+
+    private SmbTransferQueue(Context context) {
+        this.context = context.getApplicationContext();
+        this.dao = MediaCacheDatabase.getInstance(context).transferJobDao();
+        this.fileTransfer = new SmbFileTransfer(context);
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(
+                Constants.SMB_TRANSFER_PARALLELISM, Constants.SMB_TRANSFER_PARALLELISM, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> new Thread(r, TAG + "-" + threadCount.incrementAndGet()));
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized SmbTransferQueue getInstance(Context context) {
+        if (instance == null) {
+            instance = new SmbTransferQueue(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Queue local files to be moved to a share.
+     *
+     * @param connectionKey key of the SMB connection, as in {@link SmbCredentials#getSmbCredentials}
+     */
+    public void enqueueUploads(List<Uri> localUris, String connectionKey) {
+        enqueue(TransferJob.DIRECTION_UPLOAD, localUris, connectionKey);
+    }
+
+    /**
+     * Queue SMB files to be moved into a local document tree. The caller should have taken a persistable
+     * permission on the tree, so the queue can still write there after a restart.
+     */
+    public void enqueueDownloads(List<Uri> smbUris, Uri folderUri) {
+        enqueue(TransferJob.DIRECTION_DOWNLOAD, smbUris, folderUri.toString());
+    }
+
+    /**
+     * Start the transfer service if jobs were left over from an earlier run.
+     */
+    public void resumePending() {
+        dbExecutor.execute(() -> {
+            if (!dao.getByStates(Arrays.asList(TransferJob.STATE_PENDING, TransferJob.STATE_RUNNING)).isEmpty()) {
+                SmbTransferService.start(context);
+            }
+        });
+    }
+
+    /**
+     * Schedule all pending jobs that aren't already scheduled. Called by {@link SmbTransferService}.
+     */
+    void start() {
+        dbExecutor.execute(() -> {
+            if (!recovered) {
+                recovered = true;
+                dao.requeueRunning();
+            }
+            final List<TransferJob> pending = dao.getByStates(Collections.singletonList(TransferJob.STATE_PENDING));
+            for (TransferJob job : pending) {
+                if (!scheduled.add(job.id)) continue;
+                if (batchStartedAt == 0) batchStartedAt = System.currentTimeMillis();
+                batchJobs.incrementAndGet();
+                workers.execute(() -> run(job));
+            }
+            if (scheduled.isEmpty()) notifyIdle();
+        });
+    }
+
+    /**
+     * Delete the local originals of finished uploads that could not be deleted in the background, asking
+     * the user for consent where the platform requires it.
+     */
+    public void deleteUploadedOriginals(Activity activity) {
+        dbExecutor.execute(() -> {
+            final List<TransferJob> jobs =
+                    dao.getByStates(Collections.singletonList(TransferJob.STATE_AWAITING_DELETE));
+            if (jobs.isEmpty()) return;
+            final Set<Uri> uris = new HashSet<>();
+            final List<Long> ids = new ArrayList<>();
+            for (TransferJob job : jobs) {
+                uris.add(Uri.parse(job.sourceUri));
+                ids.add(job.id);
+            }
+            activity.runOnUiThread(() -> {
+                final int deleted = FileHelper.deleteUris(activity, uris);
+                if (deleted < uris.size()) Log.w(TAG, "Deleted " + deleted + " of " + uris.size() + " uploaded originals");
+                dbExecutor.execute(() -> dao.setState(ids, TransferJob.STATE_DONE));
+            });
+        });
+    }
+
+    /**
+     * Ask the user whether to retry the jobs that failed in an earlier run, or to dismiss them.
+     */
+    public void offerRetryOfFailed(Activity activity) {
+        dbExecutor.execute(() -> {
+            final List<TransferJob> jobs = dao.getByStates(Collections.singletonList(TransferJob.STATE_FAILED));
+            if (jobs.isEmpty()) return;
+            final List<Long> ids = new ArrayList<>();
+            for (TransferJob job : jobs) ids.add(job.id);
+            final String error = jobs.get(jobs.size() - 1).error;
+            activity.runOnUiThread(() -> {
+                if (activity.isFinishing() || activity.isDestroyed()) return;
+                new AlertDialog.Builder(activity)
+                        .setTitle(ids.size() == 1 ? "1 transfer failed" : ids.size() + " transfers failed")
+                        .setMessage(error == null ? null : "Last error: " + error)
+                        .setPositiveButton("Retry", (dialog, which) -> dbExecutor.execute(() -> {
+                            dao.setState(ids, TransferJob.STATE_PENDING);
+                            SmbTransferService.start(context);
+                        }))
+                        .setNegativeButton("Dismiss", (dialog, which) -> dbExecutor.execute(() -> dao.delete(ids)))
+                        .show();
+            });
+        });
+    }
+
+    public Progress getProgress() {
+        long bytes = batchBytes.get();
+        long total = batchTotalBytes.get();
+        long transferred = 0;
+        for (JobProgress progress : running.values()) {
+            bytes += progress.done;
+            if (progress.total > 0) total += progress.total;
+            if (progress.start >= 0) transferred += progress.done - progress.start;
+        }
+        final long elapsed = System.currentTimeMillis() - batchStartedAt;
+        final long bytesPerSecond = batchStartedAt == 0 || elapsed <= 0
+                ? 0 : (batchTransferred.get() + transferred) * 1000 / elapsed;
+        return new Progress(batchJobs.get(), batchCompleted.get(), batchFailed.get(), bytes, total, bytesPerSecond);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void enqueue(String direction, List<Uri> uris, String target) {
+        if (uris.isEmpty()) return;
+        dbExecutor.execute(() -> {
+            // A file that is already queued for the same place isn't queued twice
+            final Set<String> queued = new HashSet<>();
+            final List<TransferJob> active =
+                    dao.getByStates(Arrays.asList(TransferJob.STATE_PENDING, TransferJob.STATE_RUNNING));
+            for (TransferJob job : active) {
+                if (job.direction.equals(direction) && job.target.equals(target)) queued.add(job.sourceUri);
+            }
+            final long now = System.currentTimeMillis();
+            final List<TransferJob> jobs = new ArrayList<>(uris.size());
+            for (Uri uri : uris) {
+                if (!queued.add(uri.toString())) continue;
+                jobs.add(new TransferJob(direction, uri.toString(), target, TransferJob.STATE_PENDING, now));
+            }
+            if (jobs.isEmpty()) return;
+            dao.insertAll(jobs);
+            SmbTransferService.start(context);
+        });
+    }
+
+    private void run(TransferJob job) {
+        final JobProgress progress = new JobProgress();
+        running.put(job.id, progress);
+        dbExecutor.execute(() -> dao.update(job.id, TransferJob.STATE_RUNNING, job.bytesDone, job.totalBytes, null));
+
+        String state;
+        String error = null;
+        try {
+            final Uri source = Uri.parse(job.sourceUri);
+            final SecureStorageHelper ssh = SecureStorageHelper.getInstance(context);
+            final SmbFileTransfer.ProgressListener listener = (bytesDone, totalBytes, bytesPerSecond) -> {
+                if (progress.start < 0) progress.start = bytesDone;
+                progress.done = bytesDone;
+                progress.total = totalBytes;
+                notifyProgress();
+            };
+
+            if (job.isUpload()) {
+                final SmbCredentials creds = SmbCredentials.getSmbCredentials(ssh).get(job.target);
+                if (creds == null) throw new IllegalStateException("SMB connection " + job.target + " no longer exists");
+                try (SmbSessionPool.Lease lease = SmbSessionPool.getInstance().leaseUnmetered(creds)) {
+                    final String root = creds.getRootPath();
+                    final String name = fileTransfer.getFileNameFromUri(source);
+                    final String remotePath = root.isEmpty() ? name : root + "/" + name;
+                    // Files with the same name go one after another, so each sees what the previous one left
+                    final String pathKey = SmbDirState.keyFor(creds.host, creds.share, remotePath)
+                            .toLowerCase(Locale.ROOT);
+                    lockPath(pathKey);
+                    try {
+                        fileTransfer.upload(lease, creds, source, remotePath, listener);
+                    } finally {
+                        unlockPath(pathKey);
+                    }
+                }
+                state = deleteOriginal(source) ? TransferJob.STATE_DONE : TransferJob.STATE_AWAITING_DELETE;
+            } else {
+                final SmbCredentials creds = SmbCredentials.getForUri(ssh, source);
+                if (creds == null) throw new IllegalStateException("No SMB connection for " + source);
+                try (SmbSessionPool.Lease lease = SmbSessionPool.getInstance().leaseUnmetered(creds)) {
+                    fileTransfer.download(lease, creds, source, Uri.parse(job.target), listener);
+                }
+                state = TransferJob.STATE_DONE;
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Transfer of " + job.sourceUri + " failed", e);
+            state = TransferJob.STATE_FAILED;
+            error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+        }
+
+        running.remove(job.id);
+        job.state = state;
+        job.error = error;
+        job.bytesDone = progress.done;
+        job.totalBytes = progress.total;
+        if (progress.start >= 0) batchTransferred.addAndGet(progress.done - progress.start);
+        batchBytes.addAndGet(progress.done);
+        if (progress.total > 0) batchTotalBytes.addAndGet(progress.total);
+        if (TransferJob.STATE_FAILED.equals(state)) {
+            batchFailed.incrementAndGet();
+        } else {
+            batchCompleted.incrementAndGet();
+        }
+
+        final String finalState = state;
+        final String finalError = error;
+        dbExecutor.execute(() -> {
+            dao.update(job.id, finalState, job.bytesDone, job.totalBytes, finalError);
+            scheduled.remove(job.id);
+            for (Listener l : listeners) l.onJobFinished(job);
+            if (scheduled.isEmpty()) notifyIdle();
+        });
+    }
+
+    private void lockPath(String pathKey) throws InterruptedException {
+        synchronized (busyPaths) {
+            while (!busyPaths.add(pathKey)) busyPaths.wait();
+        }
+    }
+
+    private void unlockPath(String pathKey) {
+        synchronized (busyPaths) {
+            busyPaths.remove(pathKey);
+            busyPaths.notifyAll();
+        }
+    }
+
+    /**
+     * Direct deletion works for files this app owns; others need the user's consent.
+     */
+    private boolean deleteOriginal(Uri uri) {
+        try {
+            return FileHelper.deleteUris(context, CollectionUtil.setOf(uri)) > 0;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to delete uploaded original " + uri, e);
+            return false;
+        }
+    }
+
+    private void notifyProgress() {
+        final long now = System.currentTimeMillis();
+        final long last = lastProgressAt.get();
+        if (now - last < PROGRESS_INTERVAL_MS || !lastProgressAt.compareAndSet(last, now)) return;
+        final Progress progress = getProgress();
+        for (Listener l : listeners) l.onProgress(progress);
+    }
+
+    // Runs on the database executor, so it can't interleave with newly enqueued jobs being scheduled
+    private void notifyIdle() {
+        final Progress progress = getProgress();
+        Log.i(TAG, "Transfers finished: " + progress);
+        dao.deleteDone();
+        batchJobs.set(0);
+        batchCompleted.set(0);
+        batchFailed.set(0);
+        batchBytes.set(0);
+        batchTotalBytes.set(0);
+        batchTransferred.set(0);
+        batchStartedAt = 0;
+        for (Listener l : listeners) l.onIdle(progress);
+    }
+
+    private static class JobProgress {
+        volatile long start = -1;
+        volatile long done = 0;
+        volatile long total = -1;
+    }
+
+    /**
+     * Aggregate progress of the jobs since the queue last ran empty.
+     */
+    public static class Progress {
+        public final int jobs;
+        public final int completed;
+        public final int failed;
+        public final long bytesDone;
+        // Only covers jobs that have started; the size of queued files isn't known yet
+        public final long totalBytes;
+        public final long bytesPerSecond;
+
+        Progress(int jobs, int completed, int failed, long bytesDone, long totalBytes, long bytesPerSecond) {
+            this.jobs = jobs;
+            this.completed = completed;
+            this.failed = failed;
+            this.bytesDone = bytesDone;
+            this.totalBytes = totalBytes;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return "Progress{jobs=" + jobs
+                    + ", completed=" + completed
+                    + ", failed=" + failed
+                    + ", bytesDone=" + bytesDone
+                    + ", totalBytes=" + totalBytes
+                    + ", bytesPerSecond=" + bytesPerSecond + "}";
+        }
+    }
+
+    /**
+     * Receives queue events on background threads.
+     */
+    public interface Listener {
+        default void onProgress(Progress progress) {
+        }
+
+        default void onJobFinished(TransferJob job) {
+        }
+
+        /**
+         * Every queued job has finished.
+         */
+        default void onIdle(Progress progress) {
+        }
+    }
+}
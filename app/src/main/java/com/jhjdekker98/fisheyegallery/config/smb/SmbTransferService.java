@@ -0,0 +1,123 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.IBinder;
+import android.text.format.Formatter;
+import android.util.Log;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.ServiceCompat;
+import androidx.core.content.ContextCompat;
+import com.jhjdekker98.fisheyegallery.R;
+import com.jhjdekker98.fisheyegallery.activity.MainActivity;
+
+/**
+ * Foreground service that keeps the process alive while {@link SmbTransferQueue} has work, and shows the
+ * queue's progress as a notification.
+ */
+public class SmbTransferService extends Service implements SmbTransferQueue.Listener {
+    private static final String TAG = "SmbTransferService";
+    private static final String CHANNEL_ID = "smb_transfers";
+    private static final int NOTIFICATION_ID = 1;
+    private static final int SUMMARY_NOTIFICATION_ID = 2;
+
+    private NotificationManager notificationManager;
+    private SmbTransferQueue queue;
+    private volatile int lastStartId;
+
+    public static void start(Context context) {
+        ContextCompat.startForegroundService(context, new Intent(context, SmbTransferService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            notificationManager.createNotificationChannel(new NotificationChannel(
+                    CHANNEL_ID, "File transfers", NotificationManager.IMPORTANCE_LOW));
+        }
+        queue = SmbTransferQueue.getInstance(this);
+        queue.addListener(this);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        try {
+            ServiceCompat.startForeground(this, NOTIFICATION_ID, buildNotification(queue.getProgress()),
+                    ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+        } catch (RuntimeException e) {
+            // E.g. restarted by the system while the app is in the background; picked up on the next launch
+            Log.w(TAG, "Could not start in the foreground", e);
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        lastStartId = startId;
+        queue.start();
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        queue.removeListener(this);
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onProgress(SmbTransferQueue.Progress progress) {
+        notificationManager.notify(NOTIFICATION_ID, buildNotification(progress));
+    }
+
+    @Override
+    public void onIdle(SmbTransferQueue.Progress progress) {
+        ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE);
+        if (progress.jobs > 0) {
+            final String text = progress.failed == 0
+                    ? String.format("Moved %d files", progress.completed)
+                    : String.format("Moved %d files, %d failed", progress.completed, progress.failed);
+            notificationManager.notify(SUMMARY_NOTIFICATION_ID, baseBuilder()
+                    .setContentTitle("Transfers finished")
+                    .setContentText(text)
+                    .setAutoCancel(true)
+                    .build());
+        }
+        // Only stops if nothing was enqueued (and the service started again) in the meantime
+        stopSelf(lastStartId);
+    }
+
+    private Notification buildNotification(SmbTransferQueue.Progress progress) {
+        final int finished = progress.completed + progress.failed;
+        final String text = progress.jobs == 0
+                ? "Preparing…"
+                : String.format("%d of %d files · %s/s", finished, progress.jobs,
+                Formatter.formatShortFileSize(this, progress.bytesPerSecond));
+        return baseBuilder()
+                .setContentTitle("Moving files")
+                .setContentText(text)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setProgress(progress.jobs, finished, progress.jobs == 0)
+                .build();
+    }
+
+    private NotificationCompat.Builder baseBuilder() {
+        final PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.md_cloud_upload_24px)
+                .setContentIntent(contentIntent)
+                .setPriority(NotificationCompat.PRIORITY_LOW);
+    }
+}
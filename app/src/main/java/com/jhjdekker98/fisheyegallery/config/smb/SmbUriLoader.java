@@ -2,6 +2,7 @@ package com.jhjdekker98.fisheyegallery.config.smb;
 
 import android.content.Context;
 import android.net.Uri;
+import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import com.bumptech.glide.Priority;
@@ -9,26 +10,22 @@ import com.bumptech.glide.load.DataSource;
 import com.bumptech.glide.load.Options;
 import com.bumptech.glide.load.data.DataFetcher;
 import com.bumptech.glide.load.model.ModelLoader;
+import com.bumptech.glide.request.target.Target;
 import com.bumptech.glide.signature.ObjectKey;
-import com.hierynomus.msdtyp.AccessMask;
-import com.hierynomus.msfscc.FileAttributes;
-import com.hierynomus.mssmb2.SMB2CreateDisposition;
-import com.hierynomus.mssmb2.SMB2CreateOptions;
-import com.hierynomus.mssmb2.SMB2ShareAccess;
-import com.hierynomus.smbj.SMBClient;
-import com.hierynomus.smbj.connection.Connection;
-import com.hierynomus.smbj.session.Session;
-import com.hierynomus.smbj.share.DiskShare;
 import com.jhjdekker98.fisheyegallery.Constants;
 import com.jhjdekker98.fisheyegallery.security.SecureStorageHelper;
+import com.jhjdekker98.fisheyegallery.util.FileHelper;
+import com.jhjdekker98.fisheyegallery.util.MediaMetadataParser;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.EnumSet;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.Executors;
 
 public class SmbUriLoader implements ModelLoader<Uri, InputStream> {
+    // How far an embedded thumbnail may be scaled up to fill the target before the full image is loaded instead
+    private static final float MAX_THUMBNAIL_UPSCALE = 2f;
+    // Keeps thumbnails and full images apart in Glide's data cache
+    private static final String THUMBNAIL_KEY_SUFFIX = "#thumbnail";
 
     private final Context context;
 
@@ -40,7 +37,10 @@ public class SmbUriLoader implements ModelLoader<Uri, InputStream> {
     @Override
     public LoadData<InputStream> buildLoadData(@NonNull Uri uri, int width, int height,
                                                @NonNull Options options) {
-        return new LoadData<>(new ObjectKey(uri), new SmbDataFetcher(context, uri));
+        if (!isThumbnailCandidate(uri, width, height)) {
+            return new LoadData<>(new ObjectKey(uri), new SmbDataFetcher(context, uri, 0, 0));
+        }
+        return new LoadData<>(new ObjectKey(uri + THUMBNAIL_KEY_SUFFIX), new SmbDataFetcher(context, uri, width, height));
     }
 
     @Override
@@ -48,53 +48,73 @@ public class SmbUriLoader implements ModelLoader<Uri, InputStream> {
         return "content".equals(uri.getScheme()) && Constants.SMB_CONTENT_AUTHORITY.equals(uri.getAuthority());
     }
 
+    /**
+     * Only JPEG and HEIF files carry an EXIF thumbnail, and only sized targets can judge if it is big enough.
+     */
+    private static boolean isThumbnailCandidate(Uri uri, int width, int height) {
+        if (width == Target.SIZE_ORIGINAL || height == Target.SIZE_ORIGINAL || width <= 0 || height <= 0) {
+            return false;
+        }
+        final String mimeType = FileHelper.getFileMimeType(uri.getLastPathSegment());
+        return "image/jpeg".equals(mimeType) || "image/heic".equals(mimeType) || "image/heif".equals(mimeType);
+    }
+
     // --- DataFetcher ---
     public static class SmbDataFetcher implements DataFetcher<InputStream> {
+        private static final String TAG = "SmbDataFetcher";
 
         private final Context context;
         private final Uri uri;
-        private InputStream inputStream;
-
-        public SmbDataFetcher(Context context, Uri uri) {
+        // Target size when the embedded thumbnail may be used, 0 to always load the full image
+        private final int width;
+        private final int height;
+        private volatile InputStream inputStream;
+        private volatile SmbBlockReader reader;
+        private volatile SmbFetchScheduler.Task task;
+        private volatile boolean cancelled = false;
+
+        public SmbDataFetcher(Context context, Uri uri, int width, int height) {
             this.context = context.getApplicationContext();
             this.uri = uri;
+            this.width = width;
+            this.height = height;
         }
 
         @Override
         public void loadData(@NonNull Priority priority, @NonNull DataCallback<? super InputStream> callback) {
-            Executors.newSingleThreadExecutor().execute(() -> {
+            // Don't take up a fetch thread for a host that is known to be down; Glide's caches still apply
+            final String host = uri.getPathSegments().get(0);
+            if (!SmbHostHealth.getInstance().isAvailable(host)) {
+                callback.onLoadFailed(new SmbHostUnavailableException(host));
+                return;
+            }
+            task = SmbFetchScheduler.getInstance().submit(priority, () -> {
                 try {
                     SmbCredentials creds = getCredentialsForUri(uri);
                     if (creds == null) throw new IOException("No SMB credentials found for " + uri);
 
-                    SMBClient client = new SMBClient();
-                    Connection connection = client.connect(creds.host);
-                    Session session = connection.authenticate(
-                            new com.hierynomus.smbj.auth.AuthenticationContext(
-                                    creds.username,
-                                    creds.password.toCharArray(),
-                                    null
-                            )
-                    );
-                    DiskShare share = (DiskShare) session.connectShare(creds.share);
-
-                    String path = buildSmbPath(uri);
-                    com.hierynomus.smbj.share.File smbFile = share.openFile(
-                            path,
-                            EnumSet.of(AccessMask.GENERIC_READ),
-                            EnumSet.of(FileAttributes.FILE_ATTRIBUTE_NORMAL),
-                            EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ),
-                            SMB2CreateDisposition.FILE_OPEN,
-                            EnumSet.of(SMB2CreateOptions.FILE_NON_DIRECTORY_FILE)
-                    );
-
-                    inputStream = smbFile.getInputStream(); // give Glide the stream
+                    reader = SmbBlockReader.open(context, creds, buildSmbPath(uri));
+                    if (cancelled) {
+                        cleanup();
+                        return;
+                    }
+                    final MediaMetadataParser.Thumbnail thumbnail = readThumbnail(reader);
+                    if (thumbnail != null) {
+                        reader.close();
+                        inputStream = new ByteArrayInputStream(thumbnail.data);
+                    } else {
+                        inputStream = reader.openStream(); // give Glide the stream, backed by the block cache
+                    }
+                    if (cancelled) {
+                        cleanup();
+                        return;
+                    }
                     callback.onDataReady(inputStream);
 
-                    // Close SMB resources asynchronously when Glide is done
-                    // We'll close in cleanup()
+                    // SMB file handle is released in cleanup() once Glide is done
                 } catch (Exception e) {
-                    callback.onLoadFailed(e);
+                    cleanup();
+                    if (!cancelled) callback.onLoadFailed(e);
                 }
             });
         }
@@ -105,10 +125,20 @@ public class SmbUriLoader implements ModelLoader<Uri, InputStream> {
                 if (inputStream != null) inputStream.close();
             } catch (IOException ignored) {
             }
+            if (reader != null) reader.close();
         }
 
+        /**
+         * Called by Glide when the target no longer needs the image, e.g. a recycled grid cell. A queued
+         * fetch is dropped; a running one is aborted by closing its file handle.
+         */
         @Override
         public void cancel() {
+            cancelled = true;
+            final SmbFetchScheduler.Task current = task;
+            if (current != null) current.cancel();
+            final SmbBlockReader currentReader = reader;
+            if (currentReader != null) currentReader.close();
         }
 
         @NonNull
@@ -123,12 +153,27 @@ public class SmbUriLoader implements ModelLoader<Uri, InputStream> {
             return DataSource.REMOTE;
         }
 
+        /**
+         * @return the embedded thumbnail if it is large enough for the target, read with a few small ranged
+         * reads that bypass the block cache, or {@code null} to load the full image
+         */
+        private MediaMetadataParser.Thumbnail readThumbnail(SmbBlockReader reader) {
+            if (width <= 0 || height <= 0) return null;
+            try {
+                final MediaMetadataParser.Thumbnail thumbnail =
+                        MediaMetadataParser.readThumbnail(reader.asProbeSource());
+                if (thumbnail == null) return null;
+                final boolean largeEnough = thumbnail.width * MAX_THUMBNAIL_UPSCALE >= width
+                        && thumbnail.height * MAX_THUMBNAIL_UPSCALE >= height;
+                return largeEnough ? thumbnail : null;
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, "Failed to read embedded thumbnail of " + uri, e);
+                return null;
+            }
+        }
+
         private SmbCredentials getCredentialsForUri(Uri uri) {
-            // Lookup credentials using the key from SecureStorageHelper
-            final SecureStorageHelper ssh = SecureStorageHelper.getInstance(context.getApplicationContext());
-            Map<String, SmbCredentials> credsMap = SmbCredentials.getSmbCredentials(ssh);
-            String key = uri.getPathSegments().get(0) + "/" + uri.getPathSegments().get(1);
-            return credsMap.get(key);
+            return SmbCredentials.getForUri(SecureStorageHelper.getInstance(context), uri);
         }
 
         private String buildSmbPath(Uri uri) {
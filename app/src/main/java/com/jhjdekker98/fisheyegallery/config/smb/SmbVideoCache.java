@@ -0,0 +1,55 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.content.Context;
+import android.net.Uri;
+import androidx.annotation.OptIn;
+import androidx.media3.common.util.UnstableApi;
+import androidx.media3.database.StandaloneDatabaseProvider;
+import androidx.media3.datasource.DataSource;
+import androidx.media3.datasource.cache.CacheDataSource;
+import androidx.media3.datasource.cache.LeastRecentlyUsedCacheEvictor;
+import androidx.media3.datasource.cache.SimpleCache;
+import com.jhjdekker98.fisheyegallery.Constants;
+import java.io.File;
+
+/**
+ * Process-wide media3 cache for SMB video, kept apart from the block cache so watching a few long videos
+ * doesn't push all cached photos out.
+ */
+@OptIn(markerClass = UnstableApi.class)
+public class SmbVideoCache {
+    private static final String DIR_NAME = "smb_video";
+    private static SimpleCache cache;
+
+    private static synchronized SimpleCache getCache(Context context) {
+        if (cache == null) {
+            final Context appContext = context.getApplicationContext();
+            cache = new SimpleCache(
+                    new File(appContext.getCacheDir(), DIR_NAME),
+                    new LeastRecentlyUsedCacheEvictor(Constants.SMB_VIDEO_CACHE_MAX_BYTES),
+                    new StandaloneDatabaseProvider(appContext));
+        }
+        return cache;
+    }
+
+    /**
+     * Cached data is keyed by URI and content version, so a video that was replaced on the share isn't
+     * played from the old file's bytes. Set it with {@code MediaItem.Builder#setCustomCacheKey}.
+     *
+     * @param contentVersion see {@code MediaCacheItem.contentVersionOf}
+     */
+    public static String cacheKeyFor(Uri uri, long contentVersion) {
+        return uri + "#" + Long.toHexString(contentVersion);
+    }
+
+    /**
+     * @return a data source factory reading SMB content URIs through the video cache; media items should
+     * carry a {@link #cacheKeyFor cache key}
+     */
+    public static DataSource.Factory createDataSourceFactory(Context context) {
+        return new CacheDataSource.Factory()
+                .setCache(getCache(context))
+                .setUpstreamDataSourceFactory(new SmbDataSource.Factory(context))
+                .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+    }
+}
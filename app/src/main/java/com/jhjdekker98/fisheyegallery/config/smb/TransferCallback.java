@@ -4,4 +4,12 @@ public interface TransferCallback {
     void onSuccess(String message);
 
     void onFailure(String message, Exception e);
+
+    /**
+     * Called on the UI thread a few times per second while a transfer is running.
+     *
+     * @param totalBytes -1 if unknown
+     */
+    default void onProgress(long bytesDone, long totalBytes, long bytesPerSecond) {
+    }
 }
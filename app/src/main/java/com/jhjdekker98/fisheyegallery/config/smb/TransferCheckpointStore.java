@@ -0,0 +1,59 @@
+package com.jhjdekker98.fisheyegallery.config.smb;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * Remembers how far interrupted transfers got, so they can continue from there instead of starting over.
+ */
+public class TransferCheckpointStore {
+    private static final String PREFS_NAME = "transfer_checkpoints";
+    private final SharedPreferences prefs;
+    private final Gson gson = new Gson();
+
+    public TransferCheckpointStore(Context context) {
+        this.prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public Checkpoint get(String transferId) {
+        final String json = prefs.getString(transferId, null);
+        if (json == null) return null;
+        try {
+            return gson.fromJson(json, Checkpoint.class);
+        } catch (JsonSyntaxException e) {
+            remove(transferId);
+            return null;
+        }
+    }
+
+    public void put(String transferId, Checkpoint checkpoint) {
+        prefs.edit().putString(transferId, gson.toJson(checkpoint)).apply();
+    }
+
+    public void remove(String transferId) {
+        prefs.edit().remove(transferId).apply();
+    }
+
+    public static class Checkpoint {
+        // Where the data goes; for downloads the document that was created on the first attempt
+        public final String destination;
+        // Size and last-modified time of the source, to tell if it changed in between
+        public final long sourceSize;
+        public final long sourceLastModified;
+        // Bytes that are known to be durably written at the destination
+        public final long offset;
+
+        public Checkpoint(String destination, long sourceSize, long sourceLastModified, long offset) {
+            this.destination = destination;
+            this.sourceSize = sourceSize;
+            this.sourceLastModified = sourceLastModified;
+            this.offset = offset;
+        }
+
+        public boolean matches(long sourceSize, long sourceLastModified) {
+            return this.sourceSize == sourceSize && this.sourceLastModified == sourceLastModified;
+        }
+    }
+}
@@ -1,55 +1,58 @@
 package com.jhjdekker98.fisheyegallery.model;
 
 import android.app.Application;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
-import android.provider.DocumentsContract;
-import android.provider.MediaStore;
 import android.util.Log;
 import androidx.annotation.NonNull;
-import androidx.documentfile.provider.DocumentFile;
 import androidx.lifecycle.AndroidViewModel;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import com.jhjdekker98.fisheyegallery.Constants;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbChangeWatcher;
 import com.jhjdekker98.fisheyegallery.config.smb.SmbCredentials;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbSessionPool;
+import com.jhjdekker98.fisheyegallery.model.mediacache.DayCount;
 import com.jhjdekker98.fisheyegallery.model.mediacache.MediaCacheItem;
 import com.jhjdekker98.fisheyegallery.model.mediacache.MediaCacheRepository;
+import com.jhjdekker98.fisheyegallery.model.mediacache.MediaCacheValidator;
 import com.jhjdekker98.fisheyegallery.model.mediaindexer.IMediaIndexer;
 import com.jhjdekker98.fisheyegallery.model.mediaindexer.IndexerType;
+import com.jhjdekker98.fisheyegallery.model.mediaindexer.MediaRecord;
+import com.jhjdekker98.fisheyegallery.model.mediaindexer.SmbIndexer;
 import com.jhjdekker98.fisheyegallery.security.SecureStorageHelper;
 import com.jhjdekker98.fisheyegallery.util.FileHelper;
-import java.io.File;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.concurrent.CountDownLatch;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import static android.content.Context.MODE_PRIVATE;
 
 public class FileListViewModel extends AndroidViewModel {
-    private static final int CACHE_BATCH_SIZE = 100;
+    private static final int CACHE_BATCH_SIZE = 500;
+    // Indexer batches arriving within this window are published as one timeline update
+    private static final long REBUILD_DELAY_MS = 250;
 
-    private final MutableLiveData<List<GalleryItem>> groupedMediaLive = new MutableLiveData<>(new ArrayList<>());
-    private final LinkedHashMap<String, Uri> uriMap = new LinkedHashMap<>();
-    private final LinkedHashMap<String, List<GalleryItem.Image>> groupedMap = new LinkedHashMap<>();
+    private final MutableLiveData<MediaCatalog.Snapshot> groupedMediaLive =
+            new MutableLiveData<>(MediaCatalog.Snapshot.EMPTY);
     private final List<IMediaIndexer> activeIndexers = new ArrayList<>();
+    private final List<SmbIndexer> smbIndexers = new ArrayList<>();
+    private final List<SmbChangeWatcher> watchers = new ArrayList<>();
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final MediaCatalogWriter catalog = new MediaCatalogWriter(REBUILD_DELAY_MS,
+            snapshot -> mainHandler.post(() -> groupedMediaLive.setValue(snapshot)));
 
     private final MediaCacheRepository cacheRepo;
     private ExecutorService executor;
+    private ExecutorService validationExecutor;
 
     public FileListViewModel(@NonNull Application application) {
         super(application);
@@ -57,154 +60,201 @@ public class FileListViewModel extends AndroidViewModel {
         this.cacheRepo = new MediaCacheRepository(application);
     }
 
-    public LiveData<List<GalleryItem>> getGroupedMediaItems() {
+    public LiveData<MediaCatalog.Snapshot> getGroupedMediaItems() {
         return groupedMediaLive;
     }
 
     // --- Load cache, then run indexers ---
     public void loadCacheThenIndex(List<IMediaIndexer> indexers) {
         stopIndexing();
+        stopWatching();
+        synchronized (this) {
+            smbIndexers.clear();
+            for (IMediaIndexer idx : indexers) {
+                if (idx instanceof SmbIndexer) smbIndexers.add((SmbIndexer) idx);
+            }
+        }
         if (executor != null) executor.shutdownNow();
+        if (validationExecutor != null) validationExecutor.shutdownNow();
         executor = Executors.newSingleThreadExecutor();
+        validationExecutor = Executors.newSingleThreadExecutor();
+        final ExecutorService validation = validationExecutor;
 
         executor.execute(() -> {
-            int skip = 0;
-            final List<MediaCacheItem> batch = new ArrayList<>();
-            final Context context = getApplication();
-
-            do {
-                final CountDownLatch latch = new CountDownLatch(1);
-
-                cacheRepo.queryCache(skip, CACHE_BATCH_SIZE, items -> {
-                    final List<MediaCacheItem> validItems = new ArrayList<>();
-                    final List<MediaCacheItem> staleItems = new ArrayList<>();
-
-                    items.forEach(mci -> {
-                        boolean fileExists = checkUriExists(Uri.parse(mci.uri));
-                        boolean acceptedBySettings = indexerTypeAcceptedByCurrentSettings(mci.indexerType, context);
-                        if (fileExists && acceptedBySettings) {
-                            validItems.add(mci);
-                        } else {
-                            staleItems.add(mci);
-                        }
-                    });
-
-                    processNewCacheItems(validItems, true);
-
-                    if (!staleItems.isEmpty()) {
-                        cacheRepo.deleteFromCache(staleItems);
-                        removeFromMapsAndUi(staleItems);
-                    }
-
-                    batch.clear();
-                    batch.addAll(validItems);
-                    latch.countDown();
-                });
-
-                try {
-                    latch.await();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
+            // Stream the cache to the timeline page by page, without checking anything per item first
+            final Map<IndexerType, Boolean> accepted = getAcceptedIndexerTypes(getApplication());
+            // Lay out the whole timeline from the per-day counts first; days fill in as their pages arrive
+            final Map<Integer, Integer> expectedDays = new HashMap<>();
+            for (DayCount dayCount : cacheRepo.queryDayCounts()) {
+                if (Boolean.FALSE.equals(accepted.get(dayCount.indexerType))) continue;
+                expectedDays.merge(dayCount.epochDay, dayCount.count, Integer::sum);
+            }
+            catalog.post(c -> c.setExpectedDays(expectedDays), false);
+            MediaCacheItem last = null;
+            boolean first = true;
+            while (!Thread.currentThread().isInterrupted()) {
+                final List<MediaCacheItem> page = cacheRepo.queryPage(last, CACHE_BATCH_SIZE);
+                if (page.isEmpty()) break;
+                last = page.get(page.size() - 1);
+
+                final List<MediaCacheItem> validItems = new ArrayList<>();
+                final List<MediaCacheItem> staleItems = new ArrayList<>();
+                for (MediaCacheItem mci : page) {
+                    if (Boolean.FALSE.equals(accepted.get(mci.indexerType))) staleItems.add(mci);
+                    else validItems.add(mci);
                 }
-
-                skip += CACHE_BATCH_SIZE;
-            } while (!batch.isEmpty());
+                // The first page is what fills the screen; publish it right away and batch the rest
+                processNewCacheItems(validItems, first);
+                final int loadedThrough = MediaCatalog.toEpochDay(last.lastModified);
+                catalog.post(c -> c.setLoadedThrough(loadedThrough), first);
+                if (!staleItems.isEmpty()) cacheRepo.deleteFromCache(staleItems);
+                first = false;
+            }
+            if (Thread.currentThread().isInterrupted()) return; // Reloading, or the view model is gone
+            catalog.post(MediaCatalog::clearExpectedDays, true);
 
             startIndexing(indexers);
+            startWatching();
+            validation.execute(this::validateCache);
         });
     }
 
+    /**
+     * Remove cached items whose file no longer exists. Runs at background priority after the timeline is up.
+     * Sources are asked in bulk (see {@link MediaCacheValidator}), and everything stale is deleted in one
+     * transaction at the end.
+     */
+    private void validateCache() {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        final long start = System.currentTimeMillis();
+        final MediaCacheValidator validator = new MediaCacheValidator(getApplication());
+        final List<MediaCacheItem> staleItems = new ArrayList<>();
+        int checked = 0;
+        MediaCacheItem last = null;
+        while (true) {
+            final List<MediaCacheItem> page = cacheRepo.queryPage(last, CACHE_BATCH_SIZE);
+            if (page.isEmpty()) break;
+            last = page.get(page.size() - 1);
+
+            for (MediaCacheItem mci : page) {
+                if (Thread.currentThread().isInterrupted()) return;
+                try {
+                    if (validator.isStale(mci)) staleItems.add(mci);
+                } catch (RuntimeException e) {
+                    Log.w("FileListViewModel", "Could not validate " + mci.uri, e);
+                }
+            }
+            checked += page.size();
+        }
+        if (!staleItems.isEmpty()) {
+            cacheRepo.deleteFromCache(staleItems);
+            removeFromMapsAndUi(staleItems);
+        }
+        Log.d("FileListViewModel", String.format("Validated %d cached items, %d stale, in %d ms",
+                checked, staleItems.size(), System.currentTimeMillis() - start));
+    }
+
     // --- Process cache/indexed items ---
     private void processNewCacheItems(List<MediaCacheItem> items, boolean forcePost) {
         if (items == null || items.isEmpty()) return;
 
-        synchronized (uriMap) {
-            for (MediaCacheItem item : items) {
-                Uri u = Uri.parse(item.uri);
-                if (!uriMap.containsKey(item.key)) {
-                    uriMap.put(item.key, u);
-
-                    String dayKey = formatDay(item.lastModified);
-                    List<GalleryItem.Image> dayList = groupedMap.computeIfAbsent(dayKey, k -> new ArrayList<>());
-                    dayList.add(new GalleryItem.Image(u, item.indexerType));
-                }
+        final int[] types = new int[items.size()];
+        for (int i = 0; i < items.size(); i++) {
+            final MediaCacheItem item = items.get(i);
+            String mimeType = item.mimeType;
+            if (mimeType == null) {
+                // Not known to the cache (yet); go by the file name where there is one
+                final String name = Uri.parse(item.uri).getLastPathSegment();
+                mimeType = name == null ? null : FileHelper.getFileMimeType(name);
             }
+            types[i] = GalleryItem.Image.typeOf(mimeType);
         }
 
-        if (forcePost) rebuildAndPost();
-        else mainHandler.post(this::rebuildAndPost);
+        catalog.post(c -> {
+            boolean changed = false;
+            for (int i = 0; i < items.size(); i++) {
+                final MediaCacheItem item = items.get(i);
+                changed |= c.add(item.key, item.uri, item.lastModified, item.indexerType, types[i],
+                        item.contentVersion);
+            }
+            return changed;
+        }, forcePost);
     }
 
     private void removeFromMapsAndUi(List<MediaCacheItem> staleItems) {
-        synchronized (uriMap) {
+        catalog.post(c -> {
+            boolean changed = false;
             for (MediaCacheItem mci : staleItems) {
-                uriMap.remove(mci.key);
-                groupedMap.values().forEach(list ->
-                        list.removeIf(img -> img.uri.toString().equals(mci.uri))
-                );
+                changed |= c.remove(mci.key);
             }
-        }
-        rebuildAndPost();
-    }
-
-    private void rebuildAndPost() {
-        List<GalleryItem> rebuilt = new ArrayList<>();
-        // Sort day keys descending (newest first)
-        List<String> sortedKeys = new ArrayList<>(groupedMap.keySet());
-        sortedKeys.sort(Comparator.reverseOrder());
-
-        for (String dayKey : sortedKeys) {
-            List<GalleryItem.Image> images = groupedMap.get(dayKey);
-            if (images == null || images.isEmpty()) continue;
-            rebuilt.add(new GalleryItem.Header(dayKey));
-            rebuilt.addAll(images);
-        }
-
-        mainHandler.post(() -> {
-            groupedMediaLive.setValue(rebuilt);
-        });
+            return changed;
+        }, true);
     }
 
     // --- Indexing callbacks ---
-    private void processNewUris(List<Uri> newUris, IndexerType indexerType, boolean forcePost) {
-        if (newUris == null || newUris.isEmpty()) return;
+    private void processNewRecords(List<MediaRecord> records, IndexerType indexerType, boolean forcePost) {
+        if (records == null || records.isEmpty()) return;
         final List<MediaCacheItem> cacheItems = new ArrayList<>();
-
-        for (Uri uri : newUris) {
-            String key = normalizeKey(uri);
-            cacheItems.add(new MediaCacheItem(
-                    key,
-                    uri.toString(),
+        final int[] types = new int[records.size()];
+
+        for (MediaRecord record : records) {
+            // Indexers resolve the capture date themselves (MediaStore's DATE_TAKEN, header dates read while
+            // walking SAF folders and on the SMB crawl workers), so no file is opened here
+            final long timestamp = record.timestamp;
+            final String uri = record.uri.toString();
+            final MediaCacheItem item = new MediaCacheItem(
+                    record.key,
+                    uri,
                     null,
                     indexerType,
-                    FileHelper.getFileDate(getApplication(), uri)));
+                    timestamp,
+                    record.mimeType,
+                    record.size,
+                    record.width,
+                    record.height,
+                    MediaCatalog.toEpochDay(timestamp),
+                    MediaCacheItem.sourceRootOf(indexerType, uri),
+                    MediaCacheItem.contentVersionOf(record.modified, record.size));
+            types[cacheItems.size()] = GalleryItem.Image.typeOf(record.mimeType);
+            cacheItems.add(item);
         }
 
-        processNewCacheItems(cacheItems, forcePost);
+        catalog.post(c -> {
+            boolean changed = false;
+            for (int i = 0; i < cacheItems.size(); i++) {
+                final MediaCacheItem item = cacheItems.get(i);
+                changed |= c.add(item.key, item.uri, item.lastModified, indexerType, types[i],
+                        item.contentVersion);
+            }
+            return changed;
+        }, forcePost);
         cacheRepo.updateCache(cacheItems);
     }
 
     private synchronized void startIndexing(List<IMediaIndexer> indexers) {
         stopIndexing();
         if (indexers == null || indexers.isEmpty()) return;
-        activeIndexers.addAll(indexers);
 
         for (IMediaIndexer idx : indexers) {
-            idx.startIndexing(new IMediaIndexer.Callback() {
-                @Override
-                public void onMediaFound(List<Uri> newUris) {
-                    processNewUris(newUris, idx.getIndexerType(), false);
-                }
+            startIndexer(idx);
+        }
+    }
+
+    private synchronized void startIndexer(IMediaIndexer idx) {
+        activeIndexers.add(idx);
+        idx.startIndexing(new IMediaIndexer.Callback() {
+            @Override
+            public void onMediaFound(List<MediaRecord> records) {
+                processNewRecords(records, idx.getIndexerType(), false);
+            }
 
-                @Override
-                public void onComplete() {
-                    synchronized (FileListViewModel.this) {
-                        activeIndexers.remove(idx);
-                    }
+            @Override
+            public void onComplete() {
+                synchronized (FileListViewModel.this) {
+                    activeIndexers.remove(idx);
                 }
-            });
-        }
+            }
+        });
     }
 
     public synchronized void stopIndexing() {
@@ -217,60 +267,72 @@ public class FileListViewModel extends AndroidViewModel {
         activeIndexers.clear();
     }
 
-    @Override
-    protected void onCleared() {
-        super.onCleared();
-        stopIndexing();
-        executor.shutdownNow();
+    // --- Live SMB changes ---
+    private synchronized void startWatching() {
+        if (!watchers.isEmpty()) return;
+        for (SmbIndexer idx : smbIndexers) {
+            final SmbChangeWatcher watcher = new SmbChangeWatcher(getApplication(), idx.getCredentials(),
+                    smbChangeListener);
+            watchers.add(watcher);
+            watcher.start();
+        }
     }
 
-    // --- Helpers ---
-    private boolean checkUriExists(Uri uri) {
-        try {
-            if ("file".equals(uri.getScheme())) return new File(uri.getPath()).exists();
-            if ("content".equals(uri.getScheme())) {
-                DocumentFile df = DocumentFile.fromSingleUri(getApplication(), uri);
-                return df != null && df.exists();
-            }
-            return false;
-        } catch (Exception e) {
-            return false;
+    public synchronized void stopWatching() {
+        for (SmbChangeWatcher watcher : watchers) {
+            watcher.stop();
         }
+        watchers.clear();
     }
 
-    private String normalizeKey(Uri uri) {
-        if (uri == null) return "";
-
-        final ContentResolver resolver = getApplication().getContentResolver();
-        if ("media".equals(uri.getAuthority())) {
-            try (Cursor c = resolver.query(uri,
-                    new String[]{MediaStore.MediaColumns.DISPLAY_NAME, MediaStore.MediaColumns.RELATIVE_PATH},
-                    null, null, null)) {
-                if (c != null && c.moveToFirst()) {
-                    final String name = c.getString(0);
-                    final String path = c.getString(1) == null ? "" : c.getString(1);
-                    return path + name;
+    private final SmbChangeWatcher.Listener smbChangeListener = new SmbChangeWatcher.Listener() {
+        @Override
+        public void onMediaChanged(SmbCredentials creds, List<MediaRecord> records) {
+            processNewRecords(records, IndexerType.SMB, false);
+        }
+
+        @Override
+        public void onMediaRemoved(SmbCredentials creds, List<Uri> uris) {
+            catalog.post(c -> {
+                final List<MediaCacheItem> removed = new ArrayList<>();
+                for (Map.Entry<String, String> entry : c.removeByUri(uris).entrySet()) {
+                    removed.add(new MediaCacheItem(entry.getKey(), entry.getValue(), null, IndexerType.SMB, 0));
                 }
-            } catch (Exception e) {
-                return uri.toString();
-            }
+                if (removed.isEmpty()) return false;
+                cacheRepo.deleteFromCache(removed);
+                return true;
+            }, true);
         }
 
-        if (uri.getAuthority() == null) return uri.toString();
-        if (DocumentsContract.isDocumentUri(getApplication(), uri)) {
-            final String docId = DocumentsContract.getDocumentId(uri);
-            if (docId != null && docId.startsWith("primary:")) {
-                return docId.substring("primary:".length());
-            } else {
-                return docId != null ? docId : uri.toString();
+        @Override
+        public void onRescanNeeded(SmbCredentials creds) {
+            // Re-run the indexer for this share; it only lists directories that changed
+            synchronized (FileListViewModel.this) {
+                for (SmbIndexer idx : smbIndexers) {
+                    if (!SmbSessionPool.keyFor(idx.getCredentials()).equals(SmbSessionPool.keyFor(creds))) continue;
+                    if (!activeIndexers.contains(idx)) startIndexer(idx);
+                }
             }
         }
+    };
 
-        return uri.toString();
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        stopIndexing();
+        stopWatching();
+        executor.shutdownNow();
+        if (validationExecutor != null) validationExecutor.shutdownNow();
+        catalog.shutdown();
     }
 
-    private String formatDay(long millis) {
-        return new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault()).format(new Date(millis));
+    // --- Helpers ---
+    private Map<IndexerType, Boolean> getAcceptedIndexerTypes(Context context) {
+        final Map<IndexerType, Boolean> accepted = new EnumMap<>(IndexerType.class);
+        for (IndexerType type : IndexerType.values()) {
+            accepted.put(type, indexerTypeAcceptedByCurrentSettings(type, context));
+        }
+        return accepted;
     }
 
     private boolean indexerTypeAcceptedByCurrentSettings(IndexerType indexerType, Context context) {
@@ -4,21 +4,57 @@ import android.net.Uri;
 import com.jhjdekker98.fisheyegallery.model.mediaindexer.IndexerType;
 
 public abstract class GalleryItem {
+    /**
+     * @return a key that identifies this item across timeline updates
+     */
+    public abstract String getStableKey();
+
     public static class Header extends GalleryItem {
         public final String dateLabel;
 
         public Header(String dateLabel) {
             this.dateLabel = dateLabel;
         }
+
+        @Override
+        public String getStableKey() {
+            return "header:" + dateLabel;
+        }
     }
 
     public static class Image extends GalleryItem {
+        public static final int TYPE_UNKNOWN = 0;
+        public static final int TYPE_IMAGE = 1;
+        public static final int TYPE_VIDEO = 2;
+
         public final Uri uri;
         public final IndexerType indexerType;
+        // One of the TYPE_* constants; TYPE_UNKNOWN when it has to be looked up from the URI
+        public final int mediaType;
+        // Changes when the file does, see MediaCacheItem.contentVersionOf; 0 if unknown
+        public final long contentVersion;
 
         public Image(Uri uri, IndexerType indexerType) {
+            this(uri, indexerType, TYPE_UNKNOWN, 0);
+        }
+
+        public Image(Uri uri, IndexerType indexerType, int mediaType, long contentVersion) {
             this.uri = uri;
             this.indexerType = indexerType;
+            this.mediaType = mediaType;
+            this.contentVersion = contentVersion;
+        }
+
+        public static int typeOf(String mimeType) {
+            if (mimeType == null) return TYPE_UNKNOWN;
+            if (mimeType.startsWith("video/")) return TYPE_VIDEO;
+            if (mimeType.startsWith("image/")) return TYPE_IMAGE;
+            return TYPE_UNKNOWN;
+        }
+
+        @Override
+        public String getStableKey() {
+            return uri.toString();
         }
     }
 }
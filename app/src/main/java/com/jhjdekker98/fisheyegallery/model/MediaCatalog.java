@@ -0,0 +1,546 @@
+package com.jhjdekker98.fisheyegallery.model;
+
+import android.net.Uri;
+import com.jhjdekker98.fisheyegallery.model.mediaindexer.IndexerType;
+import java.text.SimpleDateFormat;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * In-memory catalog of every item on the timeline, stored column-wise.
+ * <p>
+ * Days, content versions, sources and media types live in primitive arrays indexed by slot. URIs are split into
+ * a shared prefix (the folder, or e.g. {@code content://media/external/images/media/}) and a name, and are
+ * only turned into {@link Uri} objects when a {@link Snapshot} position is read. Keys are found through an
+ * open-addressing table of slot numbers, and removed slots are reused. Memory thus grows with the bytes of
+ * the keys and names rather than with a handful of objects per item.
+ * <p>
+ * The catalog itself is not thread-safe: it is owned by a single writer, {@link MediaCatalogWriter}.
+ * Snapshots are immutable and can be read from any thread without locking. They are built per day, and a
+ * day that hasn't changed since the previous snapshot is shared with it rather than copied again.
+ * <p>
+ * While the catalog is being filled from the cache, the expected number of items per day can be given up
+ * front. Days that haven't been reached yet are then padded with placeholders, so the timeline has its full
+ * length (and scroll range) from the first snapshot on.
+ */
+public class MediaCatalog {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final IndexerType[] SOURCES = IndexerType.values();
+    // Marks a URI that is the same string as its key, so the key is stored only once
+    private static final int URI_IS_KEY = -1;
+
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private String[] uriNames = new String[INITIAL_CAPACITY];
+    private int[] uriPrefixes = new int[INITIAL_CAPACITY];
+    private int[] epochDays = new int[INITIAL_CAPACITY];
+    private long[] contentVersions = new long[INITIAL_CAPACITY];
+    private byte[] sources = new byte[INITIAL_CAPACITY];
+    private byte[] mediaTypes = new byte[INITIAL_CAPACITY];
+    // Slot number + 1 per hash table entry, 0 for empty
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+    private int[] freeSlots = new int[16];
+    private int freeCount = 0;
+    private int slotCount = 0;
+    private int size = 0;
+
+    private final List<String> prefixes = new ArrayList<>();
+    private final Map<String, Integer> prefixIds = new HashMap<>();
+    // Newest day first; slots within a day in the order they were added
+    private final NavigableMap<Integer, Day> days = new TreeMap<>((a, b) -> Integer.compare(b, a));
+    private final SimpleDateFormat dayFormat = newDayFormat();
+    // Expected item count per day while loading, and the oldest day loaded so far
+    private final Map<Integer, Integer> expectedDays = new HashMap<>();
+    private final Map<Integer, DaySnapshot> placeholderDays = new HashMap<>();
+    private int loadedThrough = Integer.MAX_VALUE;
+
+    /**
+     * Add an item unless its key is already in the catalog. An item that is there with another known content
+     * version is replaced, as the file has changed.
+     *
+     * @param mediaType      one of the {@code GalleryItem.Image.TYPE_*} constants
+     * @param contentVersion see {@code MediaCacheItem.contentVersionOf}; 0 if unknown
+     * @return whether the catalog changed
+     */
+    public boolean add(String key, String uri, long timestamp, IndexerType source, int mediaType,
+                       long contentVersion) {
+        final int hash = mix(key.hashCode());
+        final int index = find(key, hash);
+        if (index >= 0) {
+            final long current = contentVersions[table[index] - 1];
+            if (contentVersion == 0 || contentVersion == current) return false;
+            // Its date may have changed along with its content, so add it anew
+            remove(key);
+        }
+
+        final int slot = allocateSlot();
+        keys[slot] = key;
+        hashes[slot] = hash;
+        if (uri.equals(key)) {
+            uriPrefixes[slot] = URI_IS_KEY;
+            uriNames[slot] = null;
+        } else {
+            final int split = uri.lastIndexOf('/') + 1;
+            uriPrefixes[slot] = internPrefix(uri.substring(0, split));
+            uriNames[slot] = uri.substring(split);
+        }
+        epochDays[slot] = toEpochDay(timestamp);
+        contentVersions[slot] = contentVersion;
+        sources[slot] = (byte) source.ordinal();
+        mediaTypes[slot] = (byte) mediaType;
+
+        insertIntoTable(slot, hash);
+        Day day = days.get(epochDays[slot]);
+        if (day == null) {
+            day = new Day();
+            days.put(epochDays[slot], day);
+        }
+        day.slots.add(slot);
+        day.snapshot = null;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return whether the key was in the catalog
+     */
+    public boolean remove(String key) {
+        final int hash = mix(key.hashCode());
+        final int index = find(key, hash);
+        if (index < 0) return false;
+        final int slot = table[index] - 1;
+        deleteFromTable(index);
+
+        final Day day = days.get(epochDays[slot]);
+        day.slots.remove(slot);
+        day.snapshot = null;
+        if (day.slots.size == 0) days.remove(epochDays[slot]);
+
+        keys[slot] = null;
+        uriNames[slot] = null;
+        if (freeCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        freeSlots[freeCount++] = slot;
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove the items whose URI is one of the given URIs, or lies below one of them.
+     *
+     * @return the URIs of the removed items by key
+     */
+    public Map<String, String> removeByUri(List<Uri> uris) {
+        final Map<String, String> found = new LinkedHashMap<>();
+        // Files are looked up by key where the key is their URI, as for SMB; the rest may be directories
+        final Set<String> unresolved = new HashSet<>();
+        for (Uri match : uris) {
+            final String uri = match.toString();
+            final int index = find(uri, mix(uri.hashCode()));
+            if (index >= 0 && uriPrefixes[table[index] - 1] == URI_IS_KEY) {
+                found.put(uri, uri);
+            } else {
+                unresolved.add(uri);
+            }
+        }
+
+        if (!unresolved.isEmpty()) {
+            // One pass, looking up each item's URI and the folders above it
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (keys[slot] == null) continue;
+                final String uri = uriOf(slot);
+                for (int end = uri.length(); end > 0; end = uri.lastIndexOf('/', end - 1)) {
+                    if (unresolved.contains(uri.substring(0, end))) {
+                        found.put(keys[slot], uri);
+                        break;
+                    }
+                }
+            }
+        }
+        for (String key : found.keySet()) remove(key);
+        return found;
+    }
+
+    /**
+     * Pad days with placeholders up to the given item counts, until {@link #clearExpectedDays()}. Items are
+     * expected to be added newest first, see {@link #setLoadedThrough(int)}.
+     *
+     * @param counts the number of items per epoch day
+     * @return whether the catalog changed
+     */
+    public boolean setExpectedDays(Map<Integer, Integer> counts) {
+        expectedDays.clear();
+        expectedDays.putAll(counts);
+        placeholderDays.clear();
+        loadedThrough = Integer.MAX_VALUE;
+        return !counts.isEmpty();
+    }
+
+    /**
+     * Days newer than the given one are complete, and are no longer padded.
+     *
+     * @return whether the catalog changed
+     */
+    public boolean setLoadedThrough(int epochDay) {
+        if (epochDay >= loadedThrough || expectedDays.isEmpty()) return false;
+        loadedThrough = epochDay;
+        return true;
+    }
+
+    /**
+     * Stop padding days with placeholders, e.g. once everything is loaded.
+     *
+     * @return whether the catalog changed
+     */
+    public boolean clearExpectedDays() {
+        if (expectedDays.isEmpty()) return false;
+        expectedDays.clear();
+        placeholderDays.clear();
+        loadedThrough = Integer.MAX_VALUE;
+        return true;
+    }
+
+    /**
+     * @return the timeline as it is now: a header per day, newest first, each followed by that day's items
+     * and, while loading, placeholders
+     */
+    public Snapshot snapshot() {
+        final NavigableMap<Integer, DaySnapshot> shown = new TreeMap<>(days.comparator());
+        for (Map.Entry<Integer, Day> entry : days.entrySet()) {
+            final Day day = entry.getValue();
+            if (day.snapshot == null) day.snapshot = snapshotDay(entry.getKey(), day.slots);
+            shown.put(entry.getKey(), day.snapshot);
+        }
+        for (Integer epochDay : expectedDays.keySet()) {
+            // A newer day without items has had its items removed; it isn't waiting for them
+            if (epochDay > loadedThrough || shown.containsKey(epochDay)) continue;
+            DaySnapshot placeholder = placeholderDays.get(epochDay);
+            if (placeholder == null) {
+                placeholder = snapshotDay(epochDay, new IntList());
+                placeholderDays.put(epochDay, placeholder);
+            }
+            shown.put(epochDay, placeholder);
+        }
+
+        final DaySnapshot[] daySnapshots = new DaySnapshot[shown.size()];
+        final int[] starts = new int[shown.size()];
+        final int[] counts = new int[shown.size()];
+        int position = 0;
+        int index = 0;
+        for (Map.Entry<Integer, DaySnapshot> entry : shown.entrySet()) {
+            int count = entry.getValue().size();
+            if (entry.getKey() <= loadedThrough) {
+                final Integer expected = expectedDays.get(entry.getKey());
+                if (expected != null) count = Math.max(count, expected);
+            }
+            daySnapshots[index] = entry.getValue();
+            starts[index] = position;
+            counts[index++] = count;
+            position += 1 + count;
+        }
+        return new Snapshot(daySnapshots, starts, counts, position);
+    }
+
+    private DaySnapshot snapshotDay(int epochDay, IntList slots) {
+        final String[] uriPrefixRefs = new String[slots.size];
+        final String[] names = new String[slots.size];
+        final byte[] sourceColumn = new byte[slots.size];
+        final byte[] typeColumn = new byte[slots.size];
+        final long[] versionColumn = new long[slots.size];
+        for (int i = 0; i < slots.size; i++) {
+            final int slot = slots.values[i];
+            final boolean uriIsKey = uriPrefixes[slot] == URI_IS_KEY;
+            uriPrefixRefs[i] = uriIsKey ? null : prefixes.get(uriPrefixes[slot]);
+            names[i] = uriIsKey ? keys[slot] : uriNames[slot];
+            sourceColumn[i] = sources[slot];
+            typeColumn[i] = mediaTypes[slot];
+            versionColumn[i] = contentVersions[slot];
+        }
+        return new DaySnapshot(epochDay, dayFormat.format(new Date(epochDay * DAY_MS)),
+                uriPrefixRefs, names, sourceColumn, typeColumn, versionColumn);
+    }
+
+    private String uriOf(int slot) {
+        return uriPrefixes[slot] == URI_IS_KEY ? keys[slot] : prefixes.get(uriPrefixes[slot]) + uriNames[slot];
+    }
+
+    private int internPrefix(String prefix) {
+        Integer id = prefixIds.get(prefix);
+        if (id == null) {
+            id = prefixes.size();
+            prefixes.add(prefix);
+            prefixIds.put(prefix, id);
+        }
+        return id;
+    }
+
+    private int allocateSlot() {
+        if (freeCount > 0) return freeSlots[--freeCount];
+        if (slotCount == keys.length) grow();
+        return slotCount++;
+    }
+
+    private void grow() {
+        final int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        uriNames = Arrays.copyOf(uriNames, capacity);
+        uriPrefixes = Arrays.copyOf(uriPrefixes, capacity);
+        epochDays = Arrays.copyOf(epochDays, capacity);
+        contentVersions = Arrays.copyOf(contentVersions, capacity);
+        sources = Arrays.copyOf(sources, capacity);
+        mediaTypes = Arrays.copyOf(mediaTypes, capacity);
+
+        // Keep the table at most half full
+        table = new int[capacity * 2];
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (keys[slot] != null) insertIntoTable(slot, hashes[slot]);
+        }
+    }
+
+    /**
+     * @return the table index holding the key, or -1
+     */
+    private int find(String key, int hash) {
+        final int mask = table.length - 1;
+        for (int i = hash & mask; table[i] != 0; i = (i + 1) & mask) {
+            final int slot = table[i] - 1;
+            if (hashes[slot] == hash && keys[slot].equals(key)) return i;
+        }
+        return -1;
+    }
+
+    private void insertIntoTable(int slot, int hash) {
+        final int mask = table.length - 1;
+        int i = hash & mask;
+        while (table[i] != 0) i = (i + 1) & mask;
+        table[i] = slot + 1;
+    }
+
+    /**
+     * Remove a table entry and shift later entries of the same probe run back, so lookups need no tombstones.
+     */
+    private void deleteFromTable(int index) {
+        final int mask = table.length - 1;
+        int hole = index;
+        int i = index;
+        while (true) {
+            i = (i + 1) & mask;
+            if (table[i] == 0) break;
+            final int home = hashes[table[i] - 1] & mask;
+            // Move the entry into the hole unless its home lies cyclically in (hole, i]
+            final boolean homeBetween = hole <= i ? (home > hole && home <= i) : (home > hole || home <= i);
+            if (!homeBetween) {
+                table[hole] = table[i];
+                hole = i;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return the day a timestamp falls on in the current time zone, as days since 1970-01-01
+     */
+    public static int toEpochDay(long timestamp) {
+        final long local = timestamp + TimeZone.getDefault().getOffset(timestamp);
+        return (int) Math.floorDiv(local, DAY_MS);
+    }
+
+    private static SimpleDateFormat newDayFormat() {
+        // Epoch days are already in local time
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    private static class IntList {
+        private int[] values = new int[8];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] != value) continue;
+                System.arraycopy(values, i + 1, values, i, size - i - 1);
+                size--;
+                return;
+            }
+        }
+    }
+
+    private static class Day {
+        private final IntList slots = new IntList();
+        // Published view of this day, shared between snapshots until the day changes
+        private DaySnapshot snapshot;
+    }
+
+    /**
+     * Immutable view of one day: its header label and items.
+     */
+    private static class DaySnapshot {
+        private final int epochDay;
+        private final String label;
+        // Shared URI prefix per item, or null when the name is the whole URI
+        private final String[] uriPrefixes;
+        private final String[] names;
+        private final byte[] sources;
+        private final byte[] mediaTypes;
+        private final long[] contentVersions;
+
+        DaySnapshot(int epochDay, String label, String[] uriPrefixes, String[] names, byte[] sources,
+                    byte[] mediaTypes, long[] contentVersions) {
+            this.epochDay = epochDay;
+            this.label = label;
+            this.uriPrefixes = uriPrefixes;
+            this.names = names;
+            this.sources = sources;
+            this.mediaTypes = mediaTypes;
+            this.contentVersions = contentVersions;
+        }
+
+        int size() {
+            return names.length;
+        }
+
+        String uriAt(int index) {
+            return uriPrefixes[index] == null ? names[index] : uriPrefixes[index] + names[index];
+        }
+
+        GalleryItem.Image get(int index) {
+            return new GalleryItem.Image(Uri.parse(uriAt(index)), SOURCES[sources[index]], mediaTypes[index],
+                    contentVersions[index]);
+        }
+    }
+
+    /**
+     * Immutable timeline of day headers, items and placeholders. Positions are turned into
+     * {@link GalleryItem}s only when read, so only what is on screen is ever materialized; placeholders read
+     * as {@code null}.
+     * <p>
+     * Days are numbered from the top. A day that is the same in two snapshots (see {@link #isSameDay}) has
+     * the same items, so comparing snapshots only needs to look inside the days that changed.
+     */
+    public static class Snapshot extends AbstractList<GalleryItem> {
+        public static final Snapshot EMPTY = new Snapshot(new DaySnapshot[0], new int[0], new int[0], 0);
+
+        private final DaySnapshot[] days;
+        // Position of each day's header
+        private final int[] starts;
+        // Items shown per day, placeholders included
+        private final int[] counts;
+        private final int size;
+
+        private Snapshot(DaySnapshot[] days, int[] starts, int[] counts, int size) {
+            this.days = days;
+            this.starts = starts;
+            this.counts = counts;
+            this.size = size;
+        }
+
+        /**
+         * @return the item at a position, or {@code null} for a placeholder
+         */
+        @Override
+        public GalleryItem get(int position) {
+            final int day = dayOf(position);
+            final int index = position - starts[day] - 1;
+            if (index < 0) return new GalleryItem.Header(days[day].label);
+            return index < days[day].size() ? days[day].get(index) : null;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        public boolean isHeader(int position) {
+            return starts[dayOf(position)] == position;
+        }
+
+        /**
+         * @return the {@link GalleryItem#getStableKey() stable key} of a position, without reading the item
+         */
+        public String getStableKey(int position) {
+            final int day = dayOf(position);
+            final int index = position - starts[day] - 1;
+            if (index < 0) return "header:" + days[day].label;
+            if (index < days[day].size()) return days[day].uriAt(index);
+            return "placeholder:" + days[day].epochDay + ":" + (index - days[day].size());
+        }
+
+        public int getDayCount() {
+            return days.length;
+        }
+
+        public int getEpochDay(int day) {
+            return days[day].epochDay;
+        }
+
+        /**
+         * @return the position of a day's header
+         */
+        public int getDayStart(int day) {
+            return starts[day];
+        }
+
+        /**
+         * @return the number of items and placeholders under a day's header
+         */
+        public int getDayItemCount(int day) {
+            return counts[day];
+        }
+
+        /**
+         * @return whether a day has exactly the same items and placeholders as a day of another snapshot
+         */
+        public boolean isSameDay(int day, Snapshot other, int otherDay) {
+            return days[day] == other.days[otherDay] && counts[day] == other.counts[otherDay];
+        }
+
+        /**
+         * @return whether two positions with the same stable key would show the same thing
+         */
+        public boolean isSameContents(int position, Snapshot other, int otherPosition) {
+            final int day = dayOf(position);
+            final int otherDay = other.dayOf(otherPosition);
+            final int index = position - starts[day] - 1;
+            final int otherIndex = otherPosition - other.starts[otherDay] - 1;
+            final boolean real = index >= 0 && index < days[day].size();
+            final boolean otherReal = otherIndex >= 0 && otherIndex < other.days[otherDay].size();
+            if (!real || !otherReal) return real == otherReal;
+            return days[day].sources[index] == other.days[otherDay].sources[otherIndex]
+                    && days[day].mediaTypes[index] == other.days[otherDay].mediaTypes[otherIndex]
+                    && days[day].contentVersions[index] == other.days[otherDay].contentVersions[otherIndex];
+        }
+
+        private int dayOf(int position) {
+            if (position < 0 || position >= size) throw new IndexOutOfBoundsException("Position " + position);
+            final int found = Arrays.binarySearch(starts, position);
+            return found >= 0 ? found : -found - 2;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.jhjdekker98.fisheyegallery.model;
+
+import android.util.Log;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single writer of a {@link MediaCatalog}.
+ * <p>
+ * Indexers, the change watchers and cache validation don't touch the catalog themselves: they post
+ * mutations to a mailbox. One thread drains the mailbox in batches, applies everything that is queued,
+ * and publishes one new {@link MediaCatalog.Snapshot}. Posting never blocks, and readers only ever see
+ * immutable snapshots, so neither side takes a lock.
+ */
+public class MediaCatalogWriter {
+    private static final String TAG = "MediaCatalogWriter";
+    private static final long SLOW_SNAPSHOT_MS = 50;
+
+    private final MediaCatalog catalog = new MediaCatalog();
+    private final Queue<Mutation> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, TAG);
+        t.setDaemon(true);
+        return t;
+    });
+    private final long batchDelayMs;
+    private final Publisher publisher;
+    private volatile MediaCatalog.Snapshot current;
+
+    /**
+     * @param batchDelayMs how long to wait for more mutations before publishing, unless one asks to be
+     *                     published right away
+     * @param publisher    receives every new snapshot, on the writer thread
+     */
+    public MediaCatalogWriter(long batchDelayMs, Publisher publisher) {
+        this.batchDelayMs = batchDelayMs;
+        this.publisher = publisher;
+        this.current = catalog.snapshot();
+    }
+
+    /**
+     * @return the latest published snapshot
+     */
+    public MediaCatalog.Snapshot getSnapshot() {
+        return current;
+    }
+
+    /**
+     * Queue a mutation. It runs on the writer thread, together with whatever else has been queued by then.
+     *
+     * @param immediate publish as soon as possible instead of waiting for more mutations to batch with
+     */
+    public void post(Mutation mutation, boolean immediate) {
+        mailbox.add(mutation);
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                writer.schedule(this::drain, immediate ? 0 : batchDelayMs, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                // Shut down; nobody is reading any more
+                drainScheduled.set(false);
+            }
+        }
+    }
+
+    public void shutdown() {
+        writer.shutdownNow();
+        mailbox.clear();
+    }
+
+    private void drain() {
+        // Cleared first, so mutations posted while this runs schedule another drain
+        drainScheduled.set(false);
+        boolean changed = false;
+        int applied = 0;
+        Mutation mutation;
+        while ((mutation = mailbox.poll()) != null) {
+            try {
+                changed |= mutation.apply(catalog);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Catalog mutation failed", e);
+            }
+            applied++;
+        }
+        if (!changed) return;
+
+        final long start = System.nanoTime();
+        current = catalog.snapshot();
+        final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (elapsedMs >= SLOW_SNAPSHOT_MS) {
+            Log.w(TAG, "Snapshot of " + catalog.size() + " items after " + applied + " mutations took "
+                    + elapsedMs + " ms");
+        }
+        publisher.publish(current);
+    }
+
+    public interface Mutation {
+        /**
+         * @return whether the catalog changed
+         */
+        boolean apply(MediaCatalog catalog);
+    }
+
+    public interface Publisher {
+        void publish(MediaCatalog.Snapshot snapshot);
+    }
+}
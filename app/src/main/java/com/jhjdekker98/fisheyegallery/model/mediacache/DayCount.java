@@ -0,0 +1,12 @@
+package com.jhjdekker98.fisheyegallery.model.mediacache;
+
+import com.jhjdekker98.fisheyegallery.model.mediaindexer.IndexerType;
+
+/**
+ * Number of cached items of one source on one day.
+ */
+public class DayCount {
+    public int epochDay;
+    public IndexerType indexerType;
+    public int count;
+}
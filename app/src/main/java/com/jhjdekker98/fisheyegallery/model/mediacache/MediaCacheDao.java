@@ -11,8 +11,35 @@ public interface MediaCacheDao {
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     void insertAll(List<MediaCacheItem> items);
 
-    @Query("SELECT * FROM `media_cache` ORDER BY `lastModified` DESC LIMIT :limit OFFSET :skip")
-    List<MediaCacheItem> query(int skip, int limit);
+    /**
+     * First page of the cache, newest first; continue with {@link #queryAfter}.
+     */
+    @Query("SELECT * FROM `media_cache` ORDER BY `lastModified` DESC, `key` DESC LIMIT :limit")
+    List<MediaCacheItem> queryFirst(int limit);
+
+    /**
+     * The page after the item with the given timestamp and key. Seeks through the (lastModified, key) index
+     * instead of skipping rows, so every page costs the same no matter how far in it is. The condition is
+     * written with a plain upper bound on lastModified, which SQLite can start the index search from; an
+     * {@code a < x OR (a = x AND ...)} form would have it scan the index from the newest row on every page.
+     */
+    @Query("SELECT * FROM `media_cache` " +
+            "WHERE `lastModified` <= :lastModified AND (`lastModified` < :lastModified OR `key` < :key) " +
+            "ORDER BY `lastModified` DESC, `key` DESC LIMIT :limit")
+    List<MediaCacheItem> queryAfter(long lastModified, String key, int limit);
+
+    /**
+     * Item counts per day and source, to lay out the timeline before the items themselves are loaded.
+     */
+    @Query("SELECT `epochDay`, `indexerType`, COUNT(*) AS `count` FROM `media_cache` " +
+            "GROUP BY `epochDay`, `indexerType`")
+    List<DayCount> queryDayCounts();
+
+    @Query("SELECT * FROM `media_cache` WHERE `key` = :key")
+    MediaCacheItem get(String key);
+
+    @Query("SELECT * FROM `media_cache` WHERE `key` IN (:keys)")
+    List<MediaCacheItem> getAll(List<String> keys);
 
     @Query("DELETE FROM `media_cache` WHERE `key` = :key")
     void deleteByKey(String key);
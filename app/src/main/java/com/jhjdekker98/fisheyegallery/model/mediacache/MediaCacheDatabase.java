@@ -1,18 +1,135 @@
 package com.jhjdekker98.fisheyegallery.model.mediacache;
 
 import android.content.Context;
+import android.database.Cursor;
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
+import com.jhjdekker98.fisheyegallery.model.MediaCatalog;
+import com.jhjdekker98.fisheyegallery.model.mediaindexer.IndexerType;
+import com.jhjdekker98.fisheyegallery.util.FileHelper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
-@Database(entities = {MediaCacheItem.class}, version = 1)
+@Database(entities = {MediaCacheItem.class, SmbDirState.class, TransferJob.class, SmbFileHash.class}, version = 6)
 public abstract class MediaCacheDatabase extends RoomDatabase {
+    private static MediaCacheDatabase instance;
 
-    public static MediaCacheDatabase getInstance(Context context) {
-        return Room.databaseBuilder(context, MediaCacheDatabase.class, "media_cache_db")
-                .fallbackToDestructiveMigration()
-                .build();
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `smb_dir_state` (" +
+                    "`key` TEXT NOT NULL, " +
+                    "`lastWriteTime` INTEGER NOT NULL, " +
+                    "`fingerprint` TEXT, " +
+                    "`subdirectoryCount` INTEGER NOT NULL, " +
+                    "PRIMARY KEY(`key`))");
+        }
+    };
+
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `transfer_job` (" +
+                    "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "`direction` TEXT NOT NULL, " +
+                    "`sourceUri` TEXT NOT NULL, " +
+                    "`target` TEXT NOT NULL, " +
+                    "`state` TEXT NOT NULL, " +
+                    "`totalBytes` INTEGER NOT NULL, " +
+                    "`bytesDone` INTEGER NOT NULL, " +
+                    "`error` TEXT, " +
+                    "`createdAt` INTEGER NOT NULL)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_transfer_job_state` ON `transfer_job` (`state`)");
+        }
+    };
+
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `smb_file_hash` (" +
+                    "`key` TEXT NOT NULL, " +
+                    "`size` INTEGER NOT NULL, " +
+                    "`lastWriteTime` INTEGER NOT NULL, " +
+                    "`sha256` TEXT NOT NULL, " +
+                    "PRIMARY KEY(`key`))");
+        }
+    };
+
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_media_cache_lastModified_key` " +
+                    "ON `media_cache` (`lastModified`, `key`)");
+        }
+    };
+
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE `media_cache` ADD COLUMN `mimeType` TEXT");
+            db.execSQL("ALTER TABLE `media_cache` ADD COLUMN `size` INTEGER NOT NULL DEFAULT -1");
+            db.execSQL("ALTER TABLE `media_cache` ADD COLUMN `width` INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE `media_cache` ADD COLUMN `height` INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE `media_cache` ADD COLUMN `epochDay` INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE `media_cache` ADD COLUMN `sourceRoot` TEXT");
+            db.execSQL("ALTER TABLE `media_cache` ADD COLUMN `contentVersion` INTEGER NOT NULL DEFAULT 0");
+
+            // Fill in what can be derived from the existing columns. Size, dimensions and the content version
+            // come with the next index: lastModified holds the capture date, which doesn't change with the file
+            try (Cursor cursor = db.query("SELECT `key`, `uri`, `indexerType`, `lastModified` FROM `media_cache`");
+                 SupportSQLiteStatement update = db.compileStatement("UPDATE `media_cache` SET `mimeType` = ?, " +
+                         "`epochDay` = ?, `sourceRoot` = ? WHERE `key` = ?")) {
+                while (cursor.moveToNext()) {
+                    final String key = cursor.getString(0);
+                    final String uri = cursor.getString(1);
+                    final long lastModified = cursor.getLong(3);
+                    IndexerType indexerType = null;
+                    try {
+                        if (!cursor.isNull(2)) indexerType = IndexerType.valueOf(cursor.getString(2));
+                    } catch (IllegalArgumentException ignored) {
+                    }
+                    final String sourceRoot = MediaCacheItem.sourceRootOf(indexerType, uri);
+                    // Keys end in the file name, except for MediaStore items from before Android 10
+                    final String mimeType = FileHelper.getFileMimeType(key.substring(key.lastIndexOf('/') + 1));
+
+                    update.clearBindings();
+                    if (mimeType == null || "application/octet-stream".equals(mimeType)) update.bindNull(1);
+                    else update.bindString(1, mimeType);
+                    update.bindLong(2, MediaCatalog.toEpochDay(lastModified));
+                    if (sourceRoot == null) update.bindNull(3);
+                    else update.bindString(3, sourceRoot);
+                    update.bindString(4, key);
+                    update.executeUpdateDelete();
+                }
+            } catch (IOException e) {
+                // Closing the statement failed; the rows are already updated
+                throw new UncheckedIOException(e);
+            }
+
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_media_cache_epochDay` ON `media_cache` (`epochDay`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_media_cache_sourceRoot` ON `media_cache` (`sourceRoot`)");
+        }
+    };
+
+    public static synchronized MediaCacheDatabase getInstance(Context context) {
+        if (instance == null) {
+            instance = Room.databaseBuilder(context.getApplicationContext(), MediaCacheDatabase.class, "media_cache_db")
+                    .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6)
+                    .build();
+        }
+        return instance;
     }
 
     public abstract MediaCacheDao mediaCacheDao();
+
+    public abstract SmbDirStateDao smbDirStateDao();
+
+    public abstract TransferJobDao transferJobDao();
+
+    public abstract SmbFileHashDao smbFileHashDao();
 }
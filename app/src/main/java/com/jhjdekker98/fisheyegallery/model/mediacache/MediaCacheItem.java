@@ -1,11 +1,22 @@
 package com.jhjdekker98.fisheyegallery.model.mediacache;
 
+import android.net.Uri;
+import android.provider.DocumentsContract;
 import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
+import com.jhjdekker98.fisheyegallery.model.MediaCatalog;
 import com.jhjdekker98.fisheyegallery.model.mediaindexer.IndexerType;
+import java.util.List;
 
-@Entity(tableName = "media_cache")
+@Entity(tableName = "media_cache", indices = {
+        @Index({"lastModified", "key"}),
+        @Index({"epochDay"}),
+        @Index({"sourceRoot"})
+})
 public class MediaCacheItem {
     @PrimaryKey
     @NonNull
@@ -14,12 +25,85 @@ public class MediaCacheItem {
     public String album;
     public IndexerType indexerType;
     public long lastModified;
+    public String mimeType;
+    @ColumnInfo(defaultValue = "-1")
+    public long size;
+    @ColumnInfo(defaultValue = "0")
+    public int width;
+    @ColumnInfo(defaultValue = "0")
+    public int height;
+    // Day of lastModified in local time, so the timeline can be grouped by day in SQL
+    @ColumnInfo(defaultValue = "0")
+    public int epochDay;
+    // The folder, volume or share the item was indexed from, see sourceRootOf
+    public String sourceRoot;
+    // Changes whenever the file's content may have changed, for anything derived from it (e.g. thumbnails);
+    // 0 until the item is indexed. See contentVersionOf
+    @ColumnInfo(defaultValue = "0")
+    public long contentVersion;
 
-    public MediaCacheItem(@NonNull String key, String uri, String album, IndexerType indexerType, long lastModified) {
+    public MediaCacheItem(@NonNull String key, String uri, String album, IndexerType indexerType, long lastModified,
+                          String mimeType, long size, int width, int height, int epochDay, String sourceRoot,
+                          long contentVersion) {
         this.key = key;
         this.uri = uri;
         this.album = album;
         this.indexerType = indexerType;
         this.lastModified = lastModified;
+        this.mimeType = mimeType;
+        this.size = size;
+        this.width = width;
+        this.height = height;
+        this.epochDay = epochDay;
+        this.sourceRoot = sourceRoot;
+        this.contentVersion = contentVersion;
+    }
+
+    /**
+     * An item with only what's needed to identify it, e.g. to delete it.
+     */
+    @Ignore
+    public MediaCacheItem(@NonNull String key, String uri, String album, IndexerType indexerType, long lastModified) {
+        this(key, uri, album, indexerType, lastModified, null, -1, 0, 0, MediaCatalog.toEpochDay(lastModified),
+                sourceRootOf(indexerType, uri), 0);
+    }
+
+    /**
+     * @return the SAF tree, MediaStore volume or SMB host/share an item belongs to, or {@code null} if unknown
+     */
+    public static String sourceRootOf(IndexerType indexerType, String uriString) {
+        if (indexerType == null || uriString == null) return null;
+        final Uri uri = Uri.parse(uriString);
+        final List<String> segments = uri.getPathSegments();
+        try {
+            switch (indexerType) {
+                case SAF:
+                    return DocumentsContract.buildTreeDocumentUri(uri.getAuthority(),
+                            DocumentsContract.getTreeDocumentId(uri)).toString();
+                case MEDIASTORE:
+                    return segments.isEmpty() ? uri.getAuthority() : uri.getAuthority() + "/" + segments.get(0);
+                case SMB:
+                    return segments.size() < 2 ? null : segments.get(0) + "/" + segments.get(1);
+            }
+        } catch (IllegalArgumentException e) {
+            // Not a tree URI
+        }
+        return null;
+    }
+
+    /**
+     * @param modified the file's last-modified time, not its capture date
+     * @return a version for a file's content, or 0 if neither its modification time nor its size is known
+     */
+    public static long contentVersionOf(long modified, long size) {
+        if (modified <= 0 && size < 0) return 0;
+        // mix64 is a bijection, so files of the same age differ whenever their sizes do
+        return mix64(mix64(modified) ^ size);
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
     }
 }
@@ -1,34 +1,79 @@
 package com.jhjdekker98.fisheyegallery.model.mediacache;
 
 import android.content.Context;
+import android.net.Uri;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbCredentials;
+import com.jhjdekker98.fisheyegallery.model.mediaindexer.IndexerType;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class MediaCacheRepository {
+    // Stays below SQLite's limit of 999 bound variables per statement
+    private static final int DELETE_CHUNK_SIZE = 500;
+
+    private final MediaCacheDatabase db;
     private final MediaCacheDao dao;
     private final Executor executor = Executors.newSingleThreadExecutor();
 
     public MediaCacheRepository(Context context) {
-        dao = MediaCacheDatabase.getInstance(context).mediaCacheDao();
+        db = MediaCacheDatabase.getInstance(context);
+        dao = db.mediaCacheDao();
     }
 
     public void updateCache(List<MediaCacheItem> items) {
         executor.execute(() -> dao.insertAll(items));
     }
 
-    public void queryCache(int skip, int limit, Consumer<List<MediaCacheItem>> callback) {
-        executor.execute(() -> {
-            final List<MediaCacheItem> results = dao.query(skip, limit);
-            callback.accept(results);
-        });
+    /**
+     * Read one page of the cache, newest first, on the calling thread.
+     *
+     * @param after the last item of the previous page, or {@code null} for the first page
+     */
+    public List<MediaCacheItem> queryPage(MediaCacheItem after, int limit) {
+        return after == null ? dao.queryFirst(limit) : dao.queryAfter(after.lastModified, after.key, limit);
+    }
+
+    /**
+     * Count the cached items per day and source, on the calling thread.
+     */
+    public List<DayCount> queryDayCounts() {
+        return dao.queryDayCounts();
     }
 
+    /**
+     * Delete items, however many, in a single transaction.
+     */
     public void deleteFromCache(List<MediaCacheItem> items) {
-        executor.execute(() -> {
-            dao.deleteByKeys(items.stream().map(mci -> mci.key).collect(Collectors.toList()));
-        });
+        executor.execute(() -> db.runInTransaction(() -> {
+            final List<String> keys = items.stream().map(mci -> mci.key).collect(Collectors.toList());
+            for (int i = 0; i < keys.size(); i += DELETE_CHUNK_SIZE) {
+                dao.deleteByKeys(keys.subList(i, Math.min(i + DELETE_CHUNK_SIZE, keys.size())));
+            }
+            // Make the SMB indexer list the containing directories again, or the items would not come back
+            // until the directory changes on the server
+            final List<String> dirKeys = getSmbDirKeys(items);
+            for (int i = 0; i < dirKeys.size(); i += DELETE_CHUNK_SIZE) {
+                db.smbDirStateDao().deleteByKeys(dirKeys.subList(i, Math.min(i + DELETE_CHUNK_SIZE, dirKeys.size())));
+            }
+        }));
+    }
+
+    private static List<String> getSmbDirKeys(List<MediaCacheItem> items) {
+        final Set<String> keys = new HashSet<>();
+        for (MediaCacheItem item : items) {
+            if (item.indexerType != IndexerType.SMB) continue;
+            final Uri uri = Uri.parse(item.uri);
+            final List<String> segments = uri.getPathSegments();
+            if (segments.size() < 2) continue;
+            final String path = SmbCredentials.getPathForUri(uri);
+            final int slash = path.lastIndexOf('/');
+            keys.add(SmbDirState.keyFor(segments.get(0), segments.get(1), slash < 0 ? "" : path.substring(0, slash)));
+        }
+        return new ArrayList<>(keys);
     }
 }
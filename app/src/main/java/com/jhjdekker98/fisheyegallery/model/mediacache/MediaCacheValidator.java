@@ -0,0 +1,206 @@
+package com.jhjdekker98.fisheyegallery.model.mediacache;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.util.Log;
+import androidx.documentfile.provider.DocumentFile;
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.jhjdekker98.fisheyegallery.Constants;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbCredentials;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbHostHealth;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbHostLimiter;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbSessionPool;
+import com.jhjdekker98.fisheyegallery.security.SecureStorageHelper;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds cached items whose file is gone, with a few bulk queries per source instead of one existence check
+ * per item: all MediaStore ids in one query, one child-documents query per SAF folder and one listing per
+ * SMB directory. Results are kept for the whole pass, so a folder is only asked once however many pages
+ * its items are spread over.
+ * <p>
+ * When a source can't be asked (no permission, host down), its items are kept: only positive evidence that
+ * a file is gone makes it stale.
+ */
+public class MediaCacheValidator {
+    private static final String TAG = "MediaCacheValidator";
+
+    private final Context context;
+    private final SecureStorageHelper ssh;
+    private long[] mediaStoreIds;
+    private boolean mediaStoreLoaded = false;
+    // Children per folder; null for a folder that couldn't be listed
+    private final Map<String, Set<String>> safChildren = new HashMap<>();
+    private final Map<String, Set<String>> smbChildren = new HashMap<>();
+    private final Set<String> missingSmbDirectories = new HashSet<>();
+
+    public MediaCacheValidator(Context context) {
+        this.context = context.getApplicationContext();
+        this.ssh = SecureStorageHelper.getInstance(context);
+    }
+
+    public boolean isStale(MediaCacheItem item) {
+        final Uri uri = Uri.parse(item.uri);
+        if ("file".equals(uri.getScheme())) return !new File(uri.getPath()).exists();
+        if (!"content".equals(uri.getScheme())) return true;
+
+        final String authority = uri.getAuthority();
+        if (Constants.SMB_CONTENT_AUTHORITY.equals(authority)) return isSmbStale(uri);
+        if (MediaStore.AUTHORITY.equals(authority)) return isMediaStoreStale(uri);
+        if (DocumentsContract.isDocumentUri(context, uri)) return isDocumentStale(uri);
+        return false;
+    }
+
+    private boolean isMediaStoreStale(Uri uri) {
+        if (!mediaStoreLoaded) {
+            mediaStoreIds = loadMediaStoreIds();
+            mediaStoreLoaded = true;
+        }
+        if (mediaStoreIds == null) return false;
+        try {
+            return Arrays.binarySearch(mediaStoreIds, ContentUris.parseId(uri)) < 0;
+        } catch (NumberFormatException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the ids of all images and videos, sorted, or {@code null} if MediaStore couldn't be queried
+     */
+    private long[] loadMediaStoreIds() {
+        final Uri collection = MediaStore.Files.getContentUri("external");
+        final String selection = MediaStore.Files.FileColumns.MEDIA_TYPE + "=? OR " +
+                MediaStore.Files.FileColumns.MEDIA_TYPE + "=?";
+        final String[] selectionArgs = {
+                String.valueOf(MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE),
+                String.valueOf(MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO)
+        };
+        try (Cursor cursor = context.getContentResolver().query(collection,
+                new String[]{MediaStore.MediaColumns._ID}, selection, selectionArgs, null)) {
+            if (cursor == null) return null;
+            final long[] ids = new long[cursor.getCount()];
+            int count = 0;
+            while (cursor.moveToNext() && count < ids.length) ids[count++] = cursor.getLong(0);
+            final long[] sorted = Arrays.copyOf(ids, count);
+            Arrays.sort(sorted);
+            return sorted;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not list MediaStore ids", e);
+            return null;
+        }
+    }
+
+    private boolean isDocumentStale(Uri uri) {
+        final String treeId;
+        final String documentId;
+        try {
+            treeId = DocumentsContract.getTreeDocumentId(uri);
+            documentId = DocumentsContract.getDocumentId(uri);
+        } catch (IllegalArgumentException e) {
+            return !exists(uri);
+        }
+        // Document ids are paths for the providers in practice (e.g. "primary:DCIM/Camera/a.jpg")
+        final int slash = documentId.lastIndexOf('/');
+        if (slash < 0) return !exists(uri);
+        final String parentId = documentId.substring(0, slash);
+
+        final String folderKey = uri.getAuthority() + "\n" + treeId + "\n" + parentId;
+        if (!safChildren.containsKey(folderKey)) {
+            safChildren.put(folderKey, listDocumentChildren(
+                    DocumentsContract.buildTreeDocumentUri(uri.getAuthority(), treeId), parentId));
+        }
+        final Set<String> children = safChildren.get(folderKey);
+        return children == null ? !exists(uri) : !children.contains(documentId);
+    }
+
+    /**
+     * @return the document ids in a folder, or {@code null} if it couldn't be listed
+     */
+    private Set<String> listDocumentChildren(Uri treeUri, String parentId) {
+        final Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, parentId);
+        try (Cursor cursor = context.getContentResolver().query(childrenUri,
+                new String[]{DocumentsContract.Document.COLUMN_DOCUMENT_ID}, null, null, null)) {
+            if (cursor == null) return null;
+            final Set<String> ids = new HashSet<>();
+            while (cursor.moveToNext()) ids.add(cursor.getString(0));
+            return ids;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not list " + childrenUri + ": " + e);
+            return null;
+        }
+    }
+
+    private boolean exists(Uri uri) {
+        try {
+            final DocumentFile df = DocumentFile.fromSingleUri(context, uri);
+            return df != null && df.exists();
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+
+    private boolean isSmbStale(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        if (segments.size() < 3) return true;
+        final SmbCredentials creds = SmbCredentials.getForUri(ssh, uri);
+        if (creds == null) return true; // The share is no longer configured
+        // Can't tell while the host is down; keep the item rather than waiting on a timeout
+        if (!SmbHostHealth.getInstance().isAvailable(creds.host)) return false;
+
+        final String path = SmbCredentials.getPathForUri(uri);
+        // Indexed under a root path that wasn't normalized yet; the file is indexed again under its proper URI
+        final String encodedPath = uri.getEncodedPath();
+        if (encodedPath != null && (encodedPath.contains("//") || encodedPath.contains("\\")
+                || encodedPath.endsWith("/"))) {
+            return true;
+        }
+        final int slash = path.lastIndexOf('/');
+        final String directory = slash < 0 ? "" : path.substring(0, slash);
+        final String name = path.substring(slash + 1);
+
+        final String directoryKey = SmbDirState.keyFor(creds.host, creds.share, directory);
+        if (missingSmbDirectories.contains(directoryKey)) return true;
+        if (!smbChildren.containsKey(directoryKey)) {
+            smbChildren.put(directoryKey, listSmbDirectory(creds, directory, directoryKey));
+        }
+        final Set<String> children = smbChildren.get(directoryKey);
+        if (children == null) return missingSmbDirectories.contains(directoryKey);
+        return !children.contains(name);
+    }
+
+    /**
+     * @return the names in a directory, or {@code null} if it is gone or couldn't be listed
+     */
+    private Set<String> listSmbDirectory(SmbCredentials creds, String directory, String directoryKey) {
+        try {
+            final List<FileIdBothDirectoryInformation> entries = SmbSessionPool.getInstance()
+                    .execute(creds, SmbHostLimiter.Op.METADATA, share -> share.list(directory));
+            final Set<String> names = new HashSet<>();
+            for (FileIdBothDirectoryInformation entry : entries) names.add(entry.getFileName());
+            return names;
+        } catch (SMBApiException e) {
+            if (e.getStatus() == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND
+                    || e.getStatus() == NtStatus.STATUS_OBJECT_PATH_NOT_FOUND) {
+                missingSmbDirectories.add(directoryKey);
+            } else {
+                Log.w(TAG, "Could not list " + directoryKey + ": " + e.getStatus());
+            }
+            return null;
+        } catch (Exception e) {
+            Log.w(TAG, "Could not list " + directoryKey, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.jhjdekker98.fisheyegallery.model.mediacache;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * What the SMB indexer saw of one remote directory on its last crawl, so unchanged directories can be
+ * skipped next time.
+ */
+@Entity(tableName = "smb_dir_state")
+public class SmbDirState {
+    @PrimaryKey
+    @NonNull
+    public String key;
+    // Last-write time as reported by the parent directory's listing
+    public long lastWriteTime;
+    // Hash over the names of the subdirectories and the name, size and last-write time of the media files
+    public String fingerprint;
+    public int subdirectoryCount;
+
+    public SmbDirState(@NonNull String key, long lastWriteTime, String fingerprint, int subdirectoryCount) {
+        this.key = key;
+        this.lastWriteTime = lastWriteTime;
+        this.fingerprint = fingerprint;
+        this.subdirectoryCount = subdirectoryCount;
+    }
+
+    /**
+     * @return the key for a directory, given as a path relative to the share
+     */
+    public static String keyFor(String host, String share, String path) {
+        final String cleanPath = path.startsWith("/") ? path.substring(1) : path;
+        return host + "/" + share + "/" + cleanPath;
+    }
+}
@@ -0,0 +1,19 @@
+package com.jhjdekker98.fisheyegallery.model.mediacache;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import java.util.List;
+
+@Dao
+public interface SmbDirStateDao {
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertAll(List<SmbDirState> states);
+
+    @Query("SELECT * FROM `smb_dir_state` WHERE `key` LIKE :prefix || '%'")
+    List<SmbDirState> queryByPrefix(String prefix);
+
+    @Query("DELETE FROM `smb_dir_state` WHERE `key` IN (:keys)")
+    void deleteByKeys(List<String> keys);
+}
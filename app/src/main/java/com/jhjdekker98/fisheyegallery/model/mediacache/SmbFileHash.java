@@ -0,0 +1,34 @@
+package com.jhjdekker98.fisheyegallery.model.mediacache;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * SHA-256 of a remote file as of a given size and last-write time, so it doesn't have to be read back to
+ * tell whether an upload would be a duplicate.
+ */
+@Entity(tableName = "smb_file_hash")
+public class SmbFileHash {
+    @PrimaryKey
+    @NonNull
+    public String key;
+    public long size;
+    public long lastWriteTime;
+    @NonNull
+    public String sha256;
+
+    public SmbFileHash(@NonNull String key, long size, long lastWriteTime, @NonNull String sha256) {
+        this.key = key;
+        this.size = size;
+        this.lastWriteTime = lastWriteTime;
+        this.sha256 = sha256;
+    }
+
+    /**
+     * @return whether the hash still describes a file with this size and last-write time
+     */
+    public boolean matches(long size, long lastWriteTime) {
+        return this.size == size && this.lastWriteTime == lastWriteTime;
+    }
+}
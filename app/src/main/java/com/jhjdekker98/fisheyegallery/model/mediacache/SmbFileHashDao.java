@@ -0,0 +1,18 @@
+package com.jhjdekker98.fisheyegallery.model.mediacache;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+@Dao
+public interface SmbFileHashDao {
+    @Query("SELECT * FROM `smb_file_hash` WHERE `key` = :key")
+    SmbFileHash get(String key);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insert(SmbFileHash hash);
+
+    @Query("DELETE FROM `smb_file_hash` WHERE `key` = :key")
+    void delete(String key);
+}
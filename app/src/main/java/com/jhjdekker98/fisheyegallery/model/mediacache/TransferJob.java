@@ -0,0 +1,54 @@
+package com.jhjdekker98.fisheyegallery.model.mediacache;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * One file in the background transfer queue. Rows outlive the process, so a queue that was cut short is
+ * picked up again the next time the app starts.
+ */
+@Entity(tableName = "transfer_job", indices = {@Index("state")})
+public class TransferJob {
+    public static final String DIRECTION_UPLOAD = "UPLOAD";
+    public static final String DIRECTION_DOWNLOAD = "DOWNLOAD";
+
+    public static final String STATE_PENDING = "PENDING";
+    public static final String STATE_RUNNING = "RUNNING";
+    // Uploaded, but the local original could not be deleted without asking the user
+    public static final String STATE_AWAITING_DELETE = "AWAITING_DELETE";
+    public static final String STATE_DONE = "DONE";
+    public static final String STATE_FAILED = "FAILED";
+
+    @PrimaryKey(autoGenerate = true)
+    public long id;
+    @NonNull
+    public String direction;
+    // Local URI for uploads, SMB content URI for downloads
+    @NonNull
+    public String sourceUri;
+    // SMB connection key (host/share) for uploads, document tree URI for downloads
+    @NonNull
+    public String target;
+    @NonNull
+    public String state;
+    public long totalBytes;
+    public long bytesDone;
+    public String error;
+    public long createdAt;
+
+    public TransferJob(@NonNull String direction, @NonNull String sourceUri, @NonNull String target,
+                       @NonNull String state, long createdAt) {
+        this.direction = direction;
+        this.sourceUri = sourceUri;
+        this.target = target;
+        this.state = state;
+        this.createdAt = createdAt;
+        this.totalBytes = -1;
+    }
+
+    public boolean isUpload() {
+        return DIRECTION_UPLOAD.equals(direction);
+    }
+}
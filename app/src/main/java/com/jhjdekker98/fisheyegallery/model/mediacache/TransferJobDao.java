@@ -0,0 +1,38 @@
+package com.jhjdekker98.fisheyegallery.model.mediacache;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+import java.util.List;
+
+@Dao
+public interface TransferJobDao {
+    @Insert
+    List<Long> insertAll(List<TransferJob> jobs);
+
+    @Query("SELECT * FROM `transfer_job` WHERE `state` IN (:states) ORDER BY `id`")
+    List<TransferJob> getByStates(List<String> states);
+
+    @Query("UPDATE `transfer_job` SET `state` = :state, `bytesDone` = :bytesDone, `totalBytes` = :totalBytes, " +
+            "`error` = :error WHERE `id` = :id")
+    void update(long id, String state, long bytesDone, long totalBytes, String error);
+
+    @Query("UPDATE `transfer_job` SET `state` = :state WHERE `id` IN (:ids)")
+    void setState(List<Long> ids, String state);
+
+    /**
+     * Jobs that were running when the process died are queued again; the transfer itself resumes from its
+     * last checkpoint.
+     */
+    @Query("UPDATE `transfer_job` SET `state` = 'PENDING' WHERE `state` = 'RUNNING'")
+    void requeueRunning();
+
+    /**
+     * Failed jobs are kept, so they can be retried or dismissed by the user.
+     */
+    @Query("DELETE FROM `transfer_job` WHERE `state` = 'DONE'")
+    void deleteDone();
+
+    @Query("DELETE FROM `transfer_job` WHERE `id` IN (:ids)")
+    void delete(List<Long> ids);
+}
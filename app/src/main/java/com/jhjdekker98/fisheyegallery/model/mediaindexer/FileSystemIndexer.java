@@ -1,20 +1,38 @@
 package com.jhjdekker98.fisheyegallery.model.mediaindexer;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.net.Uri;
-import androidx.documentfile.provider.DocumentFile;
+import android.provider.DocumentsContract;
+import android.util.Log;
 import com.jhjdekker98.fisheyegallery.Constants;
+import com.jhjdekker98.fisheyegallery.model.mediacache.MediaCacheDao;
+import com.jhjdekker98.fisheyegallery.model.mediacache.MediaCacheDatabase;
+import com.jhjdekker98.fisheyegallery.model.mediacache.MediaCacheItem;
+import com.jhjdekker98.fisheyegallery.util.FileHelper;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 public class FileSystemIndexer implements IMediaIndexer {
+    private static final String TAG = "FileSystemIndexer";
     private static final int BATCH_SIZE = 50;
+    private static final String PRIMARY_PREFIX = "primary:";
+    private static final String[] PROJECTION = {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+            DocumentsContract.Document.COLUMN_SIZE
+    };
     private final Context context;
     private final Uri rootUri;
     private final SharedPreferences prefs;
+    private final MediaCacheDao cacheDao;
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private volatile boolean canceled = false;
 
@@ -22,39 +40,59 @@ public class FileSystemIndexer implements IMediaIndexer {
         this.context = context.getApplicationContext();
         this.rootUri = rootUri;
         this.prefs = prefs;
+        this.cacheDao = MediaCacheDatabase.getInstance(context).mediaCacheDao();
     }
 
     @Override
     public void startIndexing(Callback callback) {
         executor.execute(() -> {
-            final DocumentFile root = DocumentFile.fromTreeUri(context, rootUri);
-            if (root == null || !root.exists()) {
-                callback.onComplete();
-                return;
+            try {
+                walk(DocumentsContract.getTreeDocumentId(rootUri), 0, callback);
+            } catch (Exception e) {
+                Log.e(TAG, "Error indexing " + rootUri, e);
             }
-            walk(root, 0, callback);
             callback.onComplete();
         });
     }
 
-    private void walk(DocumentFile dir, int currentDepth, Callback callback) {
+    /**
+     * Walk a directory with one child-documents query, which returns everything a {@link MediaRecord} needs
+     * in a single round trip instead of one provider call per file and attribute.
+     */
+    private void walk(String documentId, int currentDepth, Callback callback) {
         if (canceled) return;
 
         final int maxDepth = getMaxDepth();
         if (maxDepth > 0 && currentDepth > maxDepth) return;
 
-        List<Uri> batch = new ArrayList<>();
-
-        for (DocumentFile file : dir.listFiles()) {
-            if (canceled) return;
-
-            if (file.isDirectory()) {
-                walk(file, currentDepth + 1, callback);
-            } else if (isMediaFile(file)) {
-                batch.add(file.getUri());
-                if (batch.size() >= BATCH_SIZE) {
-                    sendBatch(batch, callback);
-                    batch.clear();
+        final ContentResolver resolver = context.getContentResolver();
+        final Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(rootUri, documentId);
+        final List<String> subDirectories = new ArrayList<>();
+        final List<MediaRecord> batch = new ArrayList<>();
+
+        try (Cursor cursor = resolver.query(childrenUri, PROJECTION, null, null, null)) {
+            if (cursor == null) return;
+
+            while (!canceled && cursor.moveToNext()) {
+                final String childId = cursor.getString(0);
+                final String mimeType = cursor.getString(1);
+
+                if (DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType)) {
+                    subDirectories.add(childId);
+                } else if (isMediaType(mimeType)) {
+                    // Dated by last-modified for now; see withCaptureDates
+                    final long lastModified = cursor.isNull(2) ? 0 : cursor.getLong(2);
+                    batch.add(new MediaRecord(
+                            toKey(childId),
+                            DocumentsContract.buildDocumentUriUsingTree(rootUri, childId),
+                            lastModified,
+                            lastModified,
+                            mimeType,
+                            cursor.isNull(3) ? -1 : cursor.getLong(3)));
+                    if (batch.size() >= BATCH_SIZE) {
+                        sendBatch(batch, callback);
+                        batch.clear();
+                    }
                 }
             }
         }
@@ -62,11 +100,15 @@ public class FileSystemIndexer implements IMediaIndexer {
         if (!batch.isEmpty()) {
             sendBatch(batch, callback);
         }
+
+        for (String childId : subDirectories) {
+            walk(childId, currentDepth + 1, callback);
+        }
     }
 
-    private void sendBatch(List<Uri> batch, Callback callback) {
+    private void sendBatch(List<MediaRecord> batch, Callback callback) {
         // Reuse the same executor: runs sequentially on the background thread
-        callback.onMediaFound(new ArrayList<>(batch));
+        callback.onMediaFound(withCaptureDates(batch));
 
         // Optional: tiny pause for network shares
         try {
@@ -76,8 +118,43 @@ public class FileSystemIndexer implements IMediaIndexer {
         }
     }
 
-    private boolean isMediaFile(DocumentFile file) {
-        final String mimeType = file.getType();
+    /**
+     * Date records by the capture date in their header where the format has one, so a photo that was copied
+     * isn't filed under the day it was copied. A file that is unchanged since it was cached keeps its cached
+     * date, so only new or changed files have their header read.
+     */
+    private List<MediaRecord> withCaptureDates(List<MediaRecord> batch) {
+        final List<String> keys = new ArrayList<>(batch.size());
+        for (MediaRecord record : batch) {
+            if (FileHelper.hasHeaderDate(record.mimeType)) keys.add(record.key);
+        }
+        final Map<String, MediaCacheItem> cached = new HashMap<>();
+        if (!keys.isEmpty()) {
+            for (MediaCacheItem item : cacheDao.getAll(keys)) cached.put(item.key, item);
+        }
+
+        final List<MediaRecord> dated = new ArrayList<>(batch.size());
+        for (MediaRecord record : batch) {
+            if (!FileHelper.hasHeaderDate(record.mimeType)) {
+                dated.add(record);
+                continue;
+            }
+            final MediaCacheItem item = cached.get(record.key);
+            final long version = MediaCacheItem.contentVersionOf(record.modified, record.size);
+            final long date = item != null && version != 0 && item.contentVersion == version
+                    ? item.lastModified
+                    : FileHelper.getLocalFileDate(context, record.uri, record.mimeType, record.modified);
+            dated.add(date == record.timestamp ? record : new MediaRecord(record.key, record.uri, date,
+                    record.modified, record.mimeType, record.size, record.width, record.height));
+        }
+        return dated;
+    }
+
+    private static String toKey(String documentId) {
+        return documentId.startsWith(PRIMARY_PREFIX) ? documentId.substring(PRIMARY_PREFIX.length()) : documentId;
+    }
+
+    private static boolean isMediaType(String mimeType) {
         return mimeType != null && (mimeType.startsWith("image/") || mimeType.startsWith("video/"));
     }
 
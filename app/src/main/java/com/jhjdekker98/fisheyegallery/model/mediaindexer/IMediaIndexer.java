@@ -1,6 +1,5 @@
 package com.jhjdekker98.fisheyegallery.model.mediaindexer;
 
-import android.net.Uri;
 import java.util.List;
 
 public interface IMediaIndexer {
@@ -11,7 +10,10 @@ public interface IMediaIndexer {
     IndexerType getIndexerType();
 
     interface Callback {
-        void onMediaFound(List<Uri> newUris);
+        /**
+         * Called from indexer threads, possibly from several at once.
+         */
+        void onMediaFound(List<MediaRecord> records);
 
         void onComplete();
     }
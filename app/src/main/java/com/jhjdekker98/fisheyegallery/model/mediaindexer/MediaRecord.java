@@ -0,0 +1,37 @@
+package com.jhjdekker98.fisheyegallery.model.mediaindexer;
+
+import android.net.Uri;
+
+/**
+ * Metadata an indexer already knows about a media file, so consumers don't have to look it up again.
+ * Unknown values are {@code 0} (timestamp, modified, dimensions), {@code -1} (size) or {@code null} (MIME type).
+ * <p>
+ * The timestamp places the item on the timeline (e.g. the capture date); {@code modified} is the file's own
+ * last-modified time, which tells whether its content changed.
+ */
+public class MediaRecord {
+    public final String key;
+    public final Uri uri;
+    public final long timestamp;
+    public final long modified;
+    public final String mimeType;
+    public final long size;
+    public final int width;
+    public final int height;
+
+    public MediaRecord(String key, Uri uri, long timestamp, long modified, String mimeType, long size,
+                       int width, int height) {
+        this.key = key;
+        this.uri = uri;
+        this.timestamp = timestamp;
+        this.modified = modified;
+        this.mimeType = mimeType;
+        this.size = size;
+        this.width = width;
+        this.height = height;
+    }
+
+    public MediaRecord(String key, Uri uri, long timestamp, long modified, String mimeType, long size) {
+        this(key, uri, timestamp, modified, mimeType, size, 0, 0);
+    }
+}
@@ -4,6 +4,7 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.MediaStore;
 import android.util.Log;
 import java.util.ArrayList;
@@ -12,6 +13,27 @@ import java.util.concurrent.Executors;
 
 public class MediaStoreIndexer implements IMediaIndexer {
     private static final int BATCH_SIZE = 50;
+    private static final String[] PROJECTION = {
+            MediaStore.MediaColumns._ID,
+            MediaStore.MediaColumns.DISPLAY_NAME,
+            MediaStore.MediaColumns.DATE_TAKEN,
+            MediaStore.MediaColumns.DATE_MODIFIED,
+            MediaStore.MediaColumns.MIME_TYPE,
+            MediaStore.MediaColumns.SIZE,
+            MediaStore.MediaColumns.WIDTH,
+            MediaStore.MediaColumns.HEIGHT
+    };
+    private static final String[] PROJECTION_Q = {
+            MediaStore.MediaColumns._ID,
+            MediaStore.MediaColumns.DISPLAY_NAME,
+            MediaStore.MediaColumns.DATE_TAKEN,
+            MediaStore.MediaColumns.DATE_MODIFIED,
+            MediaStore.MediaColumns.MIME_TYPE,
+            MediaStore.MediaColumns.SIZE,
+            MediaStore.MediaColumns.WIDTH,
+            MediaStore.MediaColumns.HEIGHT,
+            MediaStore.MediaColumns.RELATIVE_PATH
+    };
     private final Context context;
     private volatile boolean canceled = false;
 
@@ -22,7 +44,8 @@ public class MediaStoreIndexer implements IMediaIndexer {
     @Override
     public void startIndexing(Callback callback) {
         Executors.newSingleThreadExecutor().execute(() -> {
-            final String[] projection = {MediaStore.MediaColumns._ID};
+            final boolean hasRelativePath = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+            final String[] projection = hasRelativePath ? PROJECTION_Q : PROJECTION;
             final Uri collection = MediaStore.Files.getContentUri("external");
             final String selection = MediaStore.Files.FileColumns.MEDIA_TYPE + "=? OR " +
                     MediaStore.Files.FileColumns.MEDIA_TYPE + "=?";
@@ -40,11 +63,43 @@ public class MediaStoreIndexer implements IMediaIndexer {
                 }
 
                 int idColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns._ID);
-                List<Uri> batch = new ArrayList<>();
+                int nameColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DISPLAY_NAME);
+                int dateTakenColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATE_TAKEN);
+                int dateModifiedColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATE_MODIFIED);
+                int mimeColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.MIME_TYPE);
+                int sizeColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.SIZE);
+                int widthColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.WIDTH);
+                int heightColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.HEIGHT);
+                int pathColumn = hasRelativePath
+                        ? cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.RELATIVE_PATH)
+                        : -1;
+
+                List<MediaRecord> batch = new ArrayList<>();
                 while (!canceled && cursor.moveToNext()) {
                     long id = cursor.getLong(idColumn);
                     Uri contentUri = ContentUris.withAppendedId(collection, id);
-                    batch.add(contentUri);
+
+                    // Key is the relative path + display name, so it survives MediaStore re-scans
+                    final String key;
+                    if (pathColumn >= 0) {
+                        final String path = cursor.isNull(pathColumn) ? "" : cursor.getString(pathColumn);
+                        key = path + cursor.getString(nameColumn);
+                    } else {
+                        key = contentUri.toString();
+                    }
+                    final long dateTaken = cursor.getLong(dateTakenColumn);
+                    final long dateModified = cursor.getLong(dateModifiedColumn) * 1000;
+                    final long timestamp = dateTaken > 0 ? dateTaken : dateModified;
+
+                    batch.add(new MediaRecord(
+                            key,
+                            contentUri,
+                            timestamp,
+                            dateModified,
+                            cursor.getString(mimeColumn),
+                            cursor.isNull(sizeColumn) ? -1 : cursor.getLong(sizeColumn),
+                            cursor.getInt(widthColumn),
+                            cursor.getInt(heightColumn)));
 
                     if (batch.size() >= BATCH_SIZE) {
                         callback.onMediaFound(new ArrayList<>(batch));
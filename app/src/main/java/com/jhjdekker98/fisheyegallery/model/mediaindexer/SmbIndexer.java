@@ -1,45 +1,72 @@
 package com.jhjdekker98.fisheyegallery.model.mediaindexer;
 
+import android.content.Context;
 import android.net.Uri;
 import android.util.Log;
 import com.hierynomus.msfscc.FileAttributes;
 import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
-import com.hierynomus.smbj.SMBClient;
-import com.hierynomus.smbj.auth.AuthenticationContext;
-import com.hierynomus.smbj.connection.Connection;
-import com.hierynomus.smbj.session.Session;
-import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.mssmb2.SMBApiException;
 import com.jhjdekker98.fisheyegallery.Constants;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbCredentials;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbHostLimiter;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbSessionPool;
+import com.jhjdekker98.fisheyegallery.model.mediacache.MediaCacheDatabase;
+import com.jhjdekker98.fisheyegallery.model.mediacache.SmbDirState;
 import com.jhjdekker98.fisheyegallery.util.FileHelper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Crawls an SMB share with a work queue of directories. Up to {@link SmbCredentials#getCrawlParallelism()}
+ * listings are in flight at once over the same pooled session, further capped by the host's adaptive limit
+ * in {@link SmbSessionPool}, so crawl time is bound by the number of
+ * directories divided by the parallelism rather than by the latency of every single listing.
+ * <p>
+ * Crawls are incremental: what each directory looked like is kept in {@link SmbDirState}. A directory whose
+ * last-write time (as reported by its parent's listing) is unchanged and that has no subdirectories is not
+ * listed at all, and a directory whose listing has the same fingerprint as before doesn't report its media
+ * again, since those items are already in the media cache. Directories with subdirectories are always
+ * listed, because that listing is what tells us the subdirectories' last-write times.
+ */
 public class SmbIndexer implements IMediaIndexer {
     private static final String TAG = "SmbIndexer";
     private static final int BATCH_SIZE = 50;
 
-    private final String host;
-    private final String share;
-    private final String username;
-    private final String password;
+    private final Context context;
+    private final MediaCacheDatabase db;
+    private final SmbCredentials creds;
     private final String rootPath;
     private final int maxDepth;
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private volatile boolean canceled = false;
 
-    public SmbIndexer(String host, String share, String username, String password, String rootPath, Integer maxDepth) {
-        this.host = host;
-        this.share = share;
-        this.username = username;
-        this.password = password;
-        this.rootPath = rootPath == null ? "" : rootPath;
+    public SmbIndexer(Context context, SmbCredentials creds, Integer maxDepth) {
+        this.context = context.getApplicationContext();
+        this.db = MediaCacheDatabase.getInstance(context);
+        this.creds = creds;
+        this.rootPath = creds.getRootPath();
         this.maxDepth = maxDepth == null ? 0 : maxDepth;
     }
 
+    public SmbCredentials getCredentials() {
+        return creds;
+    }
+
     public static Uri getContentUri(String host, String share, String relativePath) {
-        String cleanPath = relativePath.startsWith("/") ? relativePath.substring(1) : relativePath;
+        final String cleanPath = SmbCredentials.normalizePath(relativePath);
         return new Uri.Builder()
                 .scheme("content")
                 .authority(Constants.SMB_CONTENT_AUTHORITY)
@@ -51,15 +78,8 @@ public class SmbIndexer implements IMediaIndexer {
     public void startIndexing(Callback callback) {
         canceled = false;
         executor.execute(() -> {
-            SMBClient client = new SMBClient();
-            try (Connection connection = client.connect(host)) {
-                AuthenticationContext auth = new AuthenticationContext(username, password.toCharArray(), "");
-                Session session = connection.authenticate(auth);
-
-                try (DiskShare diskShare = (DiskShare) session.connectShare(share)) {
-                    walkDirectory(diskShare, rootPath, 0, callback);
-                }
-
+            try {
+                new Crawl(callback).run();
             } catch (Exception e) {
                 Log.e(TAG, "Error indexing SMB share", e);
             }
@@ -68,59 +88,213 @@ public class SmbIndexer implements IMediaIndexer {
         });
     }
 
+    @Override
+    public void stop() {
+        canceled = true;
+    }
+
+    private boolean isDirectory(FileIdBothDirectoryInformation f) {
+        return (f.getFileAttributes() & FileAttributes.FILE_ATTRIBUTE_DIRECTORY.getValue()) != 0;
+    }
+
+    @Override
+    public IndexerType getIndexerType() {
+        return IndexerType.SMB;
+    }
+
     /**
-     * Recursive directory walker with depth and MIME filter.
+     * Hash a directory listing, so a re-listing with the same content can be recognised.
      */
-    private void walkDirectory(DiskShare share, String path, int currentDepth, Callback callback) {
-        if (canceled) return;
-        if (maxDepth > 0 && currentDepth > maxDepth) return;
+    private static String fingerprint(List<String> entries) {
+        Collections.sort(entries);
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String entry : entries) {
+                digest.update(entry.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-        final List<Uri> batch = new ArrayList<>();
+    /**
+     * One crawl of the share. Each listed directory queues its subdirectories on the worker pool; the crawl
+     * is done when no directory is pending any more.
+     */
+    private class Crawl {
+        private final SmbSessionPool pool = SmbSessionPool.getInstance();
+        private final Callback callback;
+        private final ExecutorService workers;
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicInteger directories = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger files = new AtomicInteger();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final String keyPrefix = SmbDirState.keyFor(creds.host, creds.share, "");
+        private final Map<String, SmbDirState> previousStates = new HashMap<>();
+        private final Map<String, SmbDirState> newStates = new ConcurrentHashMap<>();
+        private final Set<String> seen = ConcurrentHashMap.newKeySet();
+        private volatile boolean failed = false;
 
-        for (FileIdBothDirectoryInformation f : share.list(path)) {
+        Crawl(Callback callback) {
+            this.callback = callback;
+            this.workers = Executors.newFixedThreadPool(creds.getCrawlParallelism());
+        }
+
+        void run() throws InterruptedException {
+            final long start = System.currentTimeMillis();
+            for (SmbDirState state : db.smbDirStateDao().queryByPrefix(keyPrefix)) {
+                if (state.key.startsWith(keyPrefix)) previousStates.put(state.key, state); // LIKE ignores case
+            }
+
+            submit(rootPath, 0, null);
+            try {
+                done.await();
+            } finally {
+                workers.shutdownNow();
+            }
+            saveStates();
+
+            final long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            Log.i(TAG, String.format("Crawled %s/%s%s: %d directories listed, %d unchanged skipped, " +
+                            "%d media files reported in %d ms (%.1f dirs/s)",
+                    creds.host, creds.share, canceled ? " (canceled)" : "",
+                    directories.get(), skipped.get(), files.get(), elapsed,
+                    (directories.get() + skipped.get()) * 1000.0 / elapsed));
+        }
+
+        private void submit(String path, int depth, Long lastWriteTime) {
+            pending.incrementAndGet();
+            workers.execute(() -> {
+                try {
+                    listDirectory(path, depth, lastWriteTime);
+                } catch (SMBApiException e) {
+                    // E.g. access denied on one folder; the rest of the share is still worth indexing
+                    Log.w(TAG, "Failed to list " + path + ": " + e.getStatus());
+                    failed = true;
+                } catch (Exception e) {
+                    Log.e(TAG, "Error listing " + path + ", stopping crawl", e);
+                    failed = true;
+                    canceled = true;
+                } finally {
+                    if (pending.decrementAndGet() == 0) done.countDown();
+                }
+            });
+        }
+
+        /**
+         * @param lastWriteTime the directory's last-write time from its parent's listing, {@code null} for the root
+         */
+        private void listDirectory(String path, int currentDepth, Long lastWriteTime) throws IOException {
             if (canceled) return;
+            if (maxDepth > 0 && currentDepth > maxDepth) return;
 
-            final String name = f.getFileName();
-            if (name.equals(".") || name.equals("..")) continue;
+            final String key = SmbDirState.keyFor(creds.host, creds.share, path);
+            final SmbDirState previous = previousStates.get(key);
+            seen.add(key);
+            if (previous != null && lastWriteTime != null
+                    && previous.lastWriteTime == lastWriteTime && previous.subdirectoryCount == 0) {
+                skipped.incrementAndGet();
+                return;
+            }
+
+            // A lease per listing, so the host's limiter decides how many of the workers actually run at once
+            final List<FileIdBothDirectoryInformation> entries = pool.execute(creds,
+                    SmbHostLimiter.Op.METADATA, share -> share.list(path));
+            directories.incrementAndGet();
 
-            final String fullPath = path.isEmpty() ? name : path + "/" + name;
+            final List<MediaRecord> records = new ArrayList<>();
+            final List<String> fingerprintEntries = new ArrayList<>();
+            long ownLastWriteTime = lastWriteTime == null ? 0 : lastWriteTime;
+            int subdirectoryCount = 0;
 
-            if (isDirectory(f)) {
-                walkDirectory(share, fullPath, currentDepth + 1, callback);
-            } else {
-                // MIME type filter
-                final String mimeType = FileHelper.getFileMimeType(name);
-                if (mimeType == null || !(mimeType.startsWith("image/") || mimeType.startsWith("video/"))) {
-                    continue; // skip non-media files
+            for (FileIdBothDirectoryInformation f : entries) {
+                if (canceled) return;
+
+                final String name = f.getFileName();
+                if (name.equals(".")) {
+                    if (lastWriteTime == null) ownLastWriteTime = f.getLastWriteTime().toEpochMillis();
+                    continue;
                 }
+                if (name.equals("..")) continue;
+
+                final String fullPath = path.isEmpty() ? name : path + "/" + name;
 
-                final Uri uri = SmbIndexer.getContentUri(host, this.share, fullPath);
-                batch.add(uri);
+                if (isDirectory(f)) {
+                    subdirectoryCount++;
+                    fingerprintEntries.add(name + "/");
+                    submit(fullPath, currentDepth + 1, f.getLastWriteTime().toEpochMillis());
+                } else {
+                    // MIME type filter
+                    final String mimeType = FileHelper.getFileMimeType(name);
+                    if (mimeType == null || !(mimeType.startsWith("image/") || mimeType.startsWith("video/"))) {
+                        continue; // skip non-media files
+                    }
 
-                if (batch.size() >= BATCH_SIZE) {
-                    callback.onMediaFound(new ArrayList<>(batch));
-                    batch.clear();
+                    final long fileLastWriteTime = f.getLastWriteTime().toEpochMillis();
+                    fingerprintEntries.add(name + "|" + f.getEndOfFile() + "|" + fileLastWriteTime);
+                    final Uri uri = SmbIndexer.getContentUri(creds.host, creds.share, fullPath);
+                    records.add(new MediaRecord(
+                            uri.toString(),
+                            uri,
+                            fileLastWriteTime,
+                            fileLastWriteTime,
+                            mimeType,
+                            f.getEndOfFile()));
                 }
             }
-        }
 
-        if (!batch.isEmpty()) {
-            callback.onMediaFound(batch);
+            final String fingerprint = fingerprint(fingerprintEntries);
+            if (previous == null || !fingerprint.equals(previous.fingerprint)) {
+                for (int i = 0; i < records.size(); i += BATCH_SIZE) {
+                    if (canceled) return;
+                    final List<MediaRecord> batch = new ArrayList<>();
+                    for (MediaRecord record : records.subList(i, Math.min(records.size(), i + BATCH_SIZE))) {
+                        batch.add(withCaptureDate(record));
+                    }
+                    callback.onMediaFound(batch);
+                }
+                files.addAndGet(records.size());
+            }
+
+            // Only recorded once the directory's media has been reported in full
+            newStates.put(key, new SmbDirState(key, ownLastWriteTime, fingerprint, subdirectoryCount));
         }
-    }
 
-    @Override
-    public void stop() {
-        canceled = true;
-    }
+        /**
+         * Date a record by the capture date in its header where the format has one, here on the crawl workers
+         * rather than one by one when the records are consumed. Its last-write time remains the fallback.
+         */
+        private MediaRecord withCaptureDate(MediaRecord record) {
+            final long date = FileHelper.getSmbFileDate(context, creds, SmbCredentials.getPathForUri(record.uri),
+                    record.mimeType, record.size, record.modified);
+            if (date == record.timestamp) return record;
+            return new MediaRecord(record.key, record.uri, date, record.modified, record.mimeType, record.size,
+                    record.width, record.height);
+        }
 
-    private boolean isDirectory(FileIdBothDirectoryInformation f) {
-        return (f.getFileAttributes() & FileAttributes.FILE_ATTRIBUTE_DIRECTORY.getValue()) != 0;
-    }
+        private void saveStates() {
+            final List<String> removed = new ArrayList<>();
+            if (!canceled && !failed) {
+                // Directories that were deleted or are now out of depth
+                for (String key : previousStates.keySet()) {
+                    if (!seen.contains(key)) removed.add(key);
+                }
+            }
+            if (newStates.isEmpty() && removed.isEmpty()) return;
 
-    @Override
-    public IndexerType getIndexerType() {
-        return IndexerType.SMB;
+            try {
+                db.runInTransaction(() -> {
+                    db.smbDirStateDao().insertAll(new ArrayList<>(newStates.values()));
+                    if (!removed.isEmpty()) db.smbDirStateDao().deleteByKeys(removed);
+                });
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to save directory state for " + creds.host + "/" + creds.share, e);
+            }
+        }
     }
 }
-
@@ -7,6 +7,8 @@ import android.security.keystore.KeyProperties;
 import android.util.Base64;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
@@ -20,15 +22,18 @@ public class SecureStorageHelper {
     private static final int TAG_SIZE = 128;
     private static SecureStorageHelper instance;
     private final SharedPreferences sharedPreferences;
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    // Keystore lookups are slow, and the key never changes once created
+    private volatile SecretKey secretKey;
 
     private SecureStorageHelper(Context context) {
         sharedPreferences = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
         createKeyIfNeeded();
     }
 
-    public static SecureStorageHelper getInstance(Context context) {
+    public static synchronized SecureStorageHelper getInstance(Context context) {
         if (instance == null) {
-            instance = new SecureStorageHelper(context);
+            instance = new SecureStorageHelper(context.getApplicationContext());
         }
         return instance;
     }
@@ -61,9 +66,22 @@ public class SecureStorageHelper {
     }
 
     private SecretKey getSecretKey() throws Exception {
-        KeyStore keyStore = KeyStore.getInstance(ANDROID_KEYSTORE);
-        keyStore.load(null);
-        return ((SecretKey) keyStore.getKey(KEY_ALIAS, null));
+        SecretKey key = secretKey;
+        if (key == null) {
+            KeyStore keyStore = KeyStore.getInstance(ANDROID_KEYSTORE);
+            keyStore.load(null);
+            key = (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+            secretKey = key;
+        }
+        return key;
+    }
+
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
     }
 
     public void storeEncrypted(String key, String value) {
@@ -81,6 +99,7 @@ public class SecureStorageHelper {
         } catch (Exception e) {
             throw new RuntimeException("Encryption failed", e);
         }
+        for (ChangeListener listener : listeners) listener.onChanged(key);
     }
 
     public String retrieveDecrypted(String key) {
@@ -102,5 +121,11 @@ public class SecureStorageHelper {
             throw new RuntimeException("Decryption failed", e);
         }
     }
-}
 
+    public interface ChangeListener {
+        /**
+         * Called on the writing thread after a value was stored.
+         */
+        void onChanged(String key);
+    }
+}
@@ -17,16 +17,25 @@ import androidx.annotation.NonNull;
 import androidx.core.app.ActivityOptionsCompat;
 import androidx.recyclerview.widget.RecyclerView;
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.signature.ObjectKey;
 import com.jhjdekker98.fisheyegallery.Constants;
 import com.jhjdekker98.fisheyegallery.R;
 import com.jhjdekker98.fisheyegallery.activity.FullImageActivity;
 import com.jhjdekker98.fisheyegallery.model.GalleryItem;
+import com.jhjdekker98.fisheyegallery.model.MediaCatalog;
 import com.jhjdekker98.fisheyegallery.util.CollectionUtil;
 import com.jhjdekker98.fisheyegallery.util.FileHelper;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
+/**
+ * Timeline grid of day headers and images. New snapshots are diffed against the current one on a background
+ * thread (see {@link TimelineDiffer}), so while indexing only the inserted and removed positions are bound
+ * and the scroll position stays where it is. Items are only read from the snapshot when they are bound, and
+ * positions that haven't been loaded yet show as empty cells.
+ */
 public class MediaAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     private static final int VIEW_TYPE_HEADER = 0;
     private static final int VIEW_TYPE_IMAGE = 1;
@@ -35,12 +44,14 @@ public class MediaAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
             "https",
             "smb",
             "cifs"); //TODO: Find reliable source and expand
-
-    private final List<GalleryItem> items = new ArrayList<>();
+    private final TimelineDiffer differ = new TimelineDiffer(this);
     private final ContentResolver contentResolver;
+    private final Set<Uri> selected = new LinkedHashSet<>();
+    private SelectionListener selectionListener;
 
     public MediaAdapter(ContentResolver contentResolver) {
         this.contentResolver = contentResolver;
+        setHasStableIds(true);
     }
 
     private boolean isLocal(Uri uri) {
@@ -68,17 +79,49 @@ public class MediaAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         return false;
     }
 
-    public void submitList(List<GalleryItem> newItems) {
-        items.clear();
-        items.addAll(newItems);
-        notifyDataSetChanged();
+    public void setSelectionListener(SelectionListener selectionListener) {
+        this.selectionListener = selectionListener;
+    }
+
+    public List<Uri> getSelectedUris() {
+        return new ArrayList<>(selected);
+    }
+
+    public void clearSelection() {
+        if (selected.isEmpty()) return;
+        selected.clear();
+        notifyItemRangeChanged(0, getItemCount());
+        if (selectionListener != null) selectionListener.onSelectionChanged(0);
+    }
+
+    private void toggleSelection(Uri uri, int position) {
+        if (!selected.remove(uri)) selected.add(uri);
+        if (position != RecyclerView.NO_POSITION) notifyItemChanged(position);
+        if (selectionListener != null) selectionListener.onSelectionChanged(selected.size());
+    }
+
+    /**
+     * Show a new timeline; the diff is computed in the background.
+     */
+    public void submitList(MediaCatalog.Snapshot snapshot) {
+        differ.submit(snapshot);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        // Derived from the key rather than handed out and remembered, so ids cost nothing to keep
+        final String key = differ.getCurrent().getStableKey(position);
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
     }
 
     @Override
     public int getItemViewType(int position) {
-        return (items.get(position) instanceof GalleryItem.Header)
-                ? VIEW_TYPE_HEADER
-                : VIEW_TYPE_IMAGE;
+        return differ.getCurrent().isHeader(position) ? VIEW_TYPE_HEADER : VIEW_TYPE_IMAGE;
     }
 
     @NonNull
@@ -96,21 +139,35 @@ public class MediaAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
 
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        GalleryItem item = items.get(position);
-        if (holder instanceof HeaderViewHolder) {
+        GalleryItem item = differ.getCurrent().get(position);
+        if (item == null) {
+            // Not loaded yet
+            ((ImageViewHolder) holder).bindPlaceholder();
+        } else if (holder instanceof HeaderViewHolder) {
             ((HeaderViewHolder) holder).bind(((GalleryItem.Header) item).dateLabel);
         } else if (holder instanceof ImageViewHolder) {
             final ImageViewHolder imageHolder = (ImageViewHolder) holder;
             final GalleryItem.Image imageItem = (GalleryItem.Image) item;
             final boolean isLocal = isLocal(imageItem.uri);
 
-            imageHolder.bind(imageItem.uri, isLocal, contentResolver);
+            imageHolder.bind(imageItem, isLocal, selected.contains(imageItem.uri), contentResolver);
 
+            imageHolder.imageView.setOnLongClickListener(v -> {
+                toggleSelection(imageItem.uri, imageHolder.getBindingAdapterPosition());
+                return true;
+            });
             imageHolder.imageView.setOnClickListener(v -> {
+                // While selecting, a tap adds to or removes from the selection instead of opening the item
+                if (!selected.isEmpty()) {
+                    toggleSelection(imageItem.uri, imageHolder.getBindingAdapterPosition());
+                    return;
+                }
+
                 final Intent intent = new Intent(v.getContext(), FullImageActivity.class);
                 intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION | Intent.FLAG_GRANT_READ_URI_PERMISSION);
                 intent.putExtra(FullImageActivity.EXTRA_IMAGE_URI, imageItem.uri);
                 intent.putExtra(FullImageActivity.EXTRA_IMAGE_LOCAL, isLocal);
+                intent.putExtra(FullImageActivity.EXTRA_CONTENT_VERSION, imageItem.contentVersion);
 
                 final Drawable thumbDrawable = imageHolder.imageView.getDrawable();
                 if (thumbDrawable instanceof BitmapDrawable) {
@@ -129,7 +186,7 @@ public class MediaAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
 
     @Override
     public int getItemCount() {
-        return items.size();
+        return differ.getCurrent().size();
     }
 
     static class HeaderViewHolder extends RecyclerView.ViewHolder {
@@ -149,23 +206,46 @@ public class MediaAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         private final ImageView imageView;
         private final ImageView cloudIcon;
         private final ImageView videoIcon;
+        private final ImageView selectedIcon;
 
         ImageViewHolder(View itemView) {
             super(itemView);
             imageView = itemView.findViewById(R.id.imageButton);
             cloudIcon = itemView.findViewById(R.id.cloudIcon);
             videoIcon = itemView.findViewById(R.id.videoIcon);
+            selectedIcon = itemView.findViewById(R.id.selectedIcon);
+        }
+
+        void bindPlaceholder() {
+            Glide.with(imageView.getContext()).clear(imageView);
+            imageView.setOnClickListener(null);
+            imageView.setOnLongClickListener(null);
+            cloudIcon.setVisibility(View.GONE);
+            videoIcon.setVisibility(View.GONE);
+            selectedIcon.setVisibility(View.GONE);
+            imageView.setAlpha(1f);
         }
 
-        void bind(Uri uri, boolean isLocal, ContentResolver contentResolver) {
+        void bind(GalleryItem.Image item, boolean isLocal, boolean isSelected, ContentResolver contentResolver) {
             Glide.with(imageView.getContext())
-                    .load(uri)
+                    .load(item.uri)
+                    .signature(new ObjectKey(item.contentVersion)) // a changed file gets a new thumbnail
                     .centerCrop()
                     .into(imageView);
 
             cloudIcon.setVisibility(isLocal ? View.GONE : View.VISIBLE);
-            final String mimeType = FileHelper.getFileMimeType(uri, contentResolver);
-            videoIcon.setVisibility(mimeType.startsWith("video/") ? View.VISIBLE : View.GONE);
+            // Only ask the content resolver when the catalog doesn't know the type
+            final boolean isVideo = item.mediaType == GalleryItem.Image.TYPE_UNKNOWN
+                    ? GalleryItem.Image.typeOf(FileHelper.getFileMimeType(item.uri, contentResolver))
+                    == GalleryItem.Image.TYPE_VIDEO
+                    : item.mediaType == GalleryItem.Image.TYPE_VIDEO;
+            videoIcon.setVisibility(isVideo ? View.VISIBLE : View.GONE);
+            selectedIcon.setVisibility(isSelected ? View.VISIBLE : View.GONE);
+            imageView.setAlpha(isSelected ? 0.6f : 1f);
         }
     }
+
+    public interface SelectionListener {
+        void onSelectionChanged(int count);
+    }
 }
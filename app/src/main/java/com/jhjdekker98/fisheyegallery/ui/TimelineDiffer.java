@@ -0,0 +1,222 @@
+package com.jhjdekker98.fisheyegallery.ui;
+
+import android.os.Handler;
+import android.os.Looper;
+import androidx.recyclerview.widget.BatchingListUpdateCallback;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListUpdateCallback;
+import androidx.recyclerview.widget.RecyclerView;
+import com.jhjdekker98.fisheyegallery.model.MediaCatalog;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Moves an adapter from one {@link MediaCatalog.Snapshot} to the next.
+ * <p>
+ * Like {@code AsyncListDiffer}, the changes are worked out on a background thread and applied on the main
+ * thread, but snapshots are compared day by day: days that are shared between the two snapshots are skipped
+ * without looking at their items, and only changed days are diffed item by item. An update thus costs in
+ * proportion to the days it touches, not to the size of the timeline.
+ */
+class TimelineDiffer {
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        final Thread t = new Thread(r, "TimelineDiffer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final RecyclerView.Adapter<?> adapter;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private MediaCatalog.Snapshot current = MediaCatalog.Snapshot.EMPTY;
+    // Only touched on the main thread; a result is dropped if another snapshot was submitted meanwhile
+    private int generation = 0;
+
+    TimelineDiffer(RecyclerView.Adapter<?> adapter) {
+        this.adapter = adapter;
+    }
+
+    MediaCatalog.Snapshot getCurrent() {
+        return current;
+    }
+
+    void submit(MediaCatalog.Snapshot next) {
+        final int submitted = ++generation;
+        final MediaCatalog.Snapshot previous = current;
+        if (next == previous) return;
+        if (previous.isEmpty() || next.isEmpty()) {
+            current = next;
+            if (previous.isEmpty()) adapter.notifyItemRangeInserted(0, next.size());
+            else adapter.notifyItemRangeRemoved(0, previous.size());
+            return;
+        }
+
+        DIFF_EXECUTOR.execute(() -> {
+            final RecordingCallback changes = new RecordingCallback();
+            final BatchingListUpdateCallback batching = new BatchingListUpdateCallback(changes);
+            diff(previous, next, batching);
+            batching.dispatchLastEvent();
+            mainHandler.post(() -> {
+                if (generation != submitted) return;
+                current = next;
+                changes.dispatchTo(adapter);
+            });
+        });
+    }
+
+    private static void diff(MediaCatalog.Snapshot previous, MediaCatalog.Snapshot next, ListUpdateCallback callback) {
+        // Both are ordered newest day first; walk them side by side. Position is in the list as updated so far
+        int position = 0;
+        int oldDay = 0;
+        int newDay = 0;
+        while (oldDay < previous.getDayCount() || newDay < next.getDayCount()) {
+            final int oldEpochDay = oldDay < previous.getDayCount() ? previous.getEpochDay(oldDay) : Integer.MIN_VALUE;
+            final int newEpochDay = newDay < next.getDayCount() ? next.getEpochDay(newDay) : Integer.MIN_VALUE;
+            if (newEpochDay > oldEpochDay) {
+                final int count = 1 + next.getDayItemCount(newDay++);
+                callback.onInserted(position, count);
+                position += count;
+            } else if (oldEpochDay > newEpochDay) {
+                callback.onRemoved(position, 1 + previous.getDayItemCount(oldDay++));
+            } else {
+                if (!next.isSameDay(newDay, previous, oldDay)) {
+                    // The header stays; diff the items below it
+                    DiffUtil.calculateDiff(new DayCallback(previous, oldDay, next, newDay), false)
+                            .dispatchUpdatesTo(new OffsetCallback(callback, position + 1));
+                }
+                position += 1 + next.getDayItemCount(newDay);
+                oldDay++;
+                newDay++;
+            }
+        }
+    }
+
+    /**
+     * Compares the items of one day in two snapshots, by stable key.
+     */
+    private static class DayCallback extends DiffUtil.Callback {
+        private final MediaCatalog.Snapshot previous;
+        private final MediaCatalog.Snapshot next;
+        private final int oldStart;
+        private final int newStart;
+        private final String[] oldKeys;
+        private final String[] newKeys;
+
+        DayCallback(MediaCatalog.Snapshot previous, int oldDay, MediaCatalog.Snapshot next, int newDay) {
+            this.previous = previous;
+            this.next = next;
+            this.oldStart = previous.getDayStart(oldDay) + 1;
+            this.newStart = next.getDayStart(newDay) + 1;
+            this.oldKeys = keys(previous, oldStart, previous.getDayItemCount(oldDay));
+            this.newKeys = keys(next, newStart, next.getDayItemCount(newDay));
+        }
+
+        private static String[] keys(MediaCatalog.Snapshot snapshot, int start, int count) {
+            final String[] keys = new String[count];
+            for (int i = 0; i < count; i++) keys[i] = snapshot.getStableKey(start + i);
+            return keys;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldKeys.length;
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newKeys.length;
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldKeys[oldItemPosition].equals(newKeys[newItemPosition]);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return next.isSameContents(newStart + newItemPosition, previous, oldStart + oldItemPosition);
+        }
+    }
+
+    private static class OffsetCallback implements ListUpdateCallback {
+        private final ListUpdateCallback target;
+        private final int offset;
+
+        OffsetCallback(ListUpdateCallback target, int offset) {
+            this.target = target;
+            this.offset = offset;
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            target.onInserted(offset + position, count);
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            target.onRemoved(offset + position, count);
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            target.onMoved(offset + fromPosition, offset + toPosition);
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            target.onChanged(offset + position, count, payload);
+        }
+    }
+
+    /**
+     * Keeps the changes found in the background, to replay them on the adapter on the main thread.
+     */
+    private static class RecordingCallback implements ListUpdateCallback {
+        private static final int INSERTED = 0;
+        private static final int REMOVED = 1;
+        private static final int MOVED = 2;
+        private static final int CHANGED = 3;
+
+        private final List<int[]> changes = new ArrayList<>();
+
+        @Override
+        public void onInserted(int position, int count) {
+            changes.add(new int[]{INSERTED, position, count});
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            changes.add(new int[]{REMOVED, position, count});
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            changes.add(new int[]{MOVED, fromPosition, toPosition});
+        }
+
+        @Override
+        public void onChanged(int position, int count, Object payload) {
+            changes.add(new int[]{CHANGED, position, count});
+        }
+
+        void dispatchTo(RecyclerView.Adapter<?> adapter) {
+            for (int[] change : changes) {
+                switch (change[0]) {
+                    case INSERTED:
+                        adapter.notifyItemRangeInserted(change[1], change[2]);
+                        break;
+                    case REMOVED:
+                        adapter.notifyItemRangeRemoved(change[1], change[2]);
+                        break;
+                    case MOVED:
+                        adapter.notifyItemMoved(change[1], change[2]);
+                        break;
+                    case CHANGED:
+                        adapter.notifyItemRangeChanged(change[1], change[2]);
+                        break;
+                }
+            }
+        }
+    }
+}
@@ -16,10 +16,17 @@ import android.webkit.MimeTypeMap;
 import androidx.documentfile.provider.DocumentFile;
 import androidx.exifinterface.media.ExifInterface;
 import com.jhjdekker98.fisheyegallery.Constants;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbBlockReader;
+import com.jhjdekker98.fisheyegallery.config.smb.SmbCredentials;
+import com.jhjdekker98.fisheyegallery.security.SecureStorageHelper;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class FileHelper {
@@ -27,6 +34,11 @@ public class FileHelper {
 
     @SuppressLint("RestrictedApi")
     public static long getFileDate(Context context, Uri uri) {
+        if (Constants.SMB_CONTENT_AUTHORITY.equals(uri.getAuthority())) {
+            final Long smbDate = getSmbFileDate(context, uri);
+            if (smbDate != null) return smbDate;
+        }
+
         try (ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r")) {
             if (pfd != null) {
                 final ExifInterface exif = new ExifInterface(pfd.getFileDescriptor());
@@ -62,6 +74,100 @@ public class FileHelper {
         return System.currentTimeMillis();
     }
 
+    /**
+     * @return whether files of this type have a capture date in a header {@link MediaMetadataParser} reads
+     */
+    public static boolean hasHeaderDate(String mimeType) {
+        if (mimeType == null) return false;
+        switch (mimeType) {
+            case "image/jpeg":
+            case "image/heic":
+            case "image/heif":
+            case "image/avif":
+            case "video/mp4":
+            case "video/quicktime":
+            case "video/3gpp":
+            case "video/3gpp2":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Date of a local or SAF file whose last-modified time is already known, e.g. from a child-documents
+     * query: the capture date from its metadata header if the format has one, otherwise the last-modified
+     * time. Only the header is read.
+     */
+    public static long getLocalFileDate(Context context, Uri uri, String mimeType, long lastModified) {
+        if (!hasHeaderDate(mimeType)) return lastModified;
+        try (ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r")) {
+            if (pfd == null) return lastModified;
+            final FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+            final long length = pfd.getStatSize();
+            final Long headerDate = MediaMetadataParser.parseDate(new RandomAccessSource() {
+                @Override
+                public long length() {
+                    return length;
+                }
+
+                @Override
+                public int readAt(long position, byte[] buffer, int offset, int count) throws IOException {
+                    final ByteBuffer target = ByteBuffer.wrap(buffer, offset, count);
+                    while (target.hasRemaining()) {
+                        if (channel.read(target, position + target.position() - offset) < 0) break;
+                    }
+                    return target.position() - offset;
+                }
+            });
+            return headerDate != null ? headerDate : lastModified;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to parse metadata header of " + uri, e);
+            return lastModified;
+        }
+    }
+
+    /**
+     * Date of an SMB file whose size and last-write time are already known, e.g. from a directory listing:
+     * the capture date from its metadata header if the format has one, otherwise the last-write time.
+     */
+    public static long getSmbFileDate(Context context, SmbCredentials creds, String path, String mimeType,
+                                      long size, long lastWriteTime) {
+        if (!hasHeaderDate(mimeType)) return lastWriteTime;
+        try (SmbBlockReader reader = SmbBlockReader.open(context, creds, path, size, lastWriteTime)) {
+            final Long headerDate = parseHeaderDate(reader, path);
+            return headerDate != null ? headerDate : lastWriteTime;
+        }
+    }
+
+    /**
+     * Date of an SMB file from its metadata header only (JPEG APP1, HEIF/MP4 boxes), falling back to the
+     * remote last-write time. Never reads the file body.
+     *
+     * @return the date, or {@code null} if the file could not be reached
+     */
+    private static Long getSmbFileDate(Context context, Uri uri) {
+        final SmbCredentials creds = SmbCredentials.getForUri(SecureStorageHelper.getInstance(context), uri);
+        if (creds == null) return null;
+
+        try (SmbBlockReader reader = SmbBlockReader.open(context, creds, SmbCredentials.getPathForUri(uri))) {
+            final Long headerDate = parseHeaderDate(reader, uri.toString());
+            return headerDate != null ? headerDate : reader.getLastWriteTime();
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to read SMB file info for " + uri, e);
+            return null;
+        }
+    }
+
+    private static Long parseHeaderDate(SmbBlockReader reader, String name) {
+        try {
+            return MediaMetadataParser.parseDate(reader.asProbeSource());
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to parse metadata header of " + name, e);
+            return null;
+        }
+    }
+
     /**
      * Delete a set of URIs. Handles both MediaStore items (batch or with user consent)
      * and non-MediaStore items (direct deletion).
@@ -132,6 +238,7 @@ public class FileHelper {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
             try {
                 // First try direct delete
+                final List<Uri> needConsent = new ArrayList<>();
                 for (Uri uri : mediaUris) {
                     try {
                         int rows = resolver.delete(uri, null, null);
@@ -139,25 +246,28 @@ public class FileHelper {
                             successCount += rows;
                         }
                     } catch (SecurityException se) {
-                        // Fallback: user consent
-                        try {
-                            IntentSender sender = MediaStore.createDeleteRequest(
-                                    resolver, Collections.singletonList(uri)).getIntentSender();
-                            if (context instanceof Activity) {
-                                ((Activity) context).startIntentSenderForResult(
-                                        sender,
-                                        Constants.DELETE_MEDIASTORE_FILE_REQUEST_ID,
-                                        null,
-                                        0, 0, 0
-                                );
-                                Log.i(TAG, "Requested user consent to delete: " + uri);
-                                return mediaUris.size(); // Presume successful deletion
-                            } else {
-                                Log.w(TAG, "Context not an Activity, cannot request delete for: " + uri);
-                            }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Failed to create delete request for: " + uri, e);
+                        needConsent.add(uri);
+                    }
+                }
+
+                // Fallback: user consent, asked once for all remaining items
+                if (!needConsent.isEmpty()) {
+                    try {
+                        IntentSender sender = MediaStore.createDeleteRequest(resolver, needConsent).getIntentSender();
+                        if (context instanceof Activity) {
+                            ((Activity) context).startIntentSenderForResult(
+                                    sender,
+                                    Constants.DELETE_MEDIASTORE_FILE_REQUEST_ID,
+                                    null,
+                                    0, 0, 0
+                            );
+                            Log.i(TAG, "Requested user consent to delete " + needConsent.size() + " items");
+                            successCount += needConsent.size(); // Presume successful deletion
+                        } else {
+                            Log.w(TAG, "Context not an Activity, cannot request delete for " + needConsent.size() + " items");
                         }
+                    } catch (Exception e) {
+                        Log.e(TAG, "Failed to create delete request for " + needConsent.size() + " items", e);
                     }
                 }
             } catch (Exception e) {
@@ -0,0 +1,532 @@
+package com.jhjdekker98.fisheyegallery.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Extracts the capture date and embedded thumbnail of a media file by reading only its metadata structures:
+ * the EXIF block in a JPEG's APP1 segment, the EXIF item of a HEIF/AVIF file, or the {@code mvhd} box of an
+ * MP4/MOV file. File bodies (image data, {@code mdat}) are never read, which keeps this cheap on remote sources.
+ * <p>
+ * EXIF dates are interpreted like {@code ExifInterface#getDateTime()}: as UTC unless an offset tag is present.
+ * <p>
+ * Files are untrusted input: truncated or corrupt metadata yields {@code null}, like a file without any. Only
+ * failures of the source itself are thrown.
+ */
+public class MediaMetadataParser {
+    private static final int WINDOW_SIZE = 16 * 1024;
+    private static final int MAX_EXIF_SIZE = 64 * 1024;
+    private static final int MAX_BOXES = 256;
+    private static final long MP4_EPOCH_OFFSET_SECONDS = 2082844800L; // 1904-01-01 -> 1970-01-01
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_DATETIME_DIGITIZED = 0x9004;
+    private static final int TAG_OFFSET_TIME = 0x9010;
+    private static final int TAG_OFFSET_TIME_ORIGINAL = 0x9011;
+    private static final int TAG_OFFSET_TIME_DIGITIZED = 0x9012;
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_SHORT = 3;
+
+    /**
+     * @return the capture date in epoch millis, or {@code null} if the format is unknown, has no date or is
+     * malformed
+     * @throws IOException if reading from the source fails
+     */
+    public static Long parseDate(RandomAccessSource source) throws IOException {
+        final Window window = new Window(source);
+        if (source.length() < 12) return null;
+        try {
+            if (window.u16(0) == 0xFFD8) return parseJpeg(window);
+            if ("ftyp".equals(window.fourCC(4))) return parseIsoBmff(window);
+            return null;
+        } catch (MalformedException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the JPEG thumbnail embedded in the EXIF data (IFD1) of a JPEG or HEIF file. If the image has an
+     * EXIF orientation, it is copied into the thumbnail, so decoders rotate it like the full image.
+     *
+     * @return the thumbnail, or {@code null} if the file has none or it is malformed
+     * @throws IOException if reading from the source fails
+     */
+    public static Thumbnail readThumbnail(RandomAccessSource source) throws IOException {
+        final Window window = new Window(source);
+        if (source.length() < 12) return null;
+        try {
+            final byte[] tiff;
+            if (window.u16(0) == 0xFFD8) tiff = findJpegExif(window);
+            else if ("ftyp".equals(window.fourCC(4))) tiff = findIsoBmffExif(window);
+            else tiff = null;
+            return tiff == null ? null : parseTiffThumbnail(tiff);
+        } catch (MalformedException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    // --- JPEG ---
+
+    private static Long parseJpeg(Window w) throws IOException {
+        final byte[] tiff = findJpegExif(w);
+        return tiff == null ? null : parseTiffDate(tiff);
+    }
+
+    private static byte[] findJpegExif(Window w) throws IOException {
+        long pos = 2;
+        while (pos + 4 <= w.length()) {
+            if (w.u8(pos) != 0xFF) return null;
+            final int marker = w.u8(pos + 1);
+            if (marker == 0xFF) { // Fill byte
+                pos++;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) { // Markers without a length
+                pos += 2;
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) return null; // Start of scan: no more metadata
+
+            final int segmentLength = w.u16(pos + 2);
+            if (marker == 0xE1 && segmentLength >= 8
+                    && "Exif".equals(w.fourCC(pos + 4)) && w.u16(pos + 8) == 0) {
+                return w.bytes(pos + 10, Math.min(segmentLength - 8, MAX_EXIF_SIZE));
+            }
+            pos += 2 + segmentLength;
+        }
+        return null;
+    }
+
+    // --- ISO base media file format (MP4, MOV, HEIF, AVIF) ---
+
+    private static Long parseIsoBmff(Window w) throws IOException {
+        long pos = 0;
+        for (int i = 0; i < MAX_BOXES && pos + 8 <= w.length(); i++) {
+            final long[] box = readBoxHeader(w, pos, w.length());
+            if (box == null) return null;
+            final String type = w.fourCC(pos + 4);
+            if ("moov".equals(type)) {
+                final long[] mvhd = findBox(w, box[1], box[2], "mvhd");
+                if (mvhd != null) return parseMvhd(w, mvhd[1]);
+            } else if ("meta".equals(type)) {
+                final byte[] tiff = findHeifExif(w, box);
+                if (tiff != null) return parseTiffDate(tiff);
+            }
+            pos = box[2];
+        }
+        return null;
+    }
+
+    private static byte[] findIsoBmffExif(Window w) throws IOException {
+        long pos = 0;
+        for (int i = 0; i < MAX_BOXES && pos + 8 <= w.length(); i++) {
+            final long[] box = readBoxHeader(w, pos, w.length());
+            if (box == null) return null;
+            if ("meta".equals(w.fourCC(pos + 4))) return findHeifExif(w, box);
+            pos = box[2];
+        }
+        return null;
+    }
+
+    private static Long parseMvhd(Window w, long payload) throws IOException {
+        final int version = w.u8(payload);
+        final long seconds = version == 1 ? w.u64(payload + 4) : w.u32(payload + 4);
+        if (seconds <= MP4_EPOCH_OFFSET_SECONDS) return null; // Unset (0) or nonsensical
+        return (seconds - MP4_EPOCH_OFFSET_SECONDS) * 1000L;
+    }
+
+    private static byte[] findHeifExif(Window w, long[] meta) throws IOException {
+        // 'meta' is a full box: skip version/flags before its children
+        final long childrenStart = meta[1] + 4;
+        final long[] iinf = findBox(w, childrenStart, meta[2], "iinf");
+        final long[] iloc = findBox(w, childrenStart, meta[2], "iloc");
+        if (iinf == null || iloc == null) return null;
+
+        final long exifItemId = findExifItemId(w, iinf);
+        if (exifItemId < 0) return null;
+        final long[] extent = findItemExtent(w, iloc, exifItemId);
+        if (extent == null || extent[1] < 4) return null;
+
+        final byte[] item = w.bytes(extent[0], (int) Math.min(extent[1], MAX_EXIF_SIZE));
+        final long tiffOffset = ByteBuffer.wrap(item).getInt(0) & 0xFFFFFFFFL;
+        final long start = 4 + tiffOffset;
+        if (start >= item.length) return null;
+        final byte[] tiff = new byte[item.length - (int) start];
+        System.arraycopy(item, (int) start, tiff, 0, tiff.length);
+        return tiff;
+    }
+
+    private static long findExifItemId(Window w, long[] iinf) throws IOException {
+        final int version = w.u8(iinf[1]);
+        long pos = iinf[1] + 4 + (version == 0 ? 2 : 4);
+        for (int i = 0; i < MAX_BOXES && pos + 8 <= iinf[2]; i++) {
+            final long[] infe = readBoxHeader(w, pos, iinf[2]);
+            if (infe == null) return -1;
+            if ("infe".equals(w.fourCC(pos + 4))) {
+                final int infeVersion = w.u8(infe[1]);
+                if (infeVersion >= 2) {
+                    final long idPos = infe[1] + 4;
+                    final long itemId = infeVersion == 2 ? w.u16(idPos) : w.u32(idPos);
+                    final long typePos = idPos + (infeVersion == 2 ? 2 : 4) + 2;
+                    if ("Exif".equals(w.fourCC(typePos))) return itemId;
+                }
+            }
+            pos = infe[2];
+        }
+        return -1;
+    }
+
+    /**
+     * @return {offset, length} of the first extent of the given item, or {@code null}
+     */
+    private static long[] findItemExtent(Window w, long[] iloc, long itemId) throws IOException {
+        long pos = iloc[1];
+        final int version = w.u8(pos);
+        pos += 4;
+        final int sizes = w.u16(pos);
+        pos += 2;
+        final int offsetSize = (sizes >> 12) & 0xF;
+        final int lengthSize = (sizes >> 8) & 0xF;
+        final int baseOffsetSize = (sizes >> 4) & 0xF;
+        final int indexSize = version == 1 || version == 2 ? sizes & 0xF : 0;
+
+        final long itemCount = version < 2 ? w.u16(pos) : w.u32(pos);
+        pos += version < 2 ? 2 : 4;
+        for (long i = 0; i < itemCount && pos < iloc[2]; i++) {
+            final long id = version < 2 ? w.u16(pos) : w.u32(pos);
+            pos += version < 2 ? 2 : 4;
+            if (version == 1 || version == 2) pos += 2; // construction_method
+            pos += 2; // data_reference_index
+            final long baseOffset = w.uN(pos, baseOffsetSize);
+            pos += baseOffsetSize;
+            final int extentCount = w.u16(pos);
+            pos += 2;
+
+            long[] first = null;
+            for (int e = 0; e < extentCount; e++) {
+                pos += indexSize;
+                final long extentOffset = w.uN(pos, offsetSize);
+                pos += offsetSize;
+                final long extentLength = w.uN(pos, lengthSize);
+                pos += lengthSize;
+                if (first == null) first = new long[]{baseOffset + extentOffset, extentLength};
+            }
+            if (id == itemId) return first;
+        }
+        return null;
+    }
+
+    /**
+     * @return {start, payloadStart, end} of the box at {@code pos}, or {@code null} if it is malformed
+     */
+    private static long[] readBoxHeader(Window w, long pos, long limit) throws IOException {
+        long size = w.u32(pos);
+        long headerLength = 8;
+        if (size == 1) {
+            size = w.u64(pos + 8);
+            headerLength = 16;
+        } else if (size == 0) {
+            size = limit - pos;
+        }
+        if (size < headerLength || size > limit - pos) return null;
+        return new long[]{pos, pos + headerLength, pos + size};
+    }
+
+    private static long[] findBox(Window w, long start, long end, String type) throws IOException {
+        long pos = start;
+        for (int i = 0; i < MAX_BOXES && pos + 8 <= end; i++) {
+            final long[] box = readBoxHeader(w, pos, end);
+            if (box == null) return null;
+            if (type.equals(w.fourCC(pos + 4))) return box;
+            pos = box[2];
+        }
+        return null;
+    }
+
+    // --- TIFF / EXIF ---
+
+    static Long parseTiffDate(byte[] tiff) {
+        final ByteBuffer bb = openTiff(tiff);
+        if (bb == null) return null;
+
+        final int ifd0 = bb.getInt(4);
+        final String dateTime = readAsciiTag(bb, ifd0, TAG_DATETIME);
+        final long exifIfd = readLongTag(bb, ifd0, TAG_EXIF_IFD);
+
+        String offsetTime = null;
+        String original = null;
+        String digitized = null;
+        String offsetOriginal = null;
+        String offsetDigitized = null;
+        if (exifIfd > 0) {
+            offsetTime = readAsciiTag(bb, (int) exifIfd, TAG_OFFSET_TIME);
+            original = readAsciiTag(bb, (int) exifIfd, TAG_DATETIME_ORIGINAL);
+            offsetOriginal = readAsciiTag(bb, (int) exifIfd, TAG_OFFSET_TIME_ORIGINAL);
+            digitized = readAsciiTag(bb, (int) exifIfd, TAG_DATETIME_DIGITIZED);
+            offsetDigitized = readAsciiTag(bb, (int) exifIfd, TAG_OFFSET_TIME_DIGITIZED);
+        }
+
+        Long result = parseExifDateTime(dateTime, offsetTime);
+        if (result == null) result = parseExifDateTime(original, offsetOriginal);
+        if (result == null) result = parseExifDateTime(digitized, offsetDigitized);
+        return result;
+    }
+
+    static Thumbnail parseTiffThumbnail(byte[] tiff) {
+        final ByteBuffer bb = openTiff(tiff);
+        if (bb == null) return null;
+
+        final int ifd0 = bb.getInt(4);
+        if (ifd0 < 8 || ifd0 + 2 > bb.limit()) return null;
+        final int orientation = readShortTag(bb, ifd0, TAG_ORIENTATION);
+        final int nextIfdPosition = ifd0 + 2 + (bb.getShort(ifd0) & 0xFFFF) * 12;
+        if (nextIfdPosition + 4 > bb.limit()) return null;
+        final int ifd1 = bb.getInt(nextIfdPosition);
+        if (ifd1 <= 0) return null;
+
+        final long offset = readLongTag(bb, ifd1, TAG_JPEG_INTERCHANGE_FORMAT);
+        final long length = readLongTag(bb, ifd1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH);
+        if (offset <= 0 || length <= 4 || offset + length > tiff.length) return null;
+        final byte[] jpeg = new byte[(int) length];
+        System.arraycopy(tiff, (int) offset, jpeg, 0, jpeg.length);
+        if ((jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) return null;
+
+        final int[] size = readJpegSize(jpeg);
+        if (size == null) return null;
+        // Orientations 5-8 rotate by 90 degrees, so the displayed thumbnail has its sides swapped
+        final boolean transposed = orientation >= 5 && orientation <= 8;
+        return new Thumbnail(
+                withOrientation(jpeg, orientation),
+                transposed ? size[1] : size[0],
+                transposed ? size[0] : size[1]);
+    }
+
+    /**
+     * @return {width, height} from the first start-of-frame segment, or {@code null}
+     */
+    private static int[] readJpegSize(byte[] jpeg) {
+        final ByteBuffer bb = ByteBuffer.wrap(jpeg);
+        int pos = 2;
+        while (pos + 4 <= jpeg.length) {
+            if ((jpeg[pos] & 0xFF) != 0xFF) return null;
+            final int marker = jpeg[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                pos++;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                pos += 2;
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) return null;
+
+            final boolean startOfFrame = marker >= 0xC0 && marker <= 0xCF
+                    && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+            if (startOfFrame && pos + 9 <= jpeg.length) {
+                return new int[]{bb.getShort(pos + 7) & 0xFFFF, bb.getShort(pos + 5) & 0xFFFF};
+            }
+            pos += 2 + (bb.getShort(pos + 2) & 0xFFFF);
+        }
+        return null;
+    }
+
+    /**
+     * Insert a minimal EXIF segment holding only the orientation tag right after the start-of-image marker.
+     */
+    private static byte[] withOrientation(byte[] jpeg, int orientation) {
+        if (orientation <= 1 || orientation > 8) return jpeg;
+        final ByteBuffer app1 = ByteBuffer.allocate(36).order(ByteOrder.BIG_ENDIAN);
+        app1.putShort((short) 0xFFE1).putShort((short) 34);
+        app1.put("Exif".getBytes(StandardCharsets.US_ASCII)).putShort((short) 0);
+        app1.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8); // TIFF header, IFD0 at 8
+        app1.putShort((short) 1); // One entry
+        app1.putShort((short) TAG_ORIENTATION).putShort((short) TYPE_SHORT).putInt(1)
+                .putShort((short) orientation).putShort((short) 0);
+        app1.putInt(0); // No next IFD
+
+        final byte[] result = new byte[jpeg.length + app1.capacity()];
+        result[0] = jpeg[0];
+        result[1] = jpeg[1];
+        System.arraycopy(app1.array(), 0, result, 2, app1.capacity());
+        System.arraycopy(jpeg, 2, result, 2 + app1.capacity(), jpeg.length - 2);
+        return result;
+    }
+
+    private static ByteBuffer openTiff(byte[] tiff) {
+        if (tiff.length < 8) return null;
+        final ByteBuffer bb = ByteBuffer.wrap(tiff);
+        if (tiff[0] == 'I' && tiff[1] == 'I') bb.order(ByteOrder.LITTLE_ENDIAN);
+        else if (tiff[0] == 'M' && tiff[1] == 'M') bb.order(ByteOrder.BIG_ENDIAN);
+        else return null;
+        if ((bb.getShort(2) & 0xFFFF) != 42) return null;
+        return bb;
+    }
+
+    private static int findTagEntry(ByteBuffer bb, int ifdOffset, int tag) {
+        if (ifdOffset < 0 || ifdOffset + 2 > bb.limit()) return -1;
+        final int count = bb.getShort(ifdOffset) & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            final int entry = ifdOffset + 2 + i * 12;
+            if (entry + 12 > bb.limit()) return -1;
+            if ((bb.getShort(entry) & 0xFFFF) == tag) return entry;
+        }
+        return -1;
+    }
+
+    private static long readLongTag(ByteBuffer bb, int ifdOffset, int tag) {
+        final int entry = findTagEntry(bb, ifdOffset, tag);
+        return entry < 0 ? -1 : bb.getInt(entry + 8) & 0xFFFFFFFFL;
+    }
+
+    private static int readShortTag(ByteBuffer bb, int ifdOffset, int tag) {
+        final int entry = findTagEntry(bb, ifdOffset, tag);
+        if (entry < 0 || (bb.getShort(entry + 2) & 0xFFFF) != TYPE_SHORT) return 0;
+        return bb.getShort(entry + 8) & 0xFFFF;
+    }
+
+    private static String readAsciiTag(ByteBuffer bb, int ifdOffset, int tag) {
+        final int entry = findTagEntry(bb, ifdOffset, tag);
+        if (entry < 0 || (bb.getShort(entry + 2) & 0xFFFF) != TYPE_ASCII) return null;
+        final int count = bb.getInt(entry + 4);
+        final int valueOffset = count <= 4 ? entry + 8 : bb.getInt(entry + 8);
+        if (count <= 0 || valueOffset < 0 || count > bb.limit() - valueOffset) return null;
+
+        int length = 0;
+        while (length < count && bb.get(valueOffset + length) != 0) length++;
+        final byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) value[i] = bb.get(valueOffset + i);
+        return new String(value, StandardCharsets.US_ASCII).trim();
+    }
+
+    private static Long parseExifDateTime(String dateTime, String offset) {
+        if (dateTime == null || dateTime.length() < 19 || dateTime.startsWith("0000")) return null;
+        try {
+            final SimpleDateFormat format = new SimpleDateFormat("yyyy:MM:dd HH:mm:ss", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            final Date date = format.parse(dateTime.substring(0, 19));
+            if (date == null) return null;
+            long millis = date.getTime();
+            if (offset != null && offset.matches("[+-]\\d{2}:\\d{2}")) {
+                final int sign = offset.charAt(0) == '-' ? -1 : 1;
+                final int minutes = Integer.parseInt(offset.substring(1, 3)) * 60 + Integer.parseInt(offset.substring(4, 6));
+                millis -= sign * minutes * 60_000L;
+            }
+            return millis;
+        } catch (ParseException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static class Thumbnail {
+        // A complete JPEG file
+        public final byte[] data;
+        // As displayed, i.e. after applying the orientation
+        public final int width;
+        public final int height;
+
+        Thumbnail(byte[] data, int width, int height) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Big-endian reads over a {@link RandomAccessSource}, buffered in windows to keep the number of
+     * (potentially remote) reads low.
+     */
+    private static class Window {
+        private final RandomAccessSource source;
+        private final byte[] buffer = new byte[WINDOW_SIZE];
+        private long bufferStart = -1;
+        private int bufferLength = 0;
+
+        Window(RandomAccessSource source) {
+            this.source = source;
+        }
+
+        long length() {
+            return source.length();
+        }
+
+        int u8(long pos) throws IOException {
+            ensure(pos, 1);
+            return buffer[(int) (pos - bufferStart)] & 0xFF;
+        }
+
+        int u16(long pos) throws IOException {
+            return (u8(pos) << 8) | u8(pos + 1);
+        }
+
+        long u32(long pos) throws IOException {
+            return ((long) u16(pos) << 16) | u16(pos + 2);
+        }
+
+        long u64(long pos) throws IOException {
+            return (u32(pos) << 32) | u32(pos + 4);
+        }
+
+        long uN(long pos, int size) throws IOException {
+            switch (size) {
+                case 0:
+                    return 0;
+                case 4:
+                    return u32(pos);
+                case 8:
+                    return u64(pos);
+                default:
+                    throw new MalformedException("Unsupported field size " + size);
+            }
+        }
+
+        String fourCC(long pos) throws IOException {
+            return new String(bytes(pos, 4), StandardCharsets.US_ASCII);
+        }
+
+        byte[] bytes(long pos, int length) throws IOException {
+            if (pos < 0 || length < 0 || pos + length > source.length()) {
+                throw new MalformedException("Unexpected end of file at " + pos);
+            }
+            final byte[] result = new byte[length];
+            if (pos >= bufferStart && pos + length <= bufferStart + bufferLength) {
+                System.arraycopy(buffer, (int) (pos - bufferStart), result, 0, length);
+                return result;
+            }
+            final int read = source.readAt(pos, result, 0, length);
+            if (read < length) throw new MalformedException("Unexpected end of file at " + pos);
+            return result;
+        }
+
+        private void ensure(long pos, int length) throws IOException {
+            if (pos >= bufferStart && pos + length <= bufferStart + bufferLength) return;
+            if (pos < 0 || pos + length > source.length()) {
+                throw new MalformedException("Unexpected end of file at " + pos);
+            }
+            bufferStart = pos;
+            bufferLength = Math.max(0,
+                    source.readAt(pos, buffer, 0, (int) Math.min(WINDOW_SIZE, source.length() - pos)));
+            if (bufferLength < length) throw new MalformedException("Unexpected end of file at " + pos);
+        }
+    }
+
+    /**
+     * The metadata points outside the file or uses values it can't have.
+     */
+    private static class MalformedException extends IOException {
+        MalformedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.jhjdekker98.fisheyegallery.util;
+
+import java.io.IOException;
+
+/**
+ * Minimal positional read access to a file, local or remote.
+ */
+public interface RandomAccessSource {
+    long length();
+
+    /**
+     * Read up to {@code length} bytes at {@code position}. Returns the number of bytes read, which is only
+     * less than {@code length} at the end of the source.
+     */
+    int readAt(long position, byte[] buffer, int offset, int length) throws IOException;
+}
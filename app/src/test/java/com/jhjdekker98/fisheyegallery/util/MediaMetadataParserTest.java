@@ -0,0 +1,525 @@
+package com.jhjdekker98.fisheyegallery.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+public class MediaMetadataParserTest {
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_OFFSET_TIME = 0x9010;
+    private static final int TAG_OFFSET_TIME_ORIGINAL = 0x9011;
+    private static final long MP4_EPOCH_OFFSET_SECONDS = 2082844800L;
+
+    // 160x120 baseline JPEG: SOI, SOF0 and EOI only
+    private static final byte[] THUMBNAIL_JPEG = bytes(
+            0xFF, 0xD8,
+            0xFF, 0xC0, 0x00, 0x0B, 0x08, 0x00, 0x78, 0x00, 0xA0, 0x01, 0x01, 0x11, 0x00,
+            0xFF, 0xD9);
+
+    // --- TIFF ---
+
+    @Test
+    public void parseTiffDate_littleEndian() {
+        final byte[] tiff = new TiffWriter(ByteOrder.LITTLE_ENDIAN)
+                .ifd(8, 0, ascii(TAG_DATETIME, "2021:03:04 05:06:07"))
+                .toBytes();
+        assertEquals(utc(2021, 3, 4, 5, 6, 7), MediaMetadataParser.parseTiffDate(tiff));
+    }
+
+    @Test
+    public void parseTiffDate_bigEndian() {
+        final byte[] tiff = new TiffWriter(ByteOrder.BIG_ENDIAN)
+                .ifd(8, 0, ascii(TAG_DATETIME, "2021:03:04 05:06:07"))
+                .toBytes();
+        assertEquals(utc(2021, 3, 4, 5, 6, 7), MediaMetadataParser.parseTiffDate(tiff));
+    }
+
+    @Test
+    public void parseTiffDate_appliesOffsetTime() {
+        final byte[] tiff = new TiffWriter(ByteOrder.BIG_ENDIAN)
+                .ifd(8, 0, ascii(TAG_DATETIME, "2021:03:04 05:06:07"), u32(TAG_EXIF_IFD, 100))
+                .ifd(100, 0, ascii(TAG_OFFSET_TIME, "+02:00"))
+                .toBytes();
+        assertEquals(utc(2021, 3, 4, 3, 6, 7), MediaMetadataParser.parseTiffDate(tiff));
+    }
+
+    @Test
+    public void parseTiffDate_fallsBackToOriginalWithItsOffset() {
+        final byte[] tiff = new TiffWriter(ByteOrder.LITTLE_ENDIAN)
+                .ifd(8, 0, u32(TAG_EXIF_IFD, 100))
+                .ifd(100, 0, ascii(TAG_DATETIME_ORIGINAL, "2019:12:31 23:30:00"),
+                        ascii(TAG_OFFSET_TIME_ORIGINAL, "-01:30"))
+                .toBytes();
+        assertEquals(utc(2020, 1, 1, 1, 0, 0), MediaMetadataParser.parseTiffDate(tiff));
+    }
+
+    @Test
+    public void parseTiffDate_ignoresUnsetDate() {
+        final byte[] tiff = new TiffWriter(ByteOrder.LITTLE_ENDIAN)
+                .ifd(8, 0, ascii(TAG_DATETIME, "0000:00:00 00:00:00"))
+                .toBytes();
+        assertNull(MediaMetadataParser.parseTiffDate(tiff));
+    }
+
+    @Test
+    public void parseTiffThumbnail_keepsSizeWithoutRotation() {
+        final MediaMetadataParser.Thumbnail thumbnail = MediaMetadataParser.parseTiffThumbnail(
+                tiffWithThumbnail(ByteOrder.LITTLE_ENDIAN, 1));
+        assertNotNull(thumbnail);
+        assertEquals(160, thumbnail.width);
+        assertEquals(120, thumbnail.height);
+        assertArrayEquals(THUMBNAIL_JPEG, thumbnail.data);
+    }
+
+    @Test
+    public void parseTiffThumbnail_transposesSizeAndCopiesOrientation() {
+        final MediaMetadataParser.Thumbnail thumbnail = MediaMetadataParser.parseTiffThumbnail(
+                tiffWithThumbnail(ByteOrder.BIG_ENDIAN, 6));
+        assertNotNull(thumbnail);
+        assertEquals(120, thumbnail.width);
+        assertEquals(160, thumbnail.height);
+        // SOI, then the inserted APP1 segment, then the rest of the original thumbnail
+        assertEquals(0xFF, thumbnail.data[2] & 0xFF);
+        assertEquals(0xE1, thumbnail.data[3] & 0xFF);
+        assertEquals(THUMBNAIL_JPEG.length + 36, thumbnail.data.length);
+        assertArrayEquals(Arrays.copyOfRange(THUMBNAIL_JPEG, 2, THUMBNAIL_JPEG.length),
+                Arrays.copyOfRange(thumbnail.data, 38, thumbnail.data.length));
+    }
+
+    @Test
+    public void parseTiffThumbnail_rejectsThumbnailOutsideTiff() {
+        final byte[] tiff = new TiffWriter(ByteOrder.LITTLE_ENDIAN)
+                .ifd(8, 200)
+                .ifd(200, 0, u32(TAG_JPEG_INTERCHANGE_FORMAT, 400),
+                        u32(TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, 0xFFFFFFF0L))
+                .toBytes();
+        assertNull(MediaMetadataParser.parseTiffThumbnail(tiff));
+    }
+
+    @Test
+    public void parseTiff_rejectsMalformedHeaders() {
+        assertNull(MediaMetadataParser.parseTiffDate(new byte[4]));
+        assertNull(MediaMetadataParser.parseTiffDate("XX\0*\0\0\0\b".getBytes(StandardCharsets.US_ASCII)));
+        final byte[] badMagic = new TiffWriter(ByteOrder.LITTLE_ENDIAN).toBytes();
+        badMagic[2] = 43;
+        assertNull(MediaMetadataParser.parseTiffDate(badMagic));
+    }
+
+    @Test
+    public void parseTiff_rejectsOutOfRangeIfdsAndValues() {
+        // Entry count running past the end before the tag is found
+        final byte[] tiff = new TiffWriter(ByteOrder.LITTLE_ENDIAN)
+                .ifd(8, 0, u16(TAG_ORIENTATION, 1))
+                .toBytes();
+        ByteBuffer.wrap(tiff).order(ByteOrder.LITTLE_ENDIAN).putShort(8, (short) 0xFFFF);
+        assertNull(MediaMetadataParser.parseTiffDate(tiff));
+        assertNull(MediaMetadataParser.parseTiffThumbnail(tiff));
+
+        // IFD0 offset outside the data
+        final byte[] farIfd = new TiffWriter(ByteOrder.BIG_ENDIAN).toBytes();
+        ByteBuffer.wrap(farIfd).putInt(4, 0x7FFFFFF0);
+        assertNull(MediaMetadataParser.parseTiffDate(farIfd));
+        assertNull(MediaMetadataParser.parseTiffThumbnail(farIfd));
+
+        // ASCII value pointing outside the data
+        final byte[] farValue = new TiffWriter(ByteOrder.BIG_ENDIAN)
+                .ifd(8, 0, ascii(TAG_DATETIME, "2021:03:04 05:06:07"))
+                .toBytes();
+        ByteBuffer.wrap(farValue).putInt(8 + 2 + 8, 0x7FFFFFF0);
+        assertNull(MediaMetadataParser.parseTiffDate(farValue));
+    }
+
+    // --- JPEG ---
+
+    @Test
+    public void parseDate_jpegSkipsOtherSegments() throws IOException {
+        final byte[] tiff = new TiffWriter(ByteOrder.BIG_ENDIAN)
+                .ifd(8, 0, ascii(TAG_DATETIME, "2021:03:04 05:06:07"))
+                .toBytes();
+        assertEquals(utc(2021, 3, 4, 5, 6, 7), MediaMetadataParser.parseDate(source(jpegWithExif(tiff))));
+    }
+
+    @Test
+    public void readThumbnail_jpeg() throws IOException {
+        final MediaMetadataParser.Thumbnail thumbnail = MediaMetadataParser.readThumbnail(
+                source(jpegWithExif(tiffWithThumbnail(ByteOrder.LITTLE_ENDIAN, 8))));
+        assertNotNull(thumbnail);
+        assertEquals(120, thumbnail.width);
+        assertEquals(160, thumbnail.height);
+    }
+
+    @Test
+    public void parseDate_jpegWithoutExif() throws IOException {
+        assertNull(MediaMetadataParser.parseDate(source(concat(bytes(0xFF, 0xD8), THUMBNAIL_JPEG))));
+    }
+
+    @Test
+    public void parseDate_truncatedJpegReturnsNull() throws IOException {
+        final byte[] tiff = new TiffWriter(ByteOrder.BIG_ENDIAN)
+                .ifd(8, 0, ascii(TAG_DATETIME, "2021:03:04 05:06:07"))
+                .toBytes();
+        final byte[] jpeg = jpegWithExif(tiff);
+        final byte[] truncated = Arrays.copyOf(jpeg, 40);
+        assertNull(MediaMetadataParser.parseDate(source(truncated)));
+        assertNull(MediaMetadataParser.readThumbnail(source(truncated)));
+    }
+
+    @Test
+    public void parseDate_garbageReturnsNull() throws IOException {
+        final byte[] garbage = new byte[64];
+        for (int i = 0; i < garbage.length; i++) garbage[i] = (byte) (i * 37 + 11);
+        garbage[0] = (byte) 0xFF;
+        garbage[1] = (byte) 0xD8;
+        assertNull(MediaMetadataParser.parseDate(source(garbage)));
+        assertNull(MediaMetadataParser.parseDate(source(new byte[0])));
+        assertNull(MediaMetadataParser.parseDate(source(new byte[64])));
+    }
+
+    @Test
+    public void parseDate_propagatesSourceFailures() {
+        final RandomAccessSource failing = new RandomAccessSource() {
+            @Override
+            public long length() {
+                return 1024;
+            }
+
+            @Override
+            public int readAt(long position, byte[] buffer, int offset, int length) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        assertThrows(IOException.class, () -> MediaMetadataParser.parseDate(failing));
+    }
+
+    // --- ISO base media file format ---
+
+    @Test
+    public void parseDate_mp4MvhdVersion0() throws IOException {
+        final long seconds = MP4_EPOCH_OFFSET_SECONDS + 1_600_000_000L;
+        final byte[] mvhd = fullBox("mvhd", 0, concat(u32Bytes(seconds), new byte[16]));
+        final byte[] file = concat(ftyp("isom"), box("free", new byte[4]), box("moov", mvhd));
+        assertEquals(Long.valueOf(1_600_000_000_000L), MediaMetadataParser.parseDate(source(file)));
+    }
+
+    @Test
+    public void parseDate_mp4MvhdVersion1() throws IOException {
+        final long seconds = MP4_EPOCH_OFFSET_SECONDS + 1_600_000_000L;
+        final byte[] mvhd = fullBox("mvhd", 1, concat(uN(seconds, 8), new byte[20]));
+        final byte[] file = concat(ftyp("isom"), box("moov", mvhd));
+        assertEquals(Long.valueOf(1_600_000_000_000L), MediaMetadataParser.parseDate(source(file)));
+    }
+
+    @Test
+    public void parseDate_mp4WithUnsetCreationTime() throws IOException {
+        final byte[] mvhd = fullBox("mvhd", 0, new byte[20]);
+        assertNull(MediaMetadataParser.parseDate(source(concat(ftyp("isom"), box("moov", mvhd)))));
+    }
+
+    @Test
+    public void parseDate_heifIlocVersion0() throws IOException {
+        assertHeifDate(0, 0, 4, 4, 0, 0);
+    }
+
+    @Test
+    public void parseDate_heifIlocVersion1WithBaseOffsetAndIndex() throws IOException {
+        assertHeifDate(1, 1, 0, 8, 4, 4);
+    }
+
+    @Test
+    public void parseDate_heifIlocVersion2With64BitOffsets() throws IOException {
+        assertHeifDate(2, 1, 8, 8, 8, 0);
+    }
+
+    @Test
+    public void readThumbnail_heif() throws IOException {
+        final MediaMetadataParser.Thumbnail thumbnail = MediaMetadataParser.readThumbnail(
+                source(heif(tiffWithThumbnail(ByteOrder.BIG_ENDIAN, 1), 0, 0, 4, 4, 0, 0)));
+        assertNotNull(thumbnail);
+        assertEquals(160, thumbnail.width);
+        assertEquals(120, thumbnail.height);
+    }
+
+    @Test
+    public void parseDate_heifWithUnsupportedFieldSizeReturnsNull() throws IOException {
+        assertNull(MediaMetadataParser.parseDate(source(heif(dateTiff(), 0, 0, 2, 4, 0, 0))));
+    }
+
+    @Test
+    public void parseDate_heifExtentOutsideFileReturnsNull() throws IOException {
+        final byte[] file = heif(dateTiff(), 0, 0, 4, 4, 0, 0);
+        // The last iloc extent length is the last field before the mdat box
+        final int mdat = indexOf(file, "mdat") - 4;
+        ByteBuffer.wrap(file).putInt(mdat - 4, 0x7FFFFFFF);
+        assertNull(MediaMetadataParser.parseDate(source(file)));
+    }
+
+    @Test
+    public void parseDate_malformedBoxesReturnNull() throws IOException {
+        // Box smaller than its own header
+        final byte[] tooSmall = concat(ftyp("isom"), bytes(0, 0, 0, 4), "moov".getBytes(StandardCharsets.US_ASCII));
+        assertNull(MediaMetadataParser.parseDate(source(tooSmall)));
+
+        // 64-bit size running past the end
+        final byte[] tooLarge = concat(ftyp("isom"), bytes(0, 0, 0, 1), "moov".getBytes(StandardCharsets.US_ASCII),
+                uN(Long.MAX_VALUE, 8));
+        assertNull(MediaMetadataParser.parseDate(source(tooLarge)));
+
+        // Truncated in the middle of mvhd
+        final long seconds = MP4_EPOCH_OFFSET_SECONDS + 1_600_000_000L;
+        final byte[] mp4 = concat(ftyp("isom"), box("moov", fullBox("mvhd", 0, concat(u32Bytes(seconds), new byte[16]))));
+        assertNull(MediaMetadataParser.parseDate(source(Arrays.copyOf(mp4, mp4.length - 30))));
+    }
+
+    private static void assertHeifDate(int ilocVersion, int iinfVersion, int offsetSize, int lengthSize,
+                                       int baseOffsetSize, int indexSize) throws IOException {
+        final byte[] file = heif(dateTiff(), ilocVersion, iinfVersion, offsetSize, lengthSize, baseOffsetSize, indexSize);
+        assertEquals(utc(2021, 3, 4, 5, 6, 7), MediaMetadataParser.parseDate(source(file)));
+    }
+
+    // --- Builders ---
+
+    private static byte[] dateTiff() {
+        return new TiffWriter(ByteOrder.LITTLE_ENDIAN)
+                .ifd(8, 0, ascii(TAG_DATETIME, "2021:03:04 05:06:07"))
+                .toBytes();
+    }
+
+    private static byte[] tiffWithThumbnail(ByteOrder order, int orientation) {
+        return new TiffWriter(order)
+                .ifd(8, 200, u16(TAG_ORIENTATION, orientation))
+                .ifd(200, 0, u32(TAG_JPEG_INTERCHANGE_FORMAT, 400),
+                        u32(TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, THUMBNAIL_JPEG.length))
+                .data(400, THUMBNAIL_JPEG)
+                .toBytes();
+    }
+
+    private static byte[] jpegWithExif(byte[] tiff) {
+        final byte[] app0 = concat(bytes(0xFF, 0xE0, 0x00, 0x10), "JFIF\0".getBytes(StandardCharsets.US_ASCII),
+                new byte[9]);
+        final byte[] app1 = concat(bytes(0xFF, 0xE1), u16Bytes(2 + 6 + tiff.length),
+                "Exif\0\0".getBytes(StandardCharsets.US_ASCII), tiff);
+        return concat(bytes(0xFF, 0xD8), app0, app1, bytes(0xFF, 0xDA, 0x00, 0x02, 0xFF, 0xD9));
+    }
+
+    /**
+     * A HEIF file with an image item and, second in iloc, an Exif item stored in a trailing mdat box.
+     */
+    private static byte[] heif(byte[] tiff, int ilocVersion, int iinfVersion, int offsetSize, int lengthSize,
+                               int baseOffsetSize, int indexSize) {
+        final byte[] exifItem = concat(u32Bytes(0), tiff);
+        final byte[] iinf = iinf(iinfVersion);
+        final byte[] ftyp = ftyp("heic");
+        // The iloc size doesn't depend on the offsets written into it
+        final int metaSize = 8 + 4 + iinf.length
+                + iloc(ilocVersion, offsetSize, lengthSize, baseOffsetSize, indexSize, 0, 0).length;
+        final long exifOffset = ftyp.length + metaSize + 8;
+        final byte[] iloc = iloc(ilocVersion, offsetSize, lengthSize, baseOffsetSize, indexSize, exifOffset,
+                exifItem.length);
+        return concat(ftyp, fullBox("meta", 0, concat(iinf, iloc)), box("mdat", exifItem));
+    }
+
+    private static byte[] iinf(int version) {
+        final byte[] image = fullBox("infe", 2, concat(u16Bytes(1), u16Bytes(0),
+                "hvc1".getBytes(StandardCharsets.US_ASCII), new byte[1]));
+        final byte[] exif = fullBox("infe", 3, concat(u32Bytes(2), u16Bytes(0),
+                "Exif".getBytes(StandardCharsets.US_ASCII), new byte[1]));
+        return fullBox("iinf", version, concat(version == 0 ? u16Bytes(2) : u32Bytes(2), image, exif));
+    }
+
+    private static byte[] iloc(int version, int offsetSize, int lengthSize, int baseOffsetSize, int indexSize,
+                               long exifOffset, long exifLength) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, u16Bytes((offsetSize << 12) | (lengthSize << 8) | (baseOffsetSize << 4)
+                | (version == 0 ? 0 : indexSize)));
+        write(out, version < 2 ? u16Bytes(2) : u32Bytes(2));
+        for (int id = 1; id <= 2; id++) {
+            final boolean isExif = id == 2;
+            write(out, version < 2 ? u16Bytes(id) : u32Bytes(id));
+            if (version > 0) write(out, u16Bytes(0)); // construction_method
+            write(out, u16Bytes(0)); // data_reference_index
+            // With a base offset, the extent offset is relative to it
+            final long base = baseOffsetSize > 0 && isExif ? exifOffset : 0;
+            write(out, uN(base, baseOffsetSize));
+            write(out, u16Bytes(1)); // extent_count
+            write(out, uN(0, version == 0 ? 0 : indexSize));
+            write(out, uN(isExif ? exifOffset - base : 0, offsetSize));
+            write(out, uN(isExif ? exifLength : 0, lengthSize));
+        }
+        return fullBox("iloc", version, out.toByteArray());
+    }
+
+    private static byte[] ftyp(String brand) {
+        return box("ftyp", concat(brand.getBytes(StandardCharsets.US_ASCII), u32Bytes(0)));
+    }
+
+    private static byte[] box(String type, byte[] payload) {
+        return concat(u32Bytes(8 + payload.length), type.getBytes(StandardCharsets.US_ASCII), payload);
+    }
+
+    private static byte[] fullBox(String type, int version, byte[] payload) {
+        return box(type, concat(bytes(version, 0, 0, 0), payload));
+    }
+
+    private static byte[] u16Bytes(int value) {
+        return uN(value, 2);
+    }
+
+    private static byte[] u32Bytes(long value) {
+        return uN(value, 4);
+    }
+
+    private static byte[] uN(long value, int size) {
+        final byte[] result = new byte[size];
+        for (int i = 0; i < size; i++) result[i] = (byte) (value >>> (8 * (size - 1 - i)));
+        return result;
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = (byte) values[i];
+        return result;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) write(out, part);
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] data) {
+        out.write(data, 0, data.length);
+    }
+
+    private static int indexOf(byte[] data, String fourCC) {
+        final byte[] needle = fourCC.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i + needle.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + needle.length), needle)) return i;
+        }
+        return -1;
+    }
+
+    private static Long utc(int year, int month, int day, int hour, int minute, int second) {
+        final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        return calendar.getTimeInMillis();
+    }
+
+    private static RandomAccessSource source(byte[] data) {
+        return new RandomAccessSource() {
+            @Override
+            public long length() {
+                return data.length;
+            }
+
+            @Override
+            public int readAt(long position, byte[] buffer, int offset, int length) {
+                if (position < 0) throw new IllegalArgumentException("Negative position " + position);
+                if (position >= data.length) return 0;
+                final int count = (int) Math.min(length, data.length - position);
+                System.arraycopy(data, (int) position, buffer, offset, count);
+                return count;
+            }
+        };
+    }
+
+    private static Entry ascii(int tag, String value) {
+        return new Entry(tag, 2, value.length() + 1, (value + "\0").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static Entry u16(int tag, int value) {
+        return new Entry(tag, 3, 1, null).inline(value, 2);
+    }
+
+    private static Entry u32(int tag, long value) {
+        return new Entry(tag, 4, 1, null).inline(value, 4);
+    }
+
+    private static class Entry {
+        private final int tag;
+        private final int type;
+        private final int count;
+        // Values of more than 4 bytes, stored outside the IFD
+        private final byte[] external;
+        private long inlineValue;
+        private int inlineSize;
+
+        Entry(int tag, int type, int count, byte[] external) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.external = external;
+        }
+
+        Entry inline(long value, int size) {
+            this.inlineValue = value;
+            this.inlineSize = size;
+            return this;
+        }
+    }
+
+    /**
+     * Writes IFDs at fixed offsets; values that don't fit in an entry go to a data area from offset 300.
+     */
+    private static class TiffWriter {
+        private final ByteBuffer bb = ByteBuffer.allocate(512);
+        private int dataPosition = 300;
+
+        TiffWriter(ByteOrder order) {
+            bb.order(order);
+            final byte marker = (byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M');
+            bb.put(0, marker).put(1, marker);
+            bb.putShort(2, (short) 42);
+            bb.putInt(4, 8);
+        }
+
+        TiffWriter ifd(int offset, int nextIfd, Entry... entries) {
+            bb.putShort(offset, (short) entries.length);
+            for (int i = 0; i < entries.length; i++) {
+                final Entry entry = entries[i];
+                final int position = offset + 2 + i * 12;
+                bb.putShort(position, (short) entry.tag);
+                bb.putShort(position + 2, (short) entry.type);
+                bb.putInt(position + 4, entry.count);
+                if (entry.external == null) {
+                    if (entry.inlineSize == 2) bb.putShort(position + 8, (short) entry.inlineValue);
+                    else bb.putInt(position + 8, (int) entry.inlineValue);
+                } else if (entry.external.length <= 4) {
+                    for (int b = 0; b < entry.external.length; b++) bb.put(position + 8 + b, entry.external[b]);
+                } else {
+                    bb.putInt(position + 8, dataPosition);
+                    data(dataPosition, entry.external);
+                    dataPosition += entry.external.length;
+                }
+            }
+            bb.putInt(offset + 2 + entries.length * 12, nextIfd);
+            return this;
+        }
+
+        TiffWriter data(int offset, byte[] data) {
+            for (int i = 0; i < data.length; i++) bb.put(offset + i, data[i]);
+            return this;
+        }
+
+        byte[] toBytes() {
+            return bb.array().clone();
+        }
+    }
+}